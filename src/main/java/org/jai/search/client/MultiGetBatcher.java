@@ -0,0 +1,24 @@
+package org.jai.search.client;
+
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+
+/**
+ * Combines single document lookups into multi get requests.
+ *
+ * A lookup is sent right away when no request is in flight, so a lone caller waits no longer than with a plain get.
+ * Lookups arriving while requests are in flight are queued and sent together as soon as one of them completes.
+ */
+public interface MultiGetBatcher
+{
+    /**
+     * Blocks until the response of the item arrived. Items of one request may differ in index, type, stored fields
+     * and source filtering.
+     */
+    MultiGetItemResponse get(MultiGetRequest.Item item);
+
+    /**
+     * Number of multi get requests sent, lower than the number of lookups when lookups were combined.
+     */
+    long getSentRequestCount();
+}
@@ -0,0 +1,178 @@
+package org.jai.search.client.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.jai.search.client.MultiGetBatcher;
+import org.jai.search.client.SearchClientService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+@Service
+public class MultiGetBatcherImpl implements MultiGetBatcher
+{
+    private static final Logger logger = LoggerFactory.getLogger(MultiGetBatcherImpl.class);
+
+    private static final int MAX_BATCH_SIZE = 100;
+
+    private static final int MAX_REQUESTS_IN_FLIGHT = 2;
+
+    //a lookup never waits longer, even if its request got lost
+    private static final long GET_TIMEOUT_IN_SECONDS = 60;
+
+    @Autowired
+    private SearchClientService searchClientService;
+
+    private final AtomicLong sentRequests = new AtomicLong();
+
+    private List<PendingGet> pending = new ArrayList<PendingGet>();
+
+    private int requestsInFlight;
+
+    @Override
+    public MultiGetItemResponse get(MultiGetRequest.Item item)
+    {
+        PendingGet pendingGet = new PendingGet(item);
+        List<PendingGet> batch = null;
+        synchronized (this)
+        {
+            pending.add(pendingGet);
+            if(requestsInFlight < MAX_REQUESTS_IN_FLIGHT)
+            {
+                requestsInFlight++;
+                batch = drain();
+            }
+        }
+        if(batch != null)
+        {
+            send(batch);
+        }
+
+        try
+        {
+            return pendingGet.future.get(GET_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException ex)
+        {
+            throw new RuntimeException("Error occurred while getting document: " + item.id(), ex.getCause());
+        } catch (TimeoutException ex)
+        {
+            throw new RuntimeException("Error occurred while getting document, timed out: " + item.id(), ex);
+        } catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Error occurred while getting document, interrupted: " + item.id(), ex);
+        }
+    }
+
+    @Override
+    public long getSentRequestCount()
+    {
+        return sentRequests.get();
+    }
+
+    private synchronized List<PendingGet> drain()
+    {
+        List<PendingGet> batch;
+        if(pending.size() <= MAX_BATCH_SIZE)
+        {
+            batch = pending;
+            pending = new ArrayList<PendingGet>();
+        }
+        else
+        {
+            List<PendingGet> head = pending.subList(0, MAX_BATCH_SIZE);
+            batch = new ArrayList<PendingGet>(head);
+            head.clear();
+        }
+        return batch;
+    }
+
+    private void send(final List<PendingGet> batch)
+    {
+        MultiGetRequest multiGetRequest = new MultiGetRequest();
+        for (PendingGet pendingGet : batch)
+        {
+            multiGetRequest.add(pendingGet.item);
+        }
+        sentRequests.incrementAndGet();
+        logger.debug("Sending {} lookups in one multi get request", batch.size());
+
+        try
+        {
+            searchClientService.getClient().multiGet(multiGetRequest, new ActionListener<MultiGetResponse>()
+            {
+                @Override
+                public void onResponse(MultiGetResponse multiGetResponse)
+                {
+                    //responses are in the order of the items
+                    MultiGetItemResponse[] responses = multiGetResponse.getResponses();
+                    for (int i = 0; i < batch.size(); i++)
+                    {
+                        batch.get(i).future.complete(responses[i]);
+                    }
+                    sendNext();
+                }
+
+                @Override
+                public void onFailure(Exception ex)
+                {
+                    fail(batch, ex);
+                }
+            });
+        } catch (RuntimeException ex)
+        {
+            //no node available or client closed, the listener is never called
+            fail(batch, ex);
+        }
+    }
+
+    private void fail(List<PendingGet> batch, Exception ex)
+    {
+        for (PendingGet pendingGet : batch)
+        {
+            pendingGet.future.completeExceptionally(ex);
+        }
+        sendNext();
+    }
+
+    /**
+     * The slot of a completed request goes to the lookups queued in the meantime.
+     */
+    private void sendNext()
+    {
+        List<PendingGet> batch;
+        synchronized (this)
+        {
+            if(pending.isEmpty())
+            {
+                requestsInFlight--;
+                return;
+            }
+            batch = drain();
+        }
+        send(batch);
+    }
+
+    private static class PendingGet
+    {
+        private final MultiGetRequest.Item item;
+
+        private final CompletableFuture<MultiGetItemResponse> future = new CompletableFuture<MultiGetItemResponse>();
+
+        PendingGet(MultiGetRequest.Item item)
+        {
+            this.item = item;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.jai.search.index;
+
+/**
+ * Notified after documents of an index were written or deleted, or the index behind an alias was replaced. Beans
+ * implementing it are picked up by the indexing and setup services.
+ *
+ * A write of a single document is reported through {@link #onDocumentChanged(String, String)} only, everything else
+ * through {@link #onIndexChanged(String)}. Both are called on the writing thread before the write method returns.
+ */
+public interface IndexChangeListener
+{
+    /**
+     * @param indexName alias name of the index config that changed
+     */
+    void onIndexChanged(String indexName);
+
+    /**
+     * @param indexName alias name of the index config the document was written to or deleted from
+     */
+    void onDocumentChanged(String indexName, String documentId);
+}
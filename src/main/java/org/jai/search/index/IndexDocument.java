@@ -0,0 +1,98 @@
+package org.jai.search.index;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.jai.search.model.ElasticSearchIndexConfig;
+
+/**
+ * Serialized document ready to be sent to the search engine. It is independent of the index config, the document
+ * type is resolved from its kind when the request is created.
+ */
+public class IndexDocument
+{
+    public static enum DocumentKind
+    {
+        PRODUCT_GROUP, PRODUCT, PRODUCT_PROPERTY;
+
+        public String getDocumentType(ElasticSearchIndexConfig config)
+        {
+            switch (this)
+            {
+                case PRODUCT_GROUP:
+                    return config.getGroupDocumentType();
+                case PRODUCT_PROPERTY:
+                    return config.getPropertiesDocumentType();
+                default:
+                    return config.getDocumentType();
+            }
+        }
+    }
+
+    private DocumentKind kind;
+
+    private String id;
+
+    private String parent;
+
+    private String routing;
+
+    private BytesReference source;
+
+    public IndexDocument(DocumentKind kind, String id, BytesReference source)
+    {
+        this.kind = kind;
+        this.id = id;
+        this.source = source;
+    }
+
+    public DocumentKind getKind()
+    {
+        return kind;
+    }
+
+    public String getDocumentType(ElasticSearchIndexConfig config)
+    {
+        return kind.getDocumentType(config);
+    }
+
+    public String getId()
+    {
+        return id;
+    }
+
+    public String getParent()
+    {
+        return parent;
+    }
+
+    public void setParent(String parent)
+    {
+        this.parent = parent;
+    }
+
+    public String getRouting()
+    {
+        return routing;
+    }
+
+    public void setRouting(String routing)
+    {
+        this.routing = routing;
+    }
+
+    public BytesReference getSource()
+    {
+        return source;
+    }
+
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this)
+        .append(kind)
+        .append(id)
+        .append(parent)
+        .append(routing)
+        .toString();
+    }
+}
@@ -1,7 +1,14 @@
 package org.jai.search.index;
 
+import java.io.File;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
+import org.jai.search.model.BulkIndexingReport;
+import org.jai.search.model.BulkIndexingSettings;
 import org.jai.search.model.ElasticSearchIndexConfig;
 import org.jai.search.model.Product;
 import org.jai.search.model.ProductGroup;
@@ -12,9 +19,47 @@ public interface IndexProductData
 
     void indexAllProductGroupData(ElasticSearchIndexConfig config, List<ProductGroup> productGroups, boolean parentRelationship);
 
+    /**
+     * Streams products to the index, flushing bulks as configured in settings. Products are consumed one by one
+     * so the catalog never needs to be held in memory.
+     * Rejected items are retried, items which can not be indexed are written to the dead letter file.
+     * With change detection enabled in settings, only changed products are sent and products missing from the
+     * source are deleted.
+     */
+    BulkIndexingReport indexProducts(ElasticSearchIndexConfig config, Iterator<Product> products, BulkIndexingSettings settings);
+
+    /**
+     * Streams product groups along with their products and product properties to the index.
+     */
+    BulkIndexingReport indexProductGroups(ElasticSearchIndexConfig config, Stream<ProductGroup> productGroups, boolean parentRelationship, BulkIndexingSettings settings);
+
+    /**
+     * Sends documents which are already serialized, the same documents can be indexed for several configs.
+     */
+    BulkIndexingReport indexDocuments(ElasticSearchIndexConfig config, List<IndexDocument> documents, BulkIndexingSettings settings);
+
+    /**
+     * Sends the items of a dead letter file written by an earlier run again. Items failing again are written to the
+     * dead letter file of the settings, or a new one named in the report.
+     */
+    BulkIndexingReport replayDeadLetters(File deadLetterFile, BulkIndexingSettings settings);
+
+    /**
+     * Documents serialized per second by each worker thread during the last bulk indexing run.
+     */
+    Map<String, Double> getSerializationThroughput();
+
     void indexProduct(ElasticSearchIndexConfig config, Product product);
-    
+
+    /**
+     * Checks running at the same time are combined into multi get requests.
+     */
     boolean isProductExists(ElasticSearchIndexConfig config, Long productId);
 
+    /**
+     * Checks all ids with one multi get request, the map is in the order of the ids.
+     */
+    Map<Long, Boolean> existsProducts(ElasticSearchIndexConfig config, Collection<Long> productIds);
+
     void deleteProduct(ElasticSearchIndexConfig config, Long productId);
 }
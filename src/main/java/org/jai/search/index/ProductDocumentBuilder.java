@@ -0,0 +1,289 @@
+package org.jai.search.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.jai.search.index.IndexDocument.DocumentKind;
+import org.jai.search.model.Category;
+import org.jai.search.model.DocumentEncoding;
+import org.jai.search.model.Product;
+import org.jai.search.model.ProductGroup;
+import org.jai.search.model.ProductProperty;
+import org.jai.search.model.SearchDocumentFieldName;
+import org.jai.search.model.SearchFacetName;
+import org.jai.search.model.Specification;
+import org.jai.search.util.SearchDateUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the index documents for products, product groups and product properties. It keeps no state, so a single
+ * instance can be used from multiple threads.
+ *
+ * Documents are always written compact in the configured encoding, pretty printed json is only generated for debug
+ * logging.
+ */
+public class ProductDocumentBuilder
+{
+    private static final Logger logger = LoggerFactory.getLogger(ProductDocumentBuilder.class);
+
+    private final DocumentEncoding documentEncoding;
+
+    public ProductDocumentBuilder()
+    {
+        this(DocumentEncoding.JSON);
+    }
+
+    public ProductDocumentBuilder(DocumentEncoding documentEncoding)
+    {
+        this.documentEncoding = documentEncoding;
+    }
+
+    public DocumentEncoding getDocumentEncoding()
+    {
+        return documentEncoding;
+    }
+
+    public IndexDocument buildProductDocument(Product product)
+    {
+        return new IndexDocument(DocumentKind.PRODUCT, String.valueOf(product.getId()), getXContentBuilderForAProduct(product).bytes());
+    }
+
+    public IndexDocument buildProductPropertyDocument(Product product, ProductProperty productProperty)
+    {
+        String documentId = String.valueOf(product.getId()) + String.valueOf(productProperty.getId()) + "0000";
+        XContentBuilder contentBuilder = getXContentBuilderForAProductProperty(documentId, productProperty);
+
+        return new IndexDocument(DocumentKind.PRODUCT_PROPERTY, documentId, contentBuilder.bytes());
+    }
+
+    public IndexDocument buildProductGroupDocument(ProductGroup productGroup)
+    {
+        XContentBuilder contentBuilder = getXContentBuilderForAProductGroup(productGroup);
+
+        return new IndexDocument(DocumentKind.PRODUCT_GROUP, String.valueOf(productGroup.getId()), contentBuilder.bytes());
+    }
+
+    /**
+     * All documents of a group in index order, the group first followed by each product and its properties. Parent
+     * ids are set when parentRelationship is used, all documents of the group are then routed by the group id so
+     * they are on the same shard as their parents and grandparent.
+     */
+    public List<IndexDocument> buildProductGroupDocuments(ProductGroup productGroup, boolean parentRelationship)
+    {
+        List<IndexDocument> documents = new ArrayList<IndexDocument>();
+        String routing = parentRelationship ? String.valueOf(productGroup.getId()) : null;
+        IndexDocument productGroupDocument = buildProductGroupDocument(productGroup);
+        productGroupDocument.setRouting(routing);
+        documents.add(productGroupDocument);
+        //Index all products data also with parent
+        for (Product product : productGroup.getProducts())
+        {
+            IndexDocument productDocument = buildProductDocument(product);
+            if(parentRelationship)
+            {
+                productDocument.setParent(String.valueOf(productGroup.getId()));
+                productDocument.setRouting(routing);
+            }
+            documents.add(productDocument);
+
+            for (ProductProperty productProperty : product.getProductProperties())
+            {
+                IndexDocument productPropertyDocument = buildProductPropertyDocument(product, productProperty);
+                if(parentRelationship)
+                {
+                    productPropertyDocument.setParent(String.valueOf(product.getId()));
+                    productPropertyDocument.setRouting(routing);
+                }
+                documents.add(productPropertyDocument);
+            }
+        }
+        return documents;
+    }
+
+    private XContentBuilder getXContentBuilderForAProduct(Product product)
+    {
+        XContentBuilder contentBuilder = null;
+        try
+        {
+            contentBuilder = newContentBuilder().startObject();
+
+            contentBuilder.field(SearchDocumentFieldName.TITLE.getFieldName(), product.getTitle())
+                          .field(SearchDocumentFieldName.DESCRIPTION.getFieldName(), product.getDescription())
+                          .field(SearchDocumentFieldName.PRICE.getFieldName(), product.getPrice())
+                          .field(SearchDocumentFieldName.KEYWORDS.getFieldName(), product.getKeywords())
+                          .field(SearchDocumentFieldName.AVAILABLE_DATE.getFieldName(), SearchDateUtils.formatDate(product.getAvailableOn()))
+                          .field(SearchDocumentFieldName.SOLD_OUT.getFieldName(), product.isSoldOut())
+                          .field(SearchDocumentFieldName.BOOSTFACTOR.getFieldName(), product.getBoostFactor())
+                          ;
+
+            if(product.getCategories().size() > 0)
+            {
+                //Add category data
+                Map<Integer, Set<Category>> levelMap = getContentCategoryLevelMap(product.getCategories());
+
+                contentBuilder.startArray(SearchDocumentFieldName.CATEGORIES_ARRAY.getFieldName());
+                for (Entry<Integer, Set<Category>> contentCategoryEntrySet : levelMap.entrySet())
+                {
+                    for (Category category : contentCategoryEntrySet.getValue())
+                    {
+                        String name = category.getType() + SearchFacetName.HIERARCHICAL_DATA_LEVEL_STRING + contentCategoryEntrySet.getKey();
+                        contentBuilder.startObject()
+                        .field(name  + "." + SearchDocumentFieldName.FACET.getFieldName(), category.getName())
+                        //                                    .field(name + SearchFacetName.SEQUENCED_FIELD_SUFFIX, getSequenceNumberOrdering(contentCategory) + categoryTranalationText)
+                        .field(name + "." + SearchDocumentFieldName.FACETFILTER.getFieldName(), category.getName().toLowerCase())
+                        .field(name + "." + SearchDocumentFieldName.SUGGEST.getFieldName(), category.getName().toLowerCase())
+                        .endObject();
+                    }
+                }
+                contentBuilder.endArray();
+            }
+
+           if(product.getSpecifications().size() > 0)
+           {
+               //Index specifications
+               contentBuilder.startArray(SearchDocumentFieldName.SPECIFICATIONS.getFieldName());
+               for (Specification specification : product.getSpecifications())
+               {
+                   contentBuilder.startObject()
+                   .field(SearchDocumentFieldName.RESOLUTION.getFieldName(), specification.getResolution())
+                   .field(SearchDocumentFieldName.MEMORY.getFieldName(), specification.getMemory())
+                   .endObject();
+               }
+               contentBuilder.endArray();
+           }
+
+           contentBuilder.endObject();
+
+           logDocumentForDebug(product.getId(), contentBuilder.bytes());
+        }
+        catch (IOException ex)
+        {
+            logger.error(ex.getMessage());
+            throw new RuntimeException("Error occured while creating product gift json document!", ex);
+        }
+
+        return contentBuilder;
+    }
+
+    private XContentBuilder getXContentBuilderForAProductProperty(String documentId, ProductProperty productProperty)
+    {
+        XContentBuilder contentBuilder = null;
+        try
+        {
+            contentBuilder = newContentBuilder().startObject();
+            contentBuilder.field(SearchDocumentFieldName.SIZE.getFieldName(), productProperty.getSize())
+                          .field(SearchDocumentFieldName.COLOR.getFieldName(), productProperty.getColor())
+                          ;
+            contentBuilder.endObject();
+
+            logDocumentForDebug(documentId, contentBuilder.bytes());
+        }
+        catch (IOException ex)
+        {
+            logger.error(ex.getMessage());
+            throw new RuntimeException("Error occured while creating product gift json document!", ex);
+        }
+        return contentBuilder;
+    }
+
+    private XContentBuilder getXContentBuilderForAProductGroup(ProductGroup productGroup)
+    {
+        XContentBuilder contentBuilder = null;
+        try
+        {
+            contentBuilder = newContentBuilder().startObject();
+
+            contentBuilder.field(SearchDocumentFieldName.TITLEPG.getFieldName(), productGroup.getGroupTitle())
+                          .field(SearchDocumentFieldName.DESCRIPTIONPG.getFieldName(), productGroup.getGroupDescription())
+                          ;
+
+            contentBuilder.endObject();
+
+            logDocumentForDebug(productGroup.getId(), contentBuilder.bytes());
+        }
+        catch (IOException ex)
+        {
+            logger.error(ex.getMessage());
+            throw new RuntimeException("Error occured while creating product gift json document!", ex);
+        }
+        return contentBuilder;
+    }
+
+
+    private XContentBuilder newContentBuilder() throws IOException
+    {
+        return XContentFactory.contentBuilder(documentEncoding.getXContentType());
+    }
+
+    private void logDocumentForDebug(Object documentId, BytesReference source) throws IOException
+    {
+        if(logger.isDebugEnabled())
+        {
+            logger.debug("Generated XContentBuilder for document id {} is {}", new Object[]{documentId, XContentHelper.convertToJson(source, false, true)});
+        }
+    }
+
+    private Map<Integer, Set<Category>> getContentCategoryLevelMap(List<Category> categories)
+    {
+        Map<Integer, Set<Category>> levelMap = new HashMap<Integer, Set<Category>>();
+        for (Category contentCategory : categories)
+        {
+                int defaultTopLevelCategoryIndex = 1;
+                int levelInHierarchy = getCategoryLevelInHierarchy(contentCategory, defaultTopLevelCategoryIndex);
+                for (int categoryLevelCounter = levelInHierarchy; categoryLevelCounter <= levelInHierarchy && categoryLevelCounter >= defaultTopLevelCategoryIndex; categoryLevelCounter--)
+                {
+                    processCategoryAtLevel(levelMap, findCategoryAtLevel(contentCategory, levelInHierarchy, categoryLevelCounter), categoryLevelCounter);
+                }
+        }
+        return levelMap;
+    }
+
+    private Category findCategoryAtLevel(Category contentCategory, int currentCategoryLevel, int counter)
+    {
+        if (currentCategoryLevel == counter)
+        {
+            return contentCategory;
+        }
+        int nextCounter = counter + 1;
+        return findCategoryAtLevel(contentCategory.getParentCategory(), currentCategoryLevel, nextCounter);
+    }
+
+    private int getCategoryLevelInHierarchy(Category contentCategory, int level)
+    {
+        if (contentCategory.getParentCategory() == null)
+        {
+            return level;
+        }
+        int nextLevel = level + 1;
+        return getCategoryLevelInHierarchy(contentCategory.getParentCategory(), nextLevel);
+    }
+
+    private void processCategoryAtLevel(Map<Integer, Set<Category>> levelMap, Category contentCategory, int categoryLevel)
+    {
+        Set<Category> categoryLevelSet = getCategoryLevelSet(levelMap, categoryLevel);
+        categoryLevelSet.add(contentCategory);
+    }
+
+    private Set<Category> getCategoryLevelSet(Map<Integer, Set<Category>> levelMap, int level)
+    {
+        Integer valueOf = Integer.valueOf(level);
+        Set<Category> set = levelMap.get(valueOf);
+        if (set == null)
+        {
+            set = new HashSet<Category>();
+            levelMap.put(valueOf, set);
+        }
+        return set;
+    }
+}
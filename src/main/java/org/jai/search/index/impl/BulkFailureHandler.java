@@ -0,0 +1,331 @@
+package org.jai.search.index.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.DocumentRequest;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+import org.jai.search.model.BulkIndexingReport;
+import org.jai.search.model.BulkIndexingSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bulk listener which looks at every item of a bulk response instead of only logging the failure message.
+ *
+ * Bulks rejected by a busy thread pool are sent again by the bulk processor itself following
+ * {@link #getBackoffPolicy()}, while they hold their slot no new bulk is sent. Items which still fail with a temporary
+ * error are queued, up to the configured limit, and sent again by {@link #retryFailedRequests(Client)} once the bulk
+ * processor is closed, waiting longer before each attempt. Everything else, items not fitting into the queue and
+ * items still failing after the last attempt go to the dead letter spool.
+ */
+class BulkFailureHandler implements BulkProcessor.Listener, Closeable
+{
+    private static final Logger logger = LoggerFactory.getLogger(BulkFailureHandler.class);
+
+    private final BulkIndexingSettings settings;
+
+    private final File deadLetterFile;
+
+    private final DeadLetterSpool deadLetterSpool;
+
+    private final Queue<ActionRequest> retryQueue = new ConcurrentLinkedQueue<ActionRequest>();
+
+    private final AtomicInteger queuedRetries = new AtomicInteger();
+
+    private final AtomicLong succeeded = new AtomicLong();
+
+    private final AtomicLong retried = new AtomicLong();
+
+    private final AtomicLong bulkRetries = new AtomicLong();
+
+    private final AtomicLong deadLettered = new AtomicLong();
+
+    private final Set<String> deadLetteredIds = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param runName starts the name of the dead letter file of this run, unless the settings name a file
+     */
+    BulkFailureHandler(BulkIndexingSettings settings, String runName)
+    {
+        this.settings = settings;
+        this.deadLetterFile = getDeadLetterFile(settings, runName);
+        this.deadLetterSpool = new DeadLetterSpool(deadLetterFile);
+    }
+
+    @Override
+    public void beforeBulk(long executionId, BulkRequest request)
+    {
+        logger.debug("Executing bulk index request {} for size: {}", executionId, request.numberOfActions());
+    }
+
+    @Override
+    public void afterBulk(long executionId, BulkRequest request, BulkResponse response)
+    {
+        logger.debug("Bulk operation {} data index response total items is: {}", executionId, response.getItems().length);
+        handleResponse(request, response, null);
+    }
+
+    @Override
+    public void afterBulk(long executionId, BulkRequest request, Throwable failure)
+    {
+        logger.error("Bulk operation " + executionId + " failed for size: " + request.numberOfActions(), failure);
+        handleFailure(request, failure, null);
+    }
+
+    /**
+     * Waits of the bulk processor before sending a rejected bulk again, doubling from the initial backoff.
+     */
+    BackoffPolicy getBackoffPolicy()
+    {
+        return BackoffPolicy.wrap(new DoublingBackoffPolicy(), new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                bulkRetries.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Sends the queued retriable items again, in bulks of at most bulkActions items, until they succeed or the
+     * configured number of retries is used up. Runs on the calling thread.
+     */
+    void retryFailedRequests(Client client)
+    {
+        List<ActionRequest> pending = new ArrayList<ActionRequest>(retryQueue);
+        retryQueue.clear();
+        queuedRetries.set(0);
+        retried.addAndGet(pending.size());
+
+        for (int attempt = 1; attempt <= settings.getMaxRetries() && !pending.isEmpty(); attempt++)
+        {
+            long backoff = getBackoffInMillis(attempt);
+            logger.debug("Retrying {} failed bulk items, attempt {} after {} ms", new Object[]{pending.size(), attempt, backoff});
+            sleep(backoff);
+
+            List<ActionRequest> stillFailing = new ArrayList<ActionRequest>();
+            for (int from = 0; from < pending.size(); from += settings.getBulkActions())
+            {
+                BulkRequest bulkRequest = new BulkRequest();
+                for (ActionRequest request : pending.subList(from, Math.min(from + settings.getBulkActions(), pending.size())))
+                {
+                    bulkRequest.add(request);
+                }
+                try
+                {
+                    handleResponse(bulkRequest, client.bulk(bulkRequest).actionGet(), stillFailing);
+                } catch (Exception ex)
+                {
+                    logger.error("Retry bulk request failed for size: " + bulkRequest.numberOfActions(), ex);
+                    handleFailure(bulkRequest, ex, stillFailing);
+                }
+            }
+            pending = stillFailing;
+        }
+
+        for (ActionRequest request : pending)
+        {
+            deadLetter(request, "Retries exhausted after " + settings.getMaxRetries() + " attempts");
+        }
+    }
+
+    BulkIndexingReport getReport()
+    {
+        return new BulkIndexingReport().succeeded(succeeded.get())
+                                       .retried(retried.get())
+                                       .bulkRetries(bulkRetries.get())
+                                       .deadLettered(deadLettered.get())
+                                       .deadLetterFile(deadLettered.get() > 0 ? deadLetterFile : null);
+    }
+
+    Set<String> getDeadLetteredIds()
+    {
+        return deadLetteredIds;
+    }
+
+    @Override
+    public void close()
+    {
+        deadLetterSpool.close();
+    }
+
+    private void handleResponse(BulkRequest request, BulkResponse response, Collection<ActionRequest> retries)
+    {
+        if(!response.hasFailures())
+        {
+            succeeded.addAndGet(response.getItems().length);
+            return;
+        }
+        for (BulkItemResponse item : response.getItems())
+        {
+            if(!item.isFailed())
+            {
+                succeeded.incrementAndGet();
+            }
+            else if(isRetriable(item.getFailure().getStatus()))
+            {
+                retry(getItemRequest(request, item), retries);
+            }
+            else
+            {
+                deadLetter(getItemRequest(request, item), item.getFailureMessage());
+            }
+        }
+    }
+
+    /**
+     * Items of bulks sent again by the bulk processor carry their position in the reissued bulk, which only holds the
+     * rejected items, so the position is checked against the document before it is trusted.
+     */
+    private ActionRequest getItemRequest(BulkRequest request, BulkItemResponse item)
+    {
+        List<ActionRequest> requests = request.requests();
+        if(item.getItemId() < requests.size() && isItemRequest(requests.get(item.getItemId()), item))
+        {
+            return requests.get(item.getItemId());
+        }
+        for (ActionRequest itemRequest : requests)
+        {
+            if(isItemRequest(itemRequest, item))
+            {
+                return itemRequest;
+            }
+        }
+        throw new IllegalStateException("No request found in bulk for item: " + item.getIndex() + "/" + item.getType() + "/" + item.getId());
+    }
+
+    private boolean isItemRequest(ActionRequest itemRequest, BulkItemResponse item)
+    {
+        DocumentRequest<?> documentRequest = (DocumentRequest<?>) itemRequest;
+        return item.getId().equals(documentRequest.id()) && item.getType().equals(documentRequest.type());
+    }
+
+    private void handleFailure(BulkRequest request, Throwable failure, Collection<ActionRequest> retries)
+    {
+        boolean retriable = isRetriable(ExceptionsHelper.status(ExceptionsHelper.unwrapCause(failure)));
+        for (ActionRequest itemRequest : request.requests())
+        {
+            if(retriable)
+            {
+                retry(itemRequest, retries);
+            }
+            else
+            {
+                deadLetter(itemRequest, failure.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Adds the item to the given retries, or to the bounded retry queue if they are null.
+     */
+    private void retry(ActionRequest request, Collection<ActionRequest> retries)
+    {
+        if(retries != null)
+        {
+            retries.add(request);
+        }
+        else if(queuedRetries.incrementAndGet() <= settings.getMaxQueuedRetries())
+        {
+            retryQueue.add(request);
+        }
+        else
+        {
+            queuedRetries.decrementAndGet();
+            deadLetter(request, "Retry queue full, " + settings.getMaxQueuedRetries() + " items queued already");
+        }
+    }
+
+    //runs at the same time, even on the same index, never share a file
+    private static File getDeadLetterFile(BulkIndexingSettings settings, String runName)
+    {
+        if(settings.getDeadLetterFile() != null || settings.getDeadLetterDirectory() == null)
+        {
+            return settings.getDeadLetterFile();
+        }
+        return new File(settings.getDeadLetterDirectory(), runName + "-" + System.currentTimeMillis() + "-" + UUID.randomUUID() + ".json");
+    }
+
+    private void deadLetter(ActionRequest request, String reason)
+    {
+        deadLettered.incrementAndGet();
+        deadLetteredIds.add(((DocumentRequest<?>) request).id());
+        deadLetterSpool.write(request, reason);
+    }
+
+    //rejected by a full thread pool or a shard not being available right now
+    private boolean isRetriable(RestStatus status)
+    {
+        return status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.SERVICE_UNAVAILABLE;
+    }
+
+    private long getBackoffInMillis(int attempt)
+    {
+        long backoff = settings.getInitialBackoffInMillis() << Math.min(attempt - 1, 30);
+        return Math.min(backoff, settings.getMaxBackoffInMillis());
+    }
+
+    private void sleep(long millis)
+    {
+        try
+        {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting to retry failed bulk items!", ex);
+        }
+    }
+
+    private class DoublingBackoffPolicy extends BackoffPolicy
+    {
+        @Override
+        public Iterator<TimeValue> iterator()
+        {
+            return new Iterator<TimeValue>()
+            {
+                private int attempt;
+
+                @Override
+                public boolean hasNext()
+                {
+                    return attempt < settings.getMaxRetries();
+                }
+
+                @Override
+                public TimeValue next()
+                {
+                    if(!hasNext())
+                    {
+                        throw new NoSuchElementException("Only " + settings.getMaxRetries() + " retries allowed");
+                    }
+                    attempt++;
+                    return TimeValue.timeValueMillis(getBackoffInMillis(attempt));
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package org.jai.search.index.impl;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends bulk items which could not be indexed to a local file, one json document per line, so they can be
+ * replayed later. Binary sources are converted to json on the way out, the file is always readable.
+ *
+ * The file is only created when the first item is written.
+ */
+class DeadLetterSpool implements Closeable
+{
+    private static final Logger logger = LoggerFactory.getLogger(DeadLetterSpool.class);
+
+    private static final String INDEX = "index";
+    private static final String DELETE = "delete";
+
+    private final File file;
+
+    private Writer writer;
+
+    DeadLetterSpool(File file)
+    {
+        this.file = file;
+    }
+
+    synchronized void write(ActionRequest request, String reason)
+    {
+        if(file == null)
+        {
+            logger.error("Dropping failed bulk item, no dead letter file configured: {}, reason: {}", request, reason);
+            return;
+        }
+        try
+        {
+            if(writer == null)
+            {
+                file.getAbsoluteFile().getParentFile().mkdirs();
+                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+            }
+            writer.write(toLine(request, reason));
+            writer.write('\n');
+        } catch (IOException ex)
+        {
+            logger.error("Error occurred while writing dead letter for request: " + request, ex);
+        }
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        if(writer != null)
+        {
+            try
+            {
+                writer.close();
+            } catch (IOException ex)
+            {
+                logger.error("Error occurred while closing dead letter file: " + file, ex);
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * Reads back the requests written to the given file, in the order they were written.
+     */
+    static void read(File file, Consumer<ActionRequest> consumer)
+    {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                if(!line.trim().isEmpty())
+                {
+                    consumer.accept(fromLine(line));
+                }
+            }
+        } catch (IOException ex)
+        {
+            throw new RuntimeException("Error occurred while reading dead letter file: " + file, ex);
+        }
+    }
+
+    private static String toLine(ActionRequest request, String reason) throws IOException
+    {
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        if(request instanceof IndexRequest)
+        {
+            IndexRequest indexRequest = (IndexRequest) request;
+            builder.field("op", INDEX)
+                   .field("index", indexRequest.index())
+                   .field("type", indexRequest.type())
+                   .field("id", indexRequest.id())
+                   .field("parent", indexRequest.parent())
+                   .field("routing", indexRequest.routing())
+                   .field("reason", reason)
+                   .field("source", XContentHelper.convertToMap(indexRequest.source(), true).v2());
+        }
+        else if(request instanceof DeleteRequest)
+        {
+            DeleteRequest deleteRequest = (DeleteRequest) request;
+            builder.field("op", DELETE)
+                   .field("index", deleteRequest.index())
+                   .field("type", deleteRequest.type())
+                   .field("id", deleteRequest.id())
+                   .field("parent", deleteRequest.parent())
+                   .field("routing", deleteRequest.routing())
+                   .field("reason", reason);
+        }
+        else
+        {
+            throw new IllegalArgumentException("Unsupported bulk request: " + request);
+        }
+        return builder.endObject().string();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ActionRequest fromLine(String line)
+    {
+        Map<String, Object> entry = XContentHelper.convertToMap(new BytesArray(line), true).v2();
+        String index = (String) entry.get("index");
+        String type = (String) entry.get("type");
+        String id = (String) entry.get("id");
+
+        if(DELETE.equals(entry.get("op")))
+        {
+            return new DeleteRequest(index, type, id).parent((String) entry.get("parent")).routing((String) entry.get("routing"));
+        }
+        return new IndexRequest(index, type, id).source((Map<String, Object>) entry.get("source"))
+                                                 .parent((String) entry.get("parent"))
+                                                 .routing((String) entry.get("routing"));
+    }
+}
@@ -0,0 +1,194 @@
+package org.jai.search.index.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.jai.search.index.IndexDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongLongHashMap;
+import com.carrotsearch.hppc.cursors.LongLongCursor;
+
+/**
+ * Content hashes of the documents sent in the last indexing run, keyed by document id. Used to skip documents which
+ * did not change since then and to find the ids which are not part of the source anymore.
+ *
+ * Hashes are kept in a primitive map, 16 bytes per document, and stored in a memory mapped file: an int marker, an
+ * int entry count followed by id and hash pairs. The file is replaced only once a run completed.
+ *
+ * Not thread safe, documents are checked on the thread adding them to the bulk processor. Only conversion failures
+ * are recorded by the serialization threads.
+ */
+class DocumentHashStore
+{
+    private static final Logger logger = LoggerFactory.getLogger(DocumentHashStore.class);
+
+    private static final int MARKER = 0x44485331;
+
+    private static final int HEADER_BYTES = 8;
+
+    private static final int ENTRY_BYTES = 16;
+
+    private final File file;
+
+    private final LongLongHashMap previousHashes;
+
+    private final LongLongHashMap currentHashes;
+
+    //products whose documents could not be created in this run, they are neither changed nor removed
+    private final Set<Long> failedConversionIds = ConcurrentHashMap.newKeySet();
+
+    private final MurmurHash3.Hash128 hash = new MurmurHash3.Hash128();
+
+    private long skipped;
+
+    DocumentHashStore(File file)
+    {
+        this.file = file;
+        this.previousHashes = load(file);
+        this.currentHashes = new LongLongHashMap(previousHashes.size());
+    }
+
+    /**
+     * Records the hash of the document and tells whether it has to be sent, i.e. it is new or its content changed.
+     */
+    boolean isChanged(IndexDocument document)
+    {
+        long id = Long.parseLong(document.getId());
+        long contentHash = getContentHash(document);
+        currentHashes.put(id, contentHash);
+
+        if(previousHashes.containsKey(id) && previousHashes.get(id) == contentHash)
+        {
+            skipped++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The document of the id could not be created, it keeps its previous hash. Thread safe.
+     */
+    void conversionFailed(Long id)
+    {
+        failedConversionIds.add(id);
+    }
+
+    long getSkipped()
+    {
+        return skipped;
+    }
+
+    /**
+     * Ids indexed in the last run which were not seen in this one, and did not fail to convert either.
+     */
+    LongArrayList getRemovedIds()
+    {
+        LongArrayList removedIds = new LongArrayList();
+        for (LongLongCursor cursor : previousHashes)
+        {
+            if(!currentHashes.containsKey(cursor.key) && !failedConversionIds.contains(cursor.key))
+            {
+                removedIds.add(cursor.key);
+            }
+        }
+        return removedIds;
+    }
+
+    /**
+     * Stores the hashes of this run. Documents which could not be indexed or deleted keep their previous state, so
+     * they are picked up again by the next run.
+     */
+    void save(Set<String> failedIds)
+    {
+        for (String failedId : failedIds)
+        {
+            long id = Long.parseLong(failedId);
+            if(previousHashes.containsKey(id))
+            {
+                currentHashes.put(id, previousHashes.get(id));
+            }
+            else
+            {
+                currentHashes.remove(id);
+            }
+        }
+        for (Long id : failedConversionIds)
+        {
+            if(previousHashes.containsKey(id))
+            {
+                currentHashes.put(id, previousHashes.get(id));
+            }
+        }
+        write(file, currentHashes);
+        logger.debug("Stored {} document hashes to {}, skipped {} unchanged documents", new Object[]{currentHashes.size(), file, skipped});
+    }
+
+    private long getContentHash(IndexDocument document)
+    {
+        BytesRef bytes = document.getSource().toBytesRef();
+        return MurmurHash3.hash128(bytes.bytes, bytes.offset, bytes.length, 0, hash).h1;
+    }
+
+    private static LongLongHashMap load(File file)
+    {
+        if(!file.exists())
+        {
+            return new LongLongHashMap();
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+            if(buffer.getInt() != MARKER)
+            {
+                throw new RuntimeException("Not a document hash store file: " + file);
+            }
+            int size = buffer.getInt();
+            LongLongHashMap hashes = new LongLongHashMap(size);
+            for (int i = 0; i < size; i++)
+            {
+                hashes.put(buffer.getLong(), buffer.getLong());
+            }
+            return hashes;
+        } catch (IOException ex)
+        {
+            throw new RuntimeException("Error occurred while reading document hash store: " + file, ex);
+        }
+    }
+
+    private static void write(File file, LongLongHashMap hashes)
+    {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        Path tempFile = new File(file.getPath() + ".tmp").toPath();
+        try
+        {
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 0, HEADER_BYTES + (long) hashes.size() * ENTRY_BYTES);
+                buffer.putInt(MARKER).putInt(hashes.size());
+                for (LongLongCursor cursor : hashes)
+                {
+                    buffer.putLong(cursor.key).putLong(cursor.value);
+                }
+                buffer.force();
+            }
+            Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex)
+        {
+            throw new RuntimeException("Error occurred while writing document hash store: " + file, ex);
+        }
+    }
+}
@@ -1,44 +1,65 @@
 package org.jai.search.index.impl;
 
-import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
-
-import java.io.IOException;
+import java.io.File;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.DocumentRequest;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
 import org.elasticsearch.action.index.IndexRequestBuilder;
-import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.jai.search.client.MultiGetBatcher;
 import org.jai.search.client.SearchClientService;
+import org.jai.search.index.IndexChangeListener;
+import org.jai.search.index.IndexDocument;
 import org.jai.search.index.IndexProductData;
-import org.jai.search.model.Category;
+import org.jai.search.index.ProductDocumentBuilder;
+import org.jai.search.model.BulkIndexingReport;
+import org.jai.search.model.BulkIndexingSettings;
 import org.jai.search.model.ElasticSearchIndexConfig;
 import org.jai.search.model.Product;
 import org.jai.search.model.ProductGroup;
-import org.jai.search.model.ProductProperty;
-import org.jai.search.model.SearchDocumentFieldName;
-import org.jai.search.model.SearchFacetName;
-import org.jai.search.model.Specification;
-import org.jai.search.util.SearchDateUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import com.carrotsearch.hppc.cursors.LongCursor;
+
 @Service
 public class IndexProductDataImpl implements IndexProductData
 {
     @Autowired
     private SearchClientService searchClientService;
+    
+    @Autowired
+    private MultiGetBatcher multiGetBatcher;
+    
+    @Autowired(required = false)
+    private List<IndexChangeListener> indexChangeListeners = Collections.emptyList();
 
     private static final Logger logger = LoggerFactory.getLogger(IndexProductDataImpl.class);
     
+    private final ProductDocumentBuilder productDocumentBuilder = new ProductDocumentBuilder();
+    
+    private volatile Map<String, Double> serializationThroughput = Collections.emptyMap();
+    
     @Override
     public void indexAllProducts(ElasticSearchIndexConfig config, List<Product> products)
     {
@@ -49,19 +70,36 @@ public class IndexProductDataImpl implements IndexProductData
             return;
         }
         
-        List<IndexRequestBuilder> requests = new ArrayList<IndexRequestBuilder>();
-
-        for (Product product : products)
+        indexProducts(config, products.iterator(), new BulkIndexingSettings());
+    }
+    
+    @Override
+    public BulkIndexingReport indexProducts(ElasticSearchIndexConfig config, Iterator<Product> products, BulkIndexingSettings settings)
+    {
+        final ProductDocumentBuilder documentBuilder = new ProductDocumentBuilder(settings.getDocumentEncoding());
+        //hashes describe the index written to, a rebuild index starts without any
+        String indexName = settings.getIndexName() != null ? settings.getIndexName() : config.getIndexAliasName();
+        final DocumentHashStore hashStore = settings.getChangeDetectionDirectory() == null ? null
+                : new DocumentHashStore(new File(settings.getChangeDetectionDirectory(), indexName + ".hashes"));
+        return indexDocuments(config, products, new Function<Product, List<IndexDocument>>()
         {
-            try
-            {
-                requests.add(getIndexRequestBuilderForAProduct(product, config));
-            } catch (Exception ex)
+            @Override
+            public List<IndexDocument> apply(Product product)
             {
-                logger.error("Error occurred while creating index document for product with id: " + product.getId() + ", moving to next product!", ex);
+                try
+                {
+                    return Collections.singletonList(documentBuilder.buildProductDocument(product));
+                } catch (RuntimeException ex)
+                {
+                    //the product is still part of the source, it must not be deleted as removed
+                    if(hashStore != null && product.getId() != null)
+                    {
+                        hashStore.conversionFailed(product.getId());
+                    }
+                    throw ex;
+                }
             }
-        }
-        processBulkRequests(requests);
+        }, settings, hashStore);
     }
     
     @Override
@@ -69,293 +107,295 @@ public class IndexProductDataImpl implements IndexProductData
     {
         try
         {
-            getIndexRequestBuilderForAProduct(product, config).get();
+            getIndexRequestBuilder(config.getIndexAliasName(), config, productDocumentBuilder.buildProductDocument(product)).get();
         } catch (Exception ex)
         {
             logger.error("Error occurred while creating index document for product.", ex);
             throw new RuntimeException(ex);
         }
+        notifyDocumentChanged(config.getIndexAliasName(), String.valueOf(product.getId()));
     }
     
     @Override
     public boolean isProductExists(ElasticSearchIndexConfig config, Long productId)
     {
-        return searchClientService.getClient().prepareGet().setIndex(config.getIndexAliasName())
-                .setId(String.valueOf(productId))
-                .get()
-                .isExists();
+        MultiGetItemResponse itemResponse = multiGetBatcher.get(getExistsItem(config, productId));
+        if(itemResponse.isFailed())
+        {
+            throw new RuntimeException("Error occurred while checking product: " + productId, itemResponse.getFailure().getFailure());
+        }
+        return itemResponse.getResponse().isExists();
+    }
+    
+    @Override
+    public Map<Long, Boolean> existsProducts(ElasticSearchIndexConfig config, Collection<Long> productIds)
+    {
+        Map<Long, Boolean> existingProducts = new LinkedHashMap<Long, Boolean>();
+        if(productIds.isEmpty())
+        {
+            return existingProducts;
+        }
+        
+        MultiGetRequest multiGetRequest = new MultiGetRequest();
+        for (Long productId : productIds)
+        {
+            multiGetRequest.add(getExistsItem(config, productId));
+        }
+        for (MultiGetItemResponse itemResponse : searchClientService.getClient().multiGet(multiGetRequest).actionGet())
+        {
+            if(itemResponse.isFailed())
+            {
+                throw new RuntimeException("Error occurred while checking product: " + itemResponse.getId(), itemResponse.getFailure().getFailure());
+            }
+            existingProducts.put(Long.valueOf(itemResponse.getId()), itemResponse.getResponse().isExists());
+        }
+        return existingProducts;
+    }
+    
+    private MultiGetRequest.Item getExistsItem(ElasticSearchIndexConfig config, Long productId)
+    {
+        //any document type, neither fields nor source are needed
+        return new MultiGetRequest.Item(config.getIndexAliasName(), null, String.valueOf(productId))
+                                  .fetchSourceContext(FetchSourceContext.DO_NOT_FETCH_SOURCE);
     }
     
     @Override
     public void deleteProduct(ElasticSearchIndexConfig config, Long productId)
     {
         searchClientService.getClient().prepareDelete(config.getIndexAliasName(), config.getDocumentType(), String.valueOf(productId)).get();
+        notifyDocumentChanged(config.getIndexAliasName(), String.valueOf(productId));
     }
     
     @Override
     public void indexAllProductGroupData(ElasticSearchIndexConfig config, List<ProductGroup> productGroups, boolean parentRelationShip)
     {
-        List<IndexRequestBuilder> requests = new ArrayList<IndexRequestBuilder>();
-        for (ProductGroup productGroup : productGroups)
+        indexProductGroups(config, productGroups.stream(), parentRelationShip, new BulkIndexingSettings());
+    }
+    
+    @Override
+    public BulkIndexingReport indexProductGroups(ElasticSearchIndexConfig config, Stream<ProductGroup> productGroups, final boolean parentRelationShip, BulkIndexingSettings settings)
+    {
+        final ProductDocumentBuilder documentBuilder = new ProductDocumentBuilder(settings.getDocumentEncoding());
+        //All documents of a group are serialized as one unit, so they are sent in parent-child order
+        return indexDocuments(config, productGroups.iterator(), new Function<ProductGroup, List<IndexDocument>>()
         {
-            try
-            {
-                requests.add(getIndexRequestBuilderForAProductGroup(productGroup, config));
-                //Index all products data also with parent
-                for (Product product : productGroup.getProducts())
-                {
-                    IndexRequestBuilder indexRequestBuilderForAProduct = getIndexRequestBuilderForAProduct(product, config);
-                    if(parentRelationShip)
-                    {
-                        indexRequestBuilderForAProduct.setParent(String.valueOf(productGroup.getId()));
-                    }
-                    
-                    requests.add(indexRequestBuilderForAProduct);
-                    
-                    for (ProductProperty productProperty : product.getProductProperties())
-                    {
-                        IndexRequestBuilder indexRequestBuilderForAProductProperty = getIndexRequestBuilderForAProductProperty(product, productProperty, config);
-                        if(parentRelationShip)
-                        {
-                            indexRequestBuilderForAProductProperty.setParent(String.valueOf(product.getId()));
-                        }
-                        
-                        requests.add(indexRequestBuilderForAProductProperty);
-                    }
-                }
-            } 
-            catch (Exception ex)
+            @Override
+            public List<IndexDocument> apply(ProductGroup productGroup)
             {
-                logger.error("Error occurred while creating index document for gift with id: " + productGroup.getId()
-                        + ", moving to next gift!", ex);
+                return documentBuilder.buildProductGroupDocuments(productGroup, parentRelationShip);
             }
-        }
-        processBulkRequests(requests);
+        }, settings, null);
     }
     
-    private IndexRequestBuilder getIndexRequestBuilderForAProduct(Product product, ElasticSearchIndexConfig config) throws IOException
+    @Override
+    public Map<String, Double> getSerializationThroughput()
     {
-        XContentBuilder contentBuilder = getXContentBuilderForAProduct(product);
-        
-        IndexRequestBuilder indexRequestBuilder = searchClientService.getClient().prepareIndex(config.getIndexAliasName(), config.getDocumentType(), String.valueOf(product.getId()));
-
-        indexRequestBuilder.setSource(contentBuilder);
-
-        return indexRequestBuilder;
+        return serializationThroughput;
     }
     
-    private IndexRequestBuilder getIndexRequestBuilderForAProductProperty(Product product, ProductProperty productProperty, ElasticSearchIndexConfig config) throws IOException
+    @Override
+    public BulkIndexingReport replayDeadLetters(File deadLetterFile, BulkIndexingSettings settings)
     {
-        XContentBuilder contentBuilder = getXContentBuilderForAProductProperty(productProperty);
-        
-        String documentId = String.valueOf(product.getId()) + String.valueOf(productProperty.getId()) + "0000";
-        logger.debug("Generated XContentBuilder for document id {} is {}", new Object[]{documentId, contentBuilder.prettyPrint().string()});
-
-        IndexRequestBuilder indexRequestBuilder = searchClientService.getClient().prepareIndex(config.getIndexAliasName(), config.getPropertiesDocumentType(), documentId);
+        if(!deadLetterFile.exists())
+        {
+            return new BulkIndexingReport();
+        }
+        //moved aside first, items failing again are written to the dead letter file of the settings, which may be the same file
+        File replayFile = new File(deadLetterFile.getPath() + ".replay");
+        if(!deadLetterFile.renameTo(replayFile))
+        {
+            throw new RuntimeException("Could not move dead letter file for replay: " + deadLetterFile);
+        }
 
-        indexRequestBuilder.setSource(contentBuilder);
+        BulkFailureHandler failureHandler = new BulkFailureHandler(settings, "replay");
+        final BulkProcessor bulkProcessor = createBulkProcessor(settings, failureHandler);
+        final Set<String> changedIndices = new HashSet<String>();
+        try
+        {
+            DeadLetterSpool.read(replayFile, new Consumer<ActionRequest>()
+            {
+                @Override
+                public void accept(ActionRequest request)
+                {
+                    changedIndices.add(((DocumentRequest<?>) request).index());
+                    bulkProcessor.add(request);
+                }
+            });
+        }
+        finally
+        {
+            completeBulkRun(bulkProcessor, failureHandler, settings);
+            for (String indexName : changedIndices)
+            {
+                notifyIndexChanged(indexName);
+            }
+        }
+        replayFile.delete();
 
-        return indexRequestBuilder;
+        return failureHandler.getReport();
     }
     
-    private IndexRequestBuilder getIndexRequestBuilderForAProductGroup(ProductGroup productGroup, ElasticSearchIndexConfig config) throws IOException
+    @Override
+    public BulkIndexingReport indexDocuments(ElasticSearchIndexConfig config, List<IndexDocument> documents, BulkIndexingSettings settings)
     {
-        XContentBuilder contentBuilder = getXContentBuilderForAProductGroup(productGroup);
-        
-        logger.debug("Generated XContentBuilder for document id {} is {}", new Object[]{productGroup.getId(), contentBuilder.prettyPrint().string()});
-
-        IndexRequestBuilder indexRequestBuilder = searchClientService.getClient().prepareIndex(config.getIndexAliasName(), config.getGroupDocumentType(), String.valueOf(productGroup.getId()));
-
-        indexRequestBuilder.setSource(contentBuilder);
-
-        return indexRequestBuilder;
+        return sendDocuments(config, Collections.singletonList(documents).iterator(), settings, null);
+    }
+    
+    private <T> BulkIndexingReport indexDocuments(ElasticSearchIndexConfig config, Iterator<T> source, Function<T, List<IndexDocument>> conversion, BulkIndexingSettings settings, DocumentHashStore hashStore)
+    {
+        ParallelDocumentSerializer serializer = new ParallelDocumentSerializer(settings.getSerializationThreads());
+        try
+        {
+            return sendDocuments(config, serializer.serialize(source, conversion), settings, hashStore);
+        }
+        finally
+        {
+            serializer.close();
+            serializationThroughput = serializer.getThroughput();
+        }
     }
     
-    private XContentBuilder getXContentBuilderForAProduct(Product product) throws IOException
+    /**
+     * Sends the documents to the index in bulk. With a hash store only changed documents are sent, and documents
+     * which are not part of the source anymore are deleted.
+     */
+    private BulkIndexingReport sendDocuments(ElasticSearchIndexConfig config, Iterator<List<IndexDocument>> serializedDocuments, BulkIndexingSettings settings, DocumentHashStore hashStore)
     {
-        XContentBuilder contentBuilder = null;
+        String indexName = settings.getIndexName() != null ? settings.getIndexName() : config.getIndexAliasName();
+        BulkFailureHandler failureHandler = new BulkFailureHandler(settings, indexName);
+        BulkProcessor bulkProcessor = createBulkProcessor(settings, failureHandler);
+        List<String> deletedIds = new ArrayList<String>();
         try
         {
-            contentBuilder = jsonBuilder().prettyPrint().startObject();
-            
-            contentBuilder.field(SearchDocumentFieldName.TITLE.getFieldName(), product.getTitle())
-                          .field(SearchDocumentFieldName.DESCRIPTION.getFieldName(), product.getDescription())
-                          .field(SearchDocumentFieldName.PRICE.getFieldName(), product.getPrice())
-                          .field(SearchDocumentFieldName.KEYWORDS.getFieldName(), product.getKeywords())
-                          .field(SearchDocumentFieldName.AVAILABLE_DATE.getFieldName(), SearchDateUtils.formatDate(product.getAvailableOn()))
-                          .field(SearchDocumentFieldName.SOLD_OUT.getFieldName(), product.isSoldOut())
-                          .field(SearchDocumentFieldName.BOOSTFACTOR.getFieldName(), product.getBoostFactor())
-                          ;
-            
-            if(product.getCategories().size() > 0)
+            while (serializedDocuments.hasNext())
             {
-                //Add category data
-                Map<Integer, Set<Category>> levelMap = getContentCategoryLevelMap(product.getCategories());
-                
-                contentBuilder.startArray(SearchDocumentFieldName.CATEGORIES_ARRAY.getFieldName());
-                for (Entry<Integer, Set<Category>> contentCategoryEntrySet : levelMap.entrySet())
+                for (IndexDocument document : serializedDocuments.next())
                 {
-                    for (Category category : contentCategoryEntrySet.getValue())
+                    if(hashStore == null || hashStore.isChanged(document))
                     {
-                        String name = category.getType() + SearchFacetName.HIERARCHICAL_DATA_LEVEL_STRING + contentCategoryEntrySet.getKey();
-                        contentBuilder.startObject()
-                        .field(name  + "." + SearchDocumentFieldName.FACET.getFieldName(), category.getName())
-                        //                                    .field(name + SearchFacetName.SEQUENCED_FIELD_SUFFIX, getSequenceNumberOrdering(contentCategory) + categoryTranalationText)
-                        .field(name + "." + SearchDocumentFieldName.FACETFILTER.getFieldName(), category.getName().toLowerCase())
-                        .field(name + "." + SearchDocumentFieldName.SUGGEST.getFieldName(), category.getName().toLowerCase())
-                        .endObject();
+                        bulkProcessor.add(getIndexRequestBuilder(indexName, config, document).request());
                     }
                 }
-                contentBuilder.endArray();
             }
-            
-           if(product.getSpecifications().size() > 0)
-           {
-               //Index specifications
-               contentBuilder.startArray(SearchDocumentFieldName.SPECIFICATIONS.getFieldName());
-               for (Specification specification : product.getSpecifications())
-               {
-                   contentBuilder.startObject()
-                   .field(SearchDocumentFieldName.RESOLUTION.getFieldName(), specification.getResolution())
-                   .field(SearchDocumentFieldName.MEMORY.getFieldName(), specification.getMemory())
-                   .endObject(); 
-               }
-               contentBuilder.endArray();
-           }
-           
-           contentBuilder.endObject();
+            if(hashStore != null)
+            {
+                for (LongCursor removedId : hashStore.getRemovedIds())
+                {
+                    bulkProcessor.add(searchClientService.getClient().prepareDelete(indexName, config.getDocumentType(), String.valueOf(removedId.value)).request());
+                    deletedIds.add(String.valueOf(removedId.value));
+                }
+            }
         }
-        catch (IOException ex)
+        finally
         {
-            logger.error(ex.getMessage());
-            throw new RuntimeException("Error occured while creating product gift json document!", ex);
+            completeBulkRun(bulkProcessor, failureHandler, settings);
+            notifyIndexChanged(indexName);
         }
-        
-        logger.debug("Generated XContentBuilder for document id {} is {}", new Object[]{product.getId(), contentBuilder.prettyPrint().string()});
-        
-        return contentBuilder;
-    }
 
-    private XContentBuilder getXContentBuilderForAProductProperty(ProductProperty productProperty)
-    {
-        XContentBuilder contentBuilder = null;
-        try
-        {
-            contentBuilder = jsonBuilder().prettyPrint().startObject();
-            contentBuilder.field(SearchDocumentFieldName.SIZE.getFieldName(), productProperty.getSize())
-                          .field(SearchDocumentFieldName.COLOR.getFieldName(), productProperty.getColor())
-                          ;
-            contentBuilder.endObject();
-        }
-        catch (IOException ex)
+        if(hashStore != null)
         {
-            logger.error(ex.getMessage());
-            throw new RuntimeException("Error occured while creating product gift json document!", ex);
+            hashStore.save(failureHandler.getDeadLetteredIds());
+            //deletes which failed are sent again by the next run, they are not counted as done
+            deletedIds.removeAll(failureHandler.getDeadLetteredIds());
+            return failureHandler.getReport().skipped(hashStore.getSkipped()).deleted(deletedIds.size());
         }
-        return contentBuilder;
+        return failureHandler.getReport();
     }
     
-    private XContentBuilder getXContentBuilderForAProductGroup(ProductGroup productGroup)
+    private void completeBulkRun(BulkProcessor bulkProcessor, BulkFailureHandler failureHandler, BulkIndexingSettings settings)
     {
-        XContentBuilder contentBuilder = null;
         try
         {
-            contentBuilder = jsonBuilder().prettyPrint().startObject();
-            
-            contentBuilder.field(SearchDocumentFieldName.TITLEPG.getFieldName(), productGroup.getGroupTitle())
-                          .field(SearchDocumentFieldName.DESCRIPTIONPG.getFieldName(), productGroup.getGroupDescription())
-                          ;
-            
-            contentBuilder.endObject();
+            closeBulkProcessor(bulkProcessor, settings);
+            //all bulks are done now, the ones rejected are sent again
+            failureHandler.retryFailedRequests(searchClientService.getClient());
         }
-        catch (IOException ex)
+        finally
         {
-            logger.error(ex.getMessage());
-            throw new RuntimeException("Error occured while creating product gift json document!", ex);
+            failureHandler.close();
         }
-        return contentBuilder;
-    }
 
-   
-    private Map<Integer, Set<Category>> getContentCategoryLevelMap(List<Category> categories)
-    {
-        Map<Integer, Set<Category>> levelMap = new HashMap<Integer, Set<Category>>();
-        for (Category contentCategory : categories)
+        BulkIndexingReport report = failureHandler.getReport();
+        logger.debug("Bulk indexing completed: {}", report);
+        if(report.getDeadLettered() > 0)
         {
-                int defaultTopLevelCategoryIndex = 1;
-                int levelInHierarchy = getCategoryLevelInHierarchy(contentCategory, defaultTopLevelCategoryIndex);
-                for (int categoryLevelCounter = levelInHierarchy; categoryLevelCounter <= levelInHierarchy && categoryLevelCounter >= defaultTopLevelCategoryIndex; categoryLevelCounter--)
-                {
-                    processCategoryAtLevel(levelMap, findCategoryAtLevel(contentCategory, levelInHierarchy, categoryLevelCounter), categoryLevelCounter);
-                }
+            logger.error("{} bulk items could not be indexed, written to dead letter file: {}", report.getDeadLettered(), report.getDeadLetterFile());
         }
-        return levelMap;
     }
     
-    private Category findCategoryAtLevel(Category contentCategory, int currentCategoryLevel, int counter)
+    private void notifyDocumentChanged(String indexName, String documentId)
     {
-        if (currentCategoryLevel == counter)
+        for (IndexChangeListener indexChangeListener : indexChangeListeners)
         {
-            return contentCategory;
+            try
+            {
+                indexChangeListener.onDocumentChanged(indexName, documentId);
+            } catch (Exception ex)
+            {
+                logger.error("Error occurred while notifying index change listener for document: " + indexName + "/" + documentId, ex);
+            }
         }
-        int nextCounter = counter + 1;
-        return findCategoryAtLevel(contentCategory.getParentCategory(), currentCategoryLevel, nextCounter);
     }
     
-    private int getCategoryLevelInHierarchy(Category contentCategory, int level)
+    private void notifyIndexChanged(String indexName)
     {
-        if (contentCategory.getParentCategory() == null)
+        for (IndexChangeListener indexChangeListener : indexChangeListeners)
         {
-            return level;
+            try
+            {
+                indexChangeListener.onIndexChanged(indexName);
+            } catch (Exception ex)
+            {
+                logger.error("Error occurred while notifying index change listener for index: " + indexName, ex);
+            }
         }
-        int nextLevel = level + 1;
-        return getCategoryLevelInHierarchy(contentCategory.getParentCategory(), nextLevel);
     }
     
-    private void processCategoryAtLevel(Map<Integer, Set<Category>> levelMap, Category contentCategory, int categoryLevel)
+    private IndexRequestBuilder getIndexRequestBuilder(String indexName, ElasticSearchIndexConfig config, IndexDocument document)
     {
-        Set<Category> categoryLevelSet = getCategoryLevelSet(levelMap, categoryLevel);
-        categoryLevelSet.add(contentCategory);
+        IndexRequestBuilder indexRequestBuilder = searchClientService.getClient().prepareIndex(indexName, document.getDocumentType(config), document.getId());
+
+        indexRequestBuilder.setSource(document.getSource());
+        if(document.getParent() != null)
+        {
+            indexRequestBuilder.setParent(document.getParent());
+        }
+        if(document.getRouting() != null)
+        {
+            //set after the parent, which routes by the parent id otherwise
+            indexRequestBuilder.setRouting(document.getRouting());
+        }
+
+        return indexRequestBuilder;
     }
     
-    private Set<Category> getCategoryLevelSet(Map<Integer, Set<Category>> levelMap, int level)
+    protected BulkProcessor createBulkProcessor(BulkIndexingSettings settings, BulkFailureHandler failureHandler)
     {
-        Integer valueOf = Integer.valueOf(level);
-        Set<Category> set = levelMap.get(valueOf);
-        if (set == null)
-        {
-            set = new HashSet<Category>();
-            levelMap.put(valueOf, set);
-        }
-        return set;
+        logger.debug("Creating bulk processor with settings: {}", settings);
+        
+        return BulkProcessor.builder(searchClientService.getClient(), failureHandler)
+                            .setBulkActions(settings.getBulkActions())
+                            .setBulkSize(new ByteSizeValue(settings.getBulkSizeInBytes()))
+                            .setFlushInterval(TimeValue.timeValueMillis(settings.getFlushIntervalInMillis()))
+                            //adding to the processor blocks once this many bulks are in flight
+                            .setConcurrentRequests(settings.getConcurrentRequests())
+                            //rejected bulks are sent again while holding their slot, which slows the load down
+                            .setBackoffPolicy(failureHandler.getBackoffPolicy())
+                            .build();
     }
     
-    protected BulkResponse processBulkRequests(List<IndexRequestBuilder> requests)
+    protected void closeBulkProcessor(BulkProcessor bulkProcessor, BulkIndexingSettings settings)
     {
-        if (requests.size() > 0)
+        try
         {
-            BulkRequestBuilder bulkRequest = searchClientService.getClient().prepareBulk();
-            
-            for (IndexRequestBuilder indexRequestBuilder : requests)
-            {
-                bulkRequest.add(indexRequestBuilder);
-            }
-            
-            logger.debug("Executing bulk index request for size:" + requests.size());
-            BulkResponse bulkResponse = bulkRequest.execute().actionGet();
-            
-            logger.debug("Bulk operation data index response total items is:" + bulkResponse.getItems().length);
-            if (bulkResponse.hasFailures())
+            if(!bulkProcessor.awaitClose(settings.getCloseTimeoutInSeconds(), TimeUnit.SECONDS))
             {
-                // process failures by iterating through each bulk response item
-                logger.error("bulk operation indexing has failures:" + bulkResponse.buildFailureMessage());
+                logger.error("Bulk processor did not complete in flight bulk requests within {} seconds!", settings.getCloseTimeoutInSeconds());
             }
-            return bulkResponse;
-        }
-        else
+        } catch (InterruptedException ex)
         {
-            logger.debug("Executing bulk index request for size: 0");
-            return null;
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for bulk requests to complete!", ex);
         }
     }
     
@@ -0,0 +1,189 @@
+package org.jai.search.index.impl;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.jai.search.index.IndexDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts source objects to index documents on a pool of worker threads.
+ *
+ * Results are handed out in the same order as the source, so documents of a group (parent followed by its children)
+ * stay together and in order. Only a bounded number of conversions run ahead of the consumer, the source is never
+ * read completely into memory.
+ */
+class ParallelDocumentSerializer implements Closeable
+{
+    private static final Logger logger = LoggerFactory.getLogger(ParallelDocumentSerializer.class);
+
+    private static final AtomicInteger poolCounter = new AtomicInteger();
+
+    private final ExecutorService executorService;
+
+    private final int maxPendingConversions;
+
+    private final Map<String, WorkerStatistics> workerStatistics = new ConcurrentHashMap<String, WorkerStatistics>();
+
+    ParallelDocumentSerializer(int workerThreads)
+    {
+        this.executorService = Executors.newFixedThreadPool(workerThreads, new SerializerThreadFactory());
+        this.maxPendingConversions = workerThreads * 4;
+    }
+
+    <T> Iterator<List<IndexDocument>> serialize(final Iterator<T> source, final Function<T, List<IndexDocument>> conversion)
+    {
+        return new Iterator<List<IndexDocument>>()
+        {
+            private final Deque<Future<List<IndexDocument>>> pending = new ArrayDeque<Future<List<IndexDocument>>>();
+
+            @Override
+            public boolean hasNext()
+            {
+                fill();
+                return !pending.isEmpty();
+            }
+
+            @Override
+            public List<IndexDocument> next()
+            {
+                if(!hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                try
+                {
+                    return pending.poll().get();
+                } catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for document serialization!", ex);
+                } catch (ExecutionException ex)
+                {
+                    throw new RuntimeException("Error occurred while serializing documents!", ex.getCause());
+                }
+            }
+
+            private void fill()
+            {
+                while (pending.size() < maxPendingConversions && source.hasNext())
+                {
+                    pending.add(executorService.submit(new ConversionTask<T>(source.next(), conversion)));
+                }
+            }
+        };
+    }
+
+    /**
+     * Documents per second of busy time for each worker thread, keyed by thread name.
+     */
+    Map<String, Double> getThroughput()
+    {
+        Map<String, Double> throughput = new TreeMap<String, Double>();
+        for (Map.Entry<String, WorkerStatistics> entry : workerStatistics.entrySet())
+        {
+            throughput.put(entry.getKey(), entry.getValue().getDocumentsPerSecond());
+        }
+        return throughput;
+    }
+
+    @Override
+    public void close()
+    {
+        executorService.shutdownNow();
+        logger.debug("Document serialization throughput per worker (docs/sec): {}", getThroughput());
+    }
+
+    private WorkerStatistics getWorkerStatistics()
+    {
+        String workerName = Thread.currentThread().getName();
+        WorkerStatistics statistics = workerStatistics.get(workerName);
+        if(statistics == null)
+        {
+            statistics = new WorkerStatistics();
+            workerStatistics.put(workerName, statistics);
+        }
+        return statistics;
+    }
+
+    private class ConversionTask<T> implements Callable<List<IndexDocument>>
+    {
+        private final T item;
+
+        private final Function<T, List<IndexDocument>> conversion;
+
+        ConversionTask(T item, Function<T, List<IndexDocument>> conversion)
+        {
+            this.item = item;
+            this.conversion = conversion;
+        }
+
+        @Override
+        public List<IndexDocument> call()
+        {
+            long start = System.nanoTime();
+            List<IndexDocument> documents = Collections.emptyList();
+            try
+            {
+                documents = conversion.apply(item);
+            } catch (Exception ex)
+            {
+                logger.error("Error occurred while creating index document for: " + item + ", moving to next one!", ex);
+            }
+            getWorkerStatistics().record(documents.size(), System.nanoTime() - start);
+            return documents;
+        }
+    }
+
+    private static class WorkerStatistics
+    {
+        private final AtomicLong documents = new AtomicLong();
+
+        private final AtomicLong busyNanos = new AtomicLong();
+
+        void record(int documentCount, long nanos)
+        {
+            documents.addAndGet(documentCount);
+            busyNanos.addAndGet(nanos);
+        }
+
+        double getDocumentsPerSecond()
+        {
+            long nanos = busyNanos.get();
+            return nanos == 0 ? 0 : documents.get() * 1000000000d / nanos;
+        }
+    }
+
+    private static class SerializerThreadFactory implements ThreadFactory
+    {
+        private final int poolNumber = poolCounter.incrementAndGet();
+
+        private final AtomicInteger threadCounter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "document-serializer-" + poolNumber + "-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
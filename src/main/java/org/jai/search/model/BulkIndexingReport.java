@@ -0,0 +1,121 @@
+package org.jai.search.model;
+
+import java.io.File;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+
+/**
+ * Outcome of a bulk indexing run.
+ *
+ * Every document ends up either succeeded or dead lettered, retried counts the documents which were sent again after
+ * the run and bulkRetries the bulks held back and sent again during the run because documents were rejected. In change detection mode skipped counts the unchanged documents which were not sent
+ * and deleted the documents removed because they are not part of the source anymore. The dead letter file is only set
+ * when documents were dead lettered.
+ */
+public class BulkIndexingReport
+{
+    private long succeeded;
+
+    private long retried;
+
+    private long bulkRetries;
+
+    private long deadLettered;
+
+    private File deadLetterFile;
+
+    private long skipped;
+
+    private long deleted;
+
+    public long getSucceeded()
+    {
+        return succeeded;
+    }
+
+    public BulkIndexingReport succeeded(long succeeded)
+    {
+        this.succeeded = succeeded;
+        return this;
+    }
+
+    public long getRetried()
+    {
+        return retried;
+    }
+
+    public BulkIndexingReport retried(long retried)
+    {
+        this.retried = retried;
+        return this;
+    }
+
+    public long getBulkRetries()
+    {
+        return bulkRetries;
+    }
+
+    public BulkIndexingReport bulkRetries(long bulkRetries)
+    {
+        this.bulkRetries = bulkRetries;
+        return this;
+    }
+
+    public long getDeadLettered()
+    {
+        return deadLettered;
+    }
+
+    public BulkIndexingReport deadLettered(long deadLettered)
+    {
+        this.deadLettered = deadLettered;
+        return this;
+    }
+
+    public File getDeadLetterFile()
+    {
+        return deadLetterFile;
+    }
+
+    public BulkIndexingReport deadLetterFile(File deadLetterFile)
+    {
+        this.deadLetterFile = deadLetterFile;
+        return this;
+    }
+
+    public long getSkipped()
+    {
+        return skipped;
+    }
+
+    public BulkIndexingReport skipped(long skipped)
+    {
+        this.skipped = skipped;
+        return this;
+    }
+
+    public long getDeleted()
+    {
+        return deleted;
+    }
+
+    public BulkIndexingReport deleted(long deleted)
+    {
+        this.deleted = deleted;
+        return this;
+    }
+
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this)
+        .append("succeeded", succeeded)
+        .append("retried", retried)
+        .append("bulkRetries", bulkRetries)
+        .append("deadLettered", deadLettered)
+        .append("deadLetterFile", deadLetterFile)
+        .append("skipped", skipped)
+        .append("deleted", deleted)
+        .toString();
+    }
+}
@@ -0,0 +1,245 @@
+package org.jai.search.model;
+
+import java.io.File;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+
+/**
+ * Flush and concurrency settings used while streaming documents to the search engine in bulk.
+ *
+ * A bulk request is sent as soon as any of the action count, byte size or flush interval limit is reached.
+ * At most concurrentRequests bulks are in flight at the same time, adding more documents blocks the caller
+ * until one of them completes.
+ *
+ * Items rejected with a temporary error (busy thread pool, unavailable shard) are retried up to maxRetries times,
+ * waiting twice as long before each attempt. Rejected bulks are retried while loading, holding their slot so the
+ * load slows down. Other temporary failures are queued and retried after the load, at most maxQueuedRetries of
+ * them. Items which still fail, or do not fit into the queue, are appended to the dead letter file. Unless a file is
+ * set, every run writes to a new file in the dead letter directory, named after the index, which the report of the
+ * run points to.
+ *
+ * With a change detection directory set, products are indexed as a delta against the previous run: unchanged
+ * products are skipped and products missing from the source are deleted. The source then has to contain the
+ * complete catalog.
+ */
+public class BulkIndexingSettings
+{
+    private int bulkActions = 1000;
+
+    private long bulkSizeInBytes = 5 * 1024 * 1024;
+
+    private long flushIntervalInMillis = 5000;
+
+    private int concurrentRequests = 1;
+
+    private long closeTimeoutInSeconds = 300;
+
+    private int serializationThreads = Runtime.getRuntime().availableProcessors();
+
+    private DocumentEncoding documentEncoding = DocumentEncoding.JSON;
+
+    private int maxRetries = 3;
+
+    private long initialBackoffInMillis = 100;
+
+    private long maxBackoffInMillis = 5000;
+
+    private int maxQueuedRetries = 10000;
+
+    private File deadLetterDirectory = new File(System.getProperty("java.io.tmpdir"), "bulk-dead-letters");
+
+    private File deadLetterFile;
+
+    private File changeDetectionDirectory;
+
+    private String indexName;
+
+    public int getBulkActions()
+    {
+        return bulkActions;
+    }
+
+    public BulkIndexingSettings bulkActions(int bulkActions)
+    {
+        this.bulkActions = bulkActions;
+        return this;
+    }
+
+    public long getBulkSizeInBytes()
+    {
+        return bulkSizeInBytes;
+    }
+
+    public BulkIndexingSettings bulkSizeInBytes(long bulkSizeInBytes)
+    {
+        this.bulkSizeInBytes = bulkSizeInBytes;
+        return this;
+    }
+
+    public long getFlushIntervalInMillis()
+    {
+        return flushIntervalInMillis;
+    }
+
+    public BulkIndexingSettings flushIntervalInMillis(long flushIntervalInMillis)
+    {
+        this.flushIntervalInMillis = flushIntervalInMillis;
+        return this;
+    }
+
+    public int getConcurrentRequests()
+    {
+        return concurrentRequests;
+    }
+
+    //0 means bulks are executed synchronously on the calling thread.
+    public BulkIndexingSettings concurrentRequests(int concurrentRequests)
+    {
+        this.concurrentRequests = concurrentRequests;
+        return this;
+    }
+
+    public long getCloseTimeoutInSeconds()
+    {
+        return closeTimeoutInSeconds;
+    }
+
+    public BulkIndexingSettings closeTimeoutInSeconds(long closeTimeoutInSeconds)
+    {
+        this.closeTimeoutInSeconds = closeTimeoutInSeconds;
+        return this;
+    }
+
+    public int getSerializationThreads()
+    {
+        return serializationThreads;
+    }
+
+    //number of worker threads converting products to documents before they are added to bulk requests
+    public BulkIndexingSettings serializationThreads(int serializationThreads)
+    {
+        this.serializationThreads = serializationThreads;
+        return this;
+    }
+
+    public DocumentEncoding getDocumentEncoding()
+    {
+        return documentEncoding;
+    }
+
+    public BulkIndexingSettings documentEncoding(DocumentEncoding documentEncoding)
+    {
+        this.documentEncoding = documentEncoding;
+        return this;
+    }
+
+    public int getMaxRetries()
+    {
+        return maxRetries;
+    }
+
+    public BulkIndexingSettings maxRetries(int maxRetries)
+    {
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    public long getInitialBackoffInMillis()
+    {
+        return initialBackoffInMillis;
+    }
+
+    public BulkIndexingSettings initialBackoffInMillis(long initialBackoffInMillis)
+    {
+        this.initialBackoffInMillis = initialBackoffInMillis;
+        return this;
+    }
+
+    public long getMaxBackoffInMillis()
+    {
+        return maxBackoffInMillis;
+    }
+
+    public BulkIndexingSettings maxBackoffInMillis(long maxBackoffInMillis)
+    {
+        this.maxBackoffInMillis = maxBackoffInMillis;
+        return this;
+    }
+
+    public int getMaxQueuedRetries()
+    {
+        return maxQueuedRetries;
+    }
+
+    public BulkIndexingSettings maxQueuedRetries(int maxQueuedRetries)
+    {
+        this.maxQueuedRetries = maxQueuedRetries;
+        return this;
+    }
+
+    public File getDeadLetterDirectory()
+    {
+        return deadLetterDirectory;
+    }
+
+    public BulkIndexingSettings deadLetterDirectory(File deadLetterDirectory)
+    {
+        this.deadLetterDirectory = deadLetterDirectory;
+        return this;
+    }
+
+    public File getDeadLetterFile()
+    {
+        return deadLetterFile;
+    }
+
+    //json document per line, can be replayed with IndexProductData.replayDeadLetters. Only one run at a time may use a file
+    public BulkIndexingSettings deadLetterFile(File deadLetterFile)
+    {
+        this.deadLetterFile = deadLetterFile;
+        return this;
+    }
+
+    public File getChangeDetectionDirectory()
+    {
+        return changeDetectionDirectory;
+    }
+
+    //directory keeping the document hashes of the last run, one file per index written to, alias or concrete index
+    public BulkIndexingSettings changeDetectionDirectory(File changeDetectionDirectory)
+    {
+        this.changeDetectionDirectory = changeDetectionDirectory;
+        return this;
+    }
+
+    public String getIndexName()
+    {
+        return indexName;
+    }
+
+    //concrete index to write to instead of the alias of the config, used to load a new index before it goes live
+    public BulkIndexingSettings indexName(String indexName)
+    {
+        this.indexName = indexName;
+        return this;
+    }
+
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this)
+        .append(bulkActions)
+        .append(bulkSizeInBytes)
+        .append(flushIntervalInMillis)
+        .append(concurrentRequests)
+        .append(serializationThreads)
+        .append(documentEncoding)
+        .append(maxRetries)
+        .append(maxQueuedRetries)
+        .append(deadLetterDirectory)
+        .append(deadLetterFile)
+        .append(changeDetectionDirectory)
+        .append(indexName)
+        .toString();
+    }
+}
@@ -0,0 +1,108 @@
+package org.jai.search.model;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+
+/**
+ * Point in time statistics of an in-process cache.
+ */
+public class CacheStatistics
+{
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    private long invalidations;
+
+    private int entries;
+
+    private long weight;
+
+    public long getHits()
+    {
+        return hits;
+    }
+
+    public CacheStatistics hits(long hits)
+    {
+        this.hits = hits;
+        return this;
+    }
+
+    public long getMisses()
+    {
+        return misses;
+    }
+
+    public CacheStatistics misses(long misses)
+    {
+        this.misses = misses;
+        return this;
+    }
+
+    //entries removed to stay within the size and weight limits, or because they expired
+    public long getEvictions()
+    {
+        return evictions;
+    }
+
+    public CacheStatistics evictions(long evictions)
+    {
+        this.evictions = evictions;
+        return this;
+    }
+
+    //entries removed because the underlying data changed
+    public long getInvalidations()
+    {
+        return invalidations;
+    }
+
+    public CacheStatistics invalidations(long invalidations)
+    {
+        this.invalidations = invalidations;
+        return this;
+    }
+
+    public int getEntries()
+    {
+        return entries;
+    }
+
+    public CacheStatistics entries(int entries)
+    {
+        this.entries = entries;
+        return this;
+    }
+
+    public long getWeight()
+    {
+        return weight;
+    }
+
+    public CacheStatistics weight(long weight)
+    {
+        this.weight = weight;
+        return this;
+    }
+
+    public double getHitRatio()
+    {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this)
+        .append("hits", hits)
+        .append("misses", misses)
+        .append("evictions", evictions)
+        .append("invalidations", invalidations)
+        .append("entries", entries)
+        .append("weight", weight)
+        .toString();
+    }
+}
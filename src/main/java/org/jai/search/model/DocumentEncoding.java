@@ -0,0 +1,26 @@
+package org.jai.search.model;
+
+import org.elasticsearch.common.xcontent.XContentType;
+
+/**
+ * Content type used for documents sent to the search engine. SMILE and CBOR are binary encodings, smaller on the
+ * wire and cheaper to produce and parse than JSON.
+ */
+public enum DocumentEncoding
+{
+    JSON(XContentType.JSON),
+    SMILE(XContentType.SMILE),
+    CBOR(XContentType.CBOR);
+
+    private XContentType xContentType;
+
+    private DocumentEncoding(XContentType xContentType)
+    {
+        this.xContentType = xContentType;
+    }
+
+    public XContentType getXContentType()
+    {
+        return xContentType;
+    }
+}
@@ -56,10 +56,13 @@ public enum ElasticSearchReservedWords
 	PATH_CONF("path.conf"),
 	NUMBER_OF_SHARDS("index.number_of_shards"), 
 	NUMBER_OF_REPLICAS("index.number_of_replicas"), 
+	REFRESH_INTERVAL("index.refresh_interval"), 
+	TRANSLOG_DURABILITY("index.translog.durability"), 
 	ANALYZER_SIMPLE("simple"), 
 	SYNONYMS_IGNORE_CASE("ignore_case"),
 	SYNONYMS_EXPAND("expand"), 
-	NESTED("nested")
+	NESTED("nested"),
+	EAGER_GLOBAL_ORDINALS("eager_global_ordinals")
 	
 	;
     
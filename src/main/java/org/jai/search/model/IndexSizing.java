@@ -0,0 +1,38 @@
+package org.jai.search.model;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+
+/**
+ * Number of primary shards and replicas of an index.
+ */
+public class IndexSizing
+{
+    private final int numberOfShards;
+
+    private final int numberOfReplicas;
+
+    public IndexSizing(int numberOfShards, int numberOfReplicas)
+    {
+        this.numberOfShards = numberOfShards;
+        this.numberOfReplicas = numberOfReplicas;
+    }
+
+    public int getNumberOfShards()
+    {
+        return numberOfShards;
+    }
+
+    public int getNumberOfReplicas()
+    {
+        return numberOfReplicas;
+    }
+
+    @Override
+    public String toString()
+    {
+        return new ToStringBuilder(this)
+        .append("numberOfShards", numberOfShards)
+        .append("numberOfReplicas", numberOfReplicas)
+        .toString();
+    }
+}
@@ -0,0 +1,34 @@
+package org.jai.search.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Products found for a list of ids, in the order of the ids, and the ids no product was found for.
+ */
+public class ProductLookupResult
+{
+    private List<Product> products = new ArrayList<Product>();
+
+    private List<Long> missingIds = new ArrayList<Long>();
+
+    public List<Product> getProducts()
+    {
+        return products;
+    }
+
+    public void addProduct(Product product)
+    {
+        products.add(product);
+    }
+
+    public List<Long> getMissingIds()
+    {
+        return missingIds;
+    }
+
+    public void addMissingId(Long productId)
+    {
+        missingIds.add(productId);
+    }
+}
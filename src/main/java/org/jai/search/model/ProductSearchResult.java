@@ -10,6 +10,9 @@ public class ProductSearchResult
     private List<Product> products = new ArrayList<Product>();
     
     private List<FacetResult> facets = new ArrayList<FacetResult>();
+    
+    //sort values of the last product, null if the results are not sorted
+    private Object[] nextSearchAfter;
 
     public long getTotalCount()
     {
@@ -45,4 +48,14 @@ public class ProductSearchResult
     {
         facets.add(facet);
     }
+
+    public Object[] getNextSearchAfter()
+    {
+        return nextSearchAfter;
+    }
+
+    public void setNextSearchAfter(Object[] nextSearchAfter)
+    {
+        this.nextSearchAfter = nextSearchAfter;
+    }
 }
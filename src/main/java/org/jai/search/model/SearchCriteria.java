@@ -24,6 +24,12 @@ public class SearchCriteria
     
     private boolean noFacets;
     
+    private boolean facetsOnly;
+    
+    private boolean exactTotalCount = true;
+    
+    private String[] routing;
+    
     private List<String> facets = new ArrayList<String>();
     
     // Used to handle single select in "and" operations
@@ -45,6 +51,14 @@ public class SearchCriteria
     
     private boolean useBoostingFactor;
     
+    //result may be served from the search result cache
+    private boolean cacheable;
+    
+    //pages follow the sort values of the last product of the previous page instead of from
+    private boolean searchAfterPaging;
+    
+    private Object[] searchAfter;
+    
     public SearchCriteria()
     {
         singleSelectFilters = new LinkedHashMap<String, String>();
@@ -131,6 +145,51 @@ public class SearchCriteria
         return this;
     }
     
+    public boolean isFacetsOnly()
+    {
+        return facetsOnly;
+    }
+    
+    /**
+     * Only the facets are requested, no products. Paging and sorting are ignored and the shard request cache is used,
+     * identical criteria are sent to the same shard copies.
+     */
+    public SearchCriteria facetsOnly(boolean facetsOnly)
+    {
+        this.facetsOnly = facetsOnly;
+        return this;
+    }
+    
+    public boolean isExactTotalCount()
+    {
+        return exactTotalCount;
+    }
+    
+    /**
+     * When false, searches sorted newest first without facets only look at recently available products as long as
+     * they fill the page, the total count is then the number of those products.
+     */
+    public SearchCriteria exactTotalCount(boolean exactTotalCount)
+    {
+        this.exactTotalCount = exactTotalCount;
+        return this;
+    }
+    
+    public String[] getRouting()
+    {
+        return routing;
+    }
+    
+    /**
+     * Only the shards holding documents with these routing values are searched. Indices loaded with parent
+     * relationship route all documents of a product group by the group id.
+     */
+    public SearchCriteria routing(String... routing)
+    {
+        this.routing = routing;
+        return this;
+    }
+    
     public List<String> getFacets()
     {
         return facets;
@@ -228,4 +287,42 @@ public class SearchCriteria
         this.useBoostingFactor = useBoostingFactor;
         return this;
     }
+
+    public boolean isCacheable()
+    {
+        return cacheable;
+    }
+
+    public SearchCriteria cacheable(boolean cacheable)
+    {
+        this.cacheable = cacheable;
+        return this;
+    }
+
+    public boolean isSearchAfterPaging()
+    {
+        return searchAfterPaging;
+    }
+
+    /**
+     * Results are sorted with a unique tiebreak and from is ignored. The first page is requested without search
+     * after values, every next page with {@link ProductSearchResult#getNextSearchAfter()} of the page before.
+     */
+    public SearchCriteria searchAfterPaging(boolean searchAfterPaging)
+    {
+        this.searchAfterPaging = searchAfterPaging;
+        return this;
+    }
+
+    public Object[] getSearchAfter()
+    {
+        return searchAfter;
+    }
+
+    public SearchCriteria searchAfter(Object... searchAfter)
+    {
+        this.searchAfter = searchAfter;
+        this.searchAfterPaging = true;
+        return this;
+    }
 }
@@ -27,8 +27,12 @@ public enum SearchDocumentFieldName
     MEMORY("memory"),
     ;
 
-    public static final String[] productQueryFields = {
-        TITLE.getFieldName(),
+    //product search hits are read from these, the source is not fetched
+    public static final String[] productQueryStoredFields = {
+        TITLE.getFieldName()
+    };
+
+    public static final String[] productQueryDocValueFields = {
         PRICE.getFieldName(),
         SOLD_OUT.getFieldName()
     };
@@ -0,0 +1,36 @@
+package org.jai.search.query;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.jai.search.model.AutoSuggestionEntry;
+import org.jai.search.model.ElasticSearchIndexConfig;
+import org.jai.search.model.Product;
+import org.jai.search.model.ProductSearchResult;
+import org.jai.search.model.SearchCriteria;
+
+/**
+ * Non blocking variant of {@link ProductQueryService}. Requests are sent to the cluster right away and the calling
+ * thread returns without waiting for the response.
+ *
+ * Each call takes a timeout in milliseconds, zero or less waits for the response without limit. A timed out future
+ * completes with a {@link java.util.concurrent.TimeoutException}, a cancelled one with a
+ * {@link java.util.concurrent.CancellationException}. The response of a timed out or cancelled request is dropped
+ * when it arrives later.
+ *
+ * Futures are completed on client threads, dependent stages doing more than light work should run on an executor
+ * of the caller.
+ */
+public interface AsyncProductQueryService
+{
+    CompletableFuture<ProductSearchResult> searchProductsAsync(SearchCriteria searchCriteria, long timeoutInMillis);
+
+    /**
+     * Completes with null if the product does not exist.
+     */
+    CompletableFuture<Product> getProductAsync(ElasticSearchIndexConfig config, Long productId, long timeoutInMillis);
+
+    CompletableFuture<List<AutoSuggestionEntry>> getAutoSuggestionsAsync(ElasticSearchIndexConfig config, String queryString, long timeoutInMillis);
+
+    CompletableFuture<List<Product>> findSimilarProductsAsync(ElasticSearchIndexConfig config, String[] fields, Long productId, long timeoutInMillis);
+}
@@ -0,0 +1,33 @@
+package org.jai.search.query;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.jai.search.model.AutoSuggestionEntry;
+import org.jai.search.model.ElasticSearchIndexConfig;
+import org.jai.search.model.Product;
+import org.jai.search.model.ProductSearchResult;
+import org.jai.search.model.SearchCriteria;
+
+/**
+ * Collects searches of different kinds and sends them to the cluster as one multi search request.
+ *
+ * Every added search gets its own future. A failing search only fails its own future, the other searches of the
+ * batch still complete with their results.
+ *
+ * A batch created with a micro batching window sends its queued searches on its own, once the window after the first
+ * queued search elapsed or the batch is full. Such a batch can be shared by callers issuing searches independently.
+ */
+public interface ProductQueryBatch
+{
+    CompletableFuture<ProductSearchResult> searchProducts(SearchCriteria searchCriteria);
+
+    CompletableFuture<List<AutoSuggestionEntry>> getAutoSuggestions(ElasticSearchIndexConfig config, String queryString);
+
+    CompletableFuture<List<Product>> findSimilarProducts(ElasticSearchIndexConfig config, String[] fields, Long productId);
+
+    /**
+     * Sends all queued searches and waits until their futures are completed.
+     */
+    void execute();
+}
@@ -1,22 +1,108 @@
 package org.jai.search.query;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 
 import org.jai.search.model.AutoSuggestionEntry;
+import org.jai.search.model.CacheStatistics;
 import org.jai.search.model.ElasticSearchIndexConfig;
 import org.jai.search.model.Product;
+import org.jai.search.model.ProductLookupResult;
 import org.jai.search.model.ProductSearchResult;
 import org.jai.search.model.SearchCriteria;
 
 public interface ProductQueryService
 {
+    /**
+     * Results of cacheable criteria are served from an in-process cache until the searched indices change or the
+     * entry expires. Identical searches running at the same time are sent to the cluster once and get the same
+     * result.
+     */
     ProductSearchResult searchProducts(SearchCriteria searchCriteria);
 
+    /**
+     * Number of searches answered by an identical search which was already in flight.
+     */
+    long getCoalescedSearchCount();
+
+    CacheStatistics getSearchResultCacheStatistics();
+
+    /**
+     * Statistics of the shard request cache of the index summed over all its shard copies, used by facets only
+     * searches. The weight is its memory size in bytes, entries are not reported.
+     */
+    CacheStatistics getShardRequestCacheStatistics(ElasticSearchIndexConfig config);
+
+    /**
+     * Batch sending its searches when {@link ProductQueryBatch#execute()} is called.
+     */
+    ProductQueryBatch newQueryBatch();
+
+    /**
+     * Batch sending its searches on its own, at the latest the given window after the first queued search or as soon
+     * as the given number of searches is queued.
+     */
+    ProductQueryBatch newMicroBatchingQueryBatch(long windowInMillis, int maxBatchSize);
+
+    /**
+     * Products are served from a near cache until they are written or deleted through {@code IndexProductData}.
+     * Lookups running at the same time are combined into multi get requests.
+     */
     Product getProduct(ElasticSearchIndexConfig config, Long productId);
+
+    /**
+     * Looks all products which are not in the near cache up with one multi get request.
+     */
+    ProductLookupResult getProducts(ElasticSearchIndexConfig config, Collection<Long> productIds);
+
+    /**
+     * Statistics of the product near cache, the weight is its estimated memory footprint in bytes.
+     */
+    CacheStatistics getProductCacheStatistics();
     
+    /**
+     * Answered from a local suggestion index built in the background from the keywords and category suggest values
+     * of the index. Suggestions come from the cluster until the local index is built, and while it is outdated by
+     * changes to the index.
+     */
     List<AutoSuggestionEntry> getAutoSuggestions(ElasticSearchIndexConfig config, String queryString);
 
+    /**
+     * Builds the local suggestion index of the config now and replaces the current one.
+     */
+    void rebuildSuggestionIndex(ElasticSearchIndexConfig config);
+
+    /**
+     * Terms starting with the query string. Results are cached per lower cased query string, a longer query string is
+     * answered from the cached terms of a shorter one when they were not cut off.
+     */
     List<AutoSuggestionEntry> getAutoSuggestionsUsingTermsFacet(ElasticSearchIndexConfig config, String string);
 
+    CacheStatistics getPrefixSuggestionCacheStatistics();
+
+    /**
+     * Served from the similar products computed by {@link #precomputeSimilarProducts(ElasticSearchIndexConfig, String[])}
+     * when there are any for the product and fields, otherwise a more like this query is run.
+     */
     List<Product> findSimilarProducts(ElasticSearchIndexConfig config, String[] fields, Long productId);
+
+    /**
+     * Computes the similar products of every product of the index for the given fields and replaces the ones computed
+     * before, returns the number of products computed. A written product is served by the more like this query again
+     * until it is recomputed.
+     */
+    int precomputeSimilarProducts(ElasticSearchIndexConfig config, String[] fields);
+
+    /**
+     * Recomputes the similar products of the products written since they were computed for the given fields, returns
+     * the number of products recomputed.
+     */
+    int refreshSimilarProducts(ElasticSearchIndexConfig config, String[] fields);
+
+    /**
+     * All products matching the query and filters of the criteria, fetched lazily in batches of the given size while
+     * the stream is consumed. Paging, sorting and facets of the criteria are ignored.
+     */
+    Stream<Product> exportProducts(SearchCriteria searchCriteria, int batchSize);
 }
@@ -0,0 +1,97 @@
+package org.jai.search.query.impl;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+
+/**
+ * Sends requests through the client's listener callbacks and exposes the converted response as a future.
+ *
+ * Timeouts and other delayed work are run by a single scheduler thread, no thread waits for a response.
+ */
+class AsyncRequestExecutor
+{
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    AsyncRequestExecutor()
+    {
+        scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "search-request-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        //most requests finish in time, their timeouts should not pile up in the queue
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    <R extends ActionResponse, V> CompletableFuture<V> execute(ActionRequestBuilder<?, R, ?> requestBuilder, final Function<R, V> conversion,
+            final long timeoutInMillis)
+    {
+        final CompletableFuture<V> future = new CompletableFuture<V>();
+        requestBuilder.execute(new ActionListener<R>()
+        {
+            @Override
+            public void onResponse(R response)
+            {
+                if(future.isDone())
+                {
+                    //timed out or cancelled in the meantime
+                    return;
+                }
+                try
+                {
+                    future.complete(conversion.apply(response));
+                } catch (RuntimeException ex)
+                {
+                    future.completeExceptionally(ex);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception ex)
+            {
+                future.completeExceptionally(ex);
+            }
+        });
+
+        if(timeoutInMillis > 0 && !future.isDone())
+        {
+            final ScheduledFuture<?> timeout = scheduler.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    future.completeExceptionally(new TimeoutException("No response within " + timeoutInMillis + " ms"));
+                }
+            }, timeoutInMillis, TimeUnit.MILLISECONDS);
+            future.whenComplete(new BiConsumer<V, Throwable>()
+            {
+                @Override
+                public void accept(V value, Throwable throwable)
+                {
+                    timeout.cancel(false);
+                }
+            });
+        }
+        return future;
+    }
+
+    ScheduledFuture<?> schedule(Runnable task, long delayInMillis)
+    {
+        return scheduler.schedule(task, delayInMillis, TimeUnit.MILLISECONDS);
+    }
+}
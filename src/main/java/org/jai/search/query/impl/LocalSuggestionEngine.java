@@ -0,0 +1,270 @@
+package org.jai.search.query.impl;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.index.mapper.SourceFieldMapper;
+import org.elasticsearch.search.SearchHit;
+import org.jai.search.model.AutoSuggestionEntry;
+import org.jai.search.model.ElasticSearchIndexConfig;
+import org.jai.search.model.SearchCriteria;
+import org.jai.search.model.SearchDocumentFieldName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answers suggestion lookups from a {@link LocalSuggestionIndex} per index config, built from the keywords and
+ * category suggest values of all documents.
+ *
+ * Indices are built and rebuilt by a background thread, a rebuilt index replaces the old one in a single step.
+ * Lookups against a missing, empty or stale index return null and the caller asks the cluster instead. An index is
+ * stale once its documents changed after it was read, or when it was not rebuilt for too long.
+ */
+class LocalSuggestionEngine
+{
+    private static final Logger logger = LoggerFactory.getLogger(LocalSuggestionEngine.class);
+
+    private static final int BUILD_BATCH_SIZE = 500;
+
+    private final ProductQueryServiceImpl productQueryService;
+
+    private final long rebuildIntervalInMillis;
+
+    private final long rebuildDelayInMillis;
+
+    private final ScheduledThreadPoolExecutor builder;
+
+    private final Map<String, LocalSuggestionIndex> indices = new ConcurrentHashMap<String, LocalSuggestionIndex>();
+
+    //bumped on every change of the documents behind an alias
+    private final Map<String, AtomicLong> changeVersions = new ConcurrentHashMap<String, AtomicLong>();
+
+    //next build per alias, guarded by this
+    private final Map<String, ScheduledFuture<?>> scheduledBuilds = new HashMap<String, ScheduledFuture<?>>();
+
+    /**
+     * @param rebuildDelayInMillis wait after a change before rebuilding, longer than the refresh interval so the
+     * rebuild sees the change
+     */
+    LocalSuggestionEngine(ProductQueryServiceImpl productQueryService, long rebuildIntervalInMillis, long rebuildDelayInMillis)
+    {
+        this.productQueryService = productQueryService;
+        this.rebuildIntervalInMillis = rebuildIntervalInMillis;
+        this.rebuildDelayInMillis = rebuildDelayInMillis;
+        this.builder = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "suggestion-index-builder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Suggestions from the local index, null if it can not answer. A build is scheduled when there is no index yet.
+     */
+    List<AutoSuggestionEntry> lookup(ElasticSearchIndexConfig config, String queryString, int size)
+    {
+        String indexName = config.getIndexAliasName();
+        LocalSuggestionIndex index = indices.get(indexName);
+        if(index == null)
+        {
+            scheduleBuild(config, 0);
+            return null;
+        }
+        if(index.getVersion() != getChangeVersion(indexName).get()
+                || System.currentTimeMillis() - index.getBuiltAtInMillis() > 2 * rebuildIntervalInMillis
+                || index.getCount() == 0)
+        {
+            return null;
+        }
+        return index.lookup(queryString, size);
+    }
+
+    /**
+     * Builds the index of the config on the calling thread and replaces the current one.
+     */
+    void rebuild(ElasticSearchIndexConfig config)
+    {
+        String indexName = config.getIndexAliasName();
+        //taken before reading, changes made while reading leave the new index stale
+        long version = getChangeVersion(indexName).get();
+        long start = System.currentTimeMillis();
+
+        Map<String, Long> documentCounts = new HashMap<String, Long>();
+        Map<String, String> displayTexts = new HashMap<String, String>();
+        SearchCriteria searchCriteria = new SearchCriteria().indices(indexName).documentTypes(config.getDocumentType());
+        Object[] searchAfter = null;
+        SearchHit[] hits;
+        do
+        {
+            //source instead of the stored product fields of an export
+            hits = productQueryService.prepareExport(searchCriteria, BUILD_BATCH_SIZE, searchAfter)
+                                      .storedFields(SourceFieldMapper.NAME)
+                                      .setFetchSource(new String[]{SearchDocumentFieldName.KEYWORDS.getFieldName(),
+                                                                   SearchDocumentFieldName.CATEGORIES_ARRAY.getFieldName()}, null)
+                                      .get().getHits().getHits();
+            for (SearchHit searchHit : hits)
+            {
+                addDocumentTexts(searchHit.getSource(), documentCounts, displayTexts);
+            }
+            if(hits.length > 0)
+            {
+                searchAfter = hits[hits.length - 1].getSortValues();
+            }
+        } while (hits.length == BUILD_BATCH_SIZE);
+
+        LocalSuggestionIndex index = LocalSuggestionIndex.build(documentCounts, displayTexts, version);
+        indices.put(indexName, index);
+        logger.debug("Suggestion index for {} built with {} texts, {} bytes in {} ms", new Object[]{indexName, index.getCount(), index.ramBytesUsed(),
+                                                                                                  System.currentTimeMillis() - start});
+    }
+
+    void onIndexChanged(String indexName)
+    {
+        getChangeVersion(indexName).incrementAndGet();
+        if(indices.containsKey(indexName))
+        {
+            ElasticSearchIndexConfig config = getConfig(indexName);
+            if(config != null)
+            {
+                scheduleBuild(config, rebuildDelayInMillis);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addDocumentTexts(Map<String, Object> source, Map<String, Long> documentCounts, Map<String, String> displayTexts)
+    {
+        if(source == null)
+        {
+            return;
+        }
+        //a text found several times in a document counts once
+        Map<String, String> documentTexts = new HashMap<String, String>();
+        Object keywords = source.get(SearchDocumentFieldName.KEYWORDS.getFieldName());
+        if(keywords instanceof List)
+        {
+            for (Object keyword : (List<Object>) keywords)
+            {
+                addText(documentTexts, keyword);
+            }
+        }
+        Object categories = source.get(SearchDocumentFieldName.CATEGORIES_ARRAY.getFieldName());
+        if(categories instanceof List)
+        {
+            for (Object category : (List<Object>) categories)
+            {
+                for (Map.Entry<String, Object> field : ((Map<String, Object>) category).entrySet())
+                {
+                    if(field.getKey().endsWith("." + SearchDocumentFieldName.SUGGEST.getFieldName()))
+                    {
+                        addText(documentTexts, field.getValue());
+                    }
+                }
+            }
+        }
+
+        for (Map.Entry<String, String> text : documentTexts.entrySet())
+        {
+            Long count = documentCounts.get(text.getKey());
+            documentCounts.put(text.getKey(), count == null ? 1 : count + 1);
+            if(!text.getKey().equals(text.getValue()) && !displayTexts.containsKey(text.getKey()))
+            {
+                displayTexts.put(text.getKey(), text.getValue());
+            }
+        }
+    }
+
+    private void addText(Map<String, String> documentTexts, Object value)
+    {
+        if(value == null || value.toString().isEmpty())
+        {
+            return;
+        }
+        String text = value.toString();
+        String key = text.toLowerCase();
+        if(!documentTexts.containsKey(key))
+        {
+            documentTexts.put(key, text);
+        }
+    }
+
+    /**
+     * Keeps one scheduled build per alias, the earlier one wins.
+     */
+    private synchronized void scheduleBuild(final ElasticSearchIndexConfig config, long delayInMillis)
+    {
+        final String indexName = config.getIndexAliasName();
+        ScheduledFuture<?> scheduledBuild = scheduledBuilds.get(indexName);
+        if(scheduledBuild != null)
+        {
+            if(scheduledBuild.getDelay(TimeUnit.MILLISECONDS) <= delayInMillis)
+            {
+                return;
+            }
+            scheduledBuild.cancel(false);
+        }
+        scheduledBuilds.put(indexName, builder.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                //changes arriving from here on schedule another build
+                buildStarted(indexName);
+                try
+                {
+                    rebuild(config);
+                } catch (Exception ex)
+                {
+                    logger.error("Error occurred while building suggestion index for: " + indexName, ex);
+                    return;
+                }
+                scheduleBuild(config, rebuildIntervalInMillis);
+            }
+        }, delayInMillis, TimeUnit.MILLISECONDS));
+    }
+
+    private synchronized void buildStarted(String indexName)
+    {
+        ScheduledFuture<?> scheduledBuild = scheduledBuilds.get(indexName);
+        //a build scheduled while this one was starting is kept
+        if(scheduledBuild != null && scheduledBuild.getDelay(TimeUnit.MILLISECONDS) <= 0)
+        {
+            scheduledBuilds.remove(indexName);
+        }
+    }
+
+    private AtomicLong getChangeVersion(String indexName)
+    {
+        AtomicLong changeVersion = changeVersions.get(indexName);
+        if(changeVersion == null)
+        {
+            changeVersions.putIfAbsent(indexName, new AtomicLong());
+            changeVersion = changeVersions.get(indexName);
+        }
+        return changeVersion;
+    }
+
+    private ElasticSearchIndexConfig getConfig(String indexName)
+    {
+        for (ElasticSearchIndexConfig config : ElasticSearchIndexConfig.values())
+        {
+            if(config.getIndexAliasName().equals(indexName))
+            {
+                return config;
+            }
+        }
+        return null;
+    }
+}
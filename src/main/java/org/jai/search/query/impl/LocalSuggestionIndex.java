@@ -0,0 +1,150 @@
+package org.jai.search.query.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.lucene.search.suggest.InputIterator;
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
+import org.apache.lucene.search.suggest.fst.WFSTCompletionLookup;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.jai.search.model.AutoSuggestionEntry;
+
+/**
+ * Immutable weighted prefix index of suggestion texts, held in a finite state transducer. Lookups return the texts
+ * starting with the given prefix, the ones found in the most documents first.
+ *
+ * Texts are matched lower cased and returned in the form they were first seen in.
+ */
+final class LocalSuggestionIndex
+{
+    private final WFSTCompletionLookup lookup;
+
+    //only texts whose returned form differs from the lower cased one
+    private final Map<String, String> displayTexts;
+
+    private final long version;
+
+    private final long builtAtInMillis;
+
+    private LocalSuggestionIndex(WFSTCompletionLookup lookup, Map<String, String> displayTexts, long version)
+    {
+        this.lookup = lookup;
+        this.displayTexts = displayTexts;
+        this.version = version;
+        this.builtAtInMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * @param documentCounts lower cased text to the number of documents containing it
+     * @param version change version of the index the texts were read at
+     */
+    static LocalSuggestionIndex build(final Map<String, Long> documentCounts, Map<String, String> displayTexts, long version)
+    {
+        WFSTCompletionLookup lookup = new WFSTCompletionLookup(new RAMDirectory(), "suggestions");
+        final Iterator<Entry<String, Long>> entries = documentCounts.entrySet().iterator();
+        try
+        {
+            lookup.build(new InputIterator()
+            {
+                private long weight;
+
+                @Override
+                public BytesRef next() throws IOException
+                {
+                    if(!entries.hasNext())
+                    {
+                        return null;
+                    }
+                    Entry<String, Long> entry = entries.next();
+                    weight = entry.getValue();
+                    return new BytesRef(entry.getKey());
+                }
+
+                @Override
+                public long weight()
+                {
+                    return weight;
+                }
+
+                @Override
+                public BytesRef payload()
+                {
+                    return null;
+                }
+
+                @Override
+                public boolean hasPayloads()
+                {
+                    return false;
+                }
+
+                @Override
+                public Set<BytesRef> contexts()
+                {
+                    return null;
+                }
+
+                @Override
+                public boolean hasContexts()
+                {
+                    return false;
+                }
+            });
+        } catch (IOException ex)
+        {
+            throw new RuntimeException("Error occurred while building suggestion index", ex);
+        }
+        return new LocalSuggestionIndex(lookup, displayTexts, version);
+    }
+
+    List<AutoSuggestionEntry> lookup(String prefix, int size)
+    {
+        if(lookup.getCount() == 0)
+        {
+            return Collections.emptyList();
+        }
+        List<LookupResult> results;
+        try
+        {
+            results = lookup.lookup(prefix.toLowerCase(), false, size);
+        } catch (IOException ex)
+        {
+            throw new RuntimeException("Error occurred while looking up suggestions for: " + prefix, ex);
+        }
+        List<AutoSuggestionEntry> suggestions = new ArrayList<AutoSuggestionEntry>(results.size());
+        for (LookupResult result : results)
+        {
+            String text = result.key.toString();
+            String displayText = displayTexts.get(text);
+            suggestions.add(new AutoSuggestionEntry(displayText == null ? text : displayText, (int) result.value));
+        }
+        return suggestions;
+    }
+
+    long getCount()
+    {
+        return lookup.getCount();
+    }
+
+    long getVersion()
+    {
+        return version;
+    }
+
+    long getBuiltAtInMillis()
+    {
+        return builtAtInMillis;
+    }
+
+    long ramBytesUsed()
+    {
+        return lookup.ramBytesUsed();
+    }
+}
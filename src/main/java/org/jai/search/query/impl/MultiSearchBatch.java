@@ -0,0 +1,248 @@
+package org.jai.search.query.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Function;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.jai.search.model.AutoSuggestionEntry;
+import org.jai.search.model.ElasticSearchIndexConfig;
+import org.jai.search.model.Product;
+import org.jai.search.model.ProductSearchResult;
+import org.jai.search.model.SearchCriteria;
+import org.jai.search.query.ProductQueryBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Requests are built and responses converted by the query service, this class only queues the searches and maps the
+ * multi search response items back to them in order.
+ *
+ * Without a window searches are only sent by {@link #execute()}. With a window the first queued search schedules a
+ * send, a full batch is sent right away.
+ */
+class MultiSearchBatch implements ProductQueryBatch
+{
+    private static final Logger logger = LoggerFactory.getLogger(MultiSearchBatch.class);
+
+    private final Client client;
+
+    private final ProductQueryServiceImpl productQueryService;
+
+    private final AsyncRequestExecutor asyncRequestExecutor;
+
+    private final long windowInMillis;
+
+    private final int maxBatchSize;
+
+    private List<BatchItem<?>> pending = new ArrayList<BatchItem<?>>();
+
+    private ScheduledFuture<?> scheduledSend;
+
+    MultiSearchBatch(Client client, ProductQueryServiceImpl productQueryService, AsyncRequestExecutor asyncRequestExecutor, long windowInMillis,
+            int maxBatchSize)
+    {
+        this.client = client;
+        this.productQueryService = productQueryService;
+        this.asyncRequestExecutor = asyncRequestExecutor;
+        this.windowInMillis = windowInMillis;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    @Override
+    public CompletableFuture<ProductSearchResult> searchProducts(SearchCriteria searchCriteria)
+    {
+        ProductSearchResult cachedSearchResult = productQueryService.getCachedSearchResult(searchCriteria);
+        if(cachedSearchResult != null)
+        {
+            return CompletableFuture.completedFuture(cachedSearchResult);
+        }
+        return add(productQueryService.prepareSearch(searchCriteria), productQueryService.getSearchResultConversion(searchCriteria));
+    }
+
+    @Override
+    public CompletableFuture<List<AutoSuggestionEntry>> getAutoSuggestions(ElasticSearchIndexConfig config, String queryString)
+    {
+        List<AutoSuggestionEntry> localSuggestions = productQueryService.getLocalAutoSuggestions(config, queryString);
+        if(localSuggestions != null)
+        {
+            return CompletableFuture.completedFuture(localSuggestions);
+        }
+        return add(productQueryService.prepareAutoSuggestions(config, queryString), new Function<SearchResponse, List<AutoSuggestionEntry>>()
+        {
+            @Override
+            public List<AutoSuggestionEntry> apply(SearchResponse suggestResponse)
+            {
+                return productQueryService.getAutoSuggestions(suggestResponse);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Product>> findSimilarProducts(ElasticSearchIndexConfig config, String[] fields, Long productId)
+    {
+        List<Product> precomputedSimilarProducts = productQueryService.getPrecomputedSimilarProducts(config, fields, productId);
+        if(precomputedSimilarProducts != null)
+        {
+            return CompletableFuture.completedFuture(precomputedSimilarProducts);
+        }
+        return add(productQueryService.prepareSimilarProducts(config, fields, productId), new Function<SearchResponse, List<Product>>()
+        {
+            @Override
+            public List<Product> apply(SearchResponse searchResponse)
+            {
+                return productQueryService.getSimilarProducts(searchResponse);
+            }
+        });
+    }
+
+    @Override
+    public void execute()
+    {
+        List<BatchItem<?>> items = drain();
+        send(items);
+        for (BatchItem<?> item : items)
+        {
+            try
+            {
+                item.future.join();
+            } catch (CompletionException ex)
+            {
+                //reported to the caller through the future of the item
+            }
+        }
+    }
+
+    private <V> CompletableFuture<V> add(SearchRequestBuilder requestBuilder, Function<SearchResponse, V> conversion)
+    {
+        BatchItem<V> item = new BatchItem<V>(requestBuilder, conversion);
+        List<BatchItem<?>> fullBatch = null;
+        synchronized (this)
+        {
+            pending.add(item);
+            if(windowInMillis > 0)
+            {
+                if(pending.size() >= maxBatchSize)
+                {
+                    fullBatch = drain();
+                }
+                else if(scheduledSend == null)
+                {
+                    scheduledSend = asyncRequestExecutor.schedule(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            send(drain());
+                        }
+                    }, windowInMillis);
+                }
+            }
+        }
+        if(fullBatch != null)
+        {
+            send(fullBatch);
+        }
+        return item.future;
+    }
+
+    private synchronized List<BatchItem<?>> drain()
+    {
+        if(scheduledSend != null)
+        {
+            scheduledSend.cancel(false);
+            scheduledSend = null;
+        }
+        List<BatchItem<?>> items = pending;
+        pending = new ArrayList<BatchItem<?>>();
+        return items;
+    }
+
+    private void send(final List<BatchItem<?>> items)
+    {
+        if(items.isEmpty())
+        {
+            return;
+        }
+        MultiSearchRequestBuilder multiSearchRequestBuilder = client.prepareMultiSearch();
+        for (BatchItem<?> item : items)
+        {
+            multiSearchRequestBuilder.add(item.requestBuilder);
+        }
+        logger.debug("Sending {} searches in one multi search request", items.size());
+
+        try
+        {
+            multiSearchRequestBuilder.execute(new ActionListener<MultiSearchResponse>()
+            {
+                @Override
+                public void onResponse(MultiSearchResponse multiSearchResponse)
+                {
+                    //items of the response are in the order of the requests
+                    MultiSearchResponse.Item[] responses = multiSearchResponse.getResponses();
+                    for (int i = 0; i < items.size(); i++)
+                    {
+                        items.get(i).complete(responses[i]);
+                    }
+                }
+
+                @Override
+                public void onFailure(Exception ex)
+                {
+                    fail(items, ex);
+                }
+            });
+        } catch (RuntimeException ex)
+        {
+            //no node available or client closed, the listener is never called
+            fail(items, ex);
+        }
+    }
+
+    private void fail(List<BatchItem<?>> items, Exception ex)
+    {
+        for (BatchItem<?> item : items)
+        {
+            item.future.completeExceptionally(ex);
+        }
+    }
+
+    private static class BatchItem<V>
+    {
+        private final SearchRequestBuilder requestBuilder;
+
+        private final Function<SearchResponse, V> conversion;
+
+        private final CompletableFuture<V> future = new CompletableFuture<V>();
+
+        BatchItem(SearchRequestBuilder requestBuilder, Function<SearchResponse, V> conversion)
+        {
+            this.requestBuilder = requestBuilder;
+            this.conversion = conversion;
+        }
+
+        void complete(MultiSearchResponse.Item response)
+        {
+            if(response.isFailure())
+            {
+                future.completeExceptionally(response.getFailure());
+                return;
+            }
+            try
+            {
+                future.complete(conversion.apply(response.getResponse()));
+            } catch (RuntimeException ex)
+            {
+                future.completeExceptionally(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.jai.search.query.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+import org.jai.search.model.AutoSuggestionEntry;
+import org.jai.search.model.CacheStatistics;
+
+/**
+ * Cache of suggestion terms per index and lower cased prefix.
+ *
+ * The terms of a prefix are a subset of the terms of any shorter prefix of it. A prefix which is not cached is
+ * answered from the longest cached shorter prefix whose result holds all of its terms, by keeping the terms starting
+ * with the prefix. Results cut off at the requested size can only answer their own prefix.
+ */
+class PrefixSuggestionCache
+{
+    private final SearchResultCache<PrefixSuggestions> cache;
+
+    private long hits;
+
+    private long misses;
+
+    PrefixSuggestionCache(int maxEntries, long maxWeight, long timeToLiveInMillis)
+    {
+        this.cache = new SearchResultCache<PrefixSuggestions>(maxEntries, maxWeight, timeToLiveInMillis, new ToLongFunction<PrefixSuggestions>()
+        {
+            @Override
+            public long applyAsLong(PrefixSuggestions prefixSuggestions)
+            {
+                return 1 + prefixSuggestions.suggestions.size();
+            }
+        });
+    }
+
+    /**
+     * Copy of the cached suggestions of the prefix, null if neither the prefix nor a shorter one can answer it.
+     */
+    List<AutoSuggestionEntry> get(String indexName, String prefix)
+    {
+        long invalidationCount = cache.getInvalidationCount();
+        PrefixSuggestions prefixSuggestions = cache.peek(getKey(indexName, prefix));
+        if(prefixSuggestions == null)
+        {
+            for (int length = prefix.length() - 1; length > 0 && prefixSuggestions == null; length--)
+            {
+                PrefixSuggestions shorterPrefixSuggestions = cache.peek(getKey(indexName, prefix.substring(0, length)));
+                if(shorterPrefixSuggestions != null && shorterPrefixSuggestions.complete)
+                {
+                    prefixSuggestions = shorterPrefixSuggestions.filter(prefix);
+                    cache.put(getKey(indexName, prefix), new String[]{indexName}, prefixSuggestions, invalidationCount);
+                }
+            }
+        }
+        countLookup(prefixSuggestions != null);
+        return prefixSuggestions == null ? null : copy(prefixSuggestions.suggestions);
+    }
+
+    /**
+     * To be taken before searching suggestions which are put afterwards.
+     */
+    long getInvalidationCount()
+    {
+        return cache.getInvalidationCount();
+    }
+
+    /**
+     * @param complete whether the suggestions hold all terms starting with the prefix
+     * @param searchedAtInvalidationCount taken before searching, outdated suggestions are not put
+     */
+    void put(String indexName, String prefix, List<AutoSuggestionEntry> suggestions, boolean complete, long searchedAtInvalidationCount)
+    {
+        cache.put(getKey(indexName, prefix), new String[]{indexName}, new PrefixSuggestions(copy(suggestions), complete), searchedAtInvalidationCount);
+    }
+
+    void invalidate(String indexName)
+    {
+        cache.invalidate(indexName);
+    }
+
+    CacheStatistics getStatistics()
+    {
+        CacheStatistics statistics = cache.getStatistics();
+        synchronized (this)
+        {
+            return statistics.hits(hits).misses(misses);
+        }
+    }
+
+    private synchronized void countLookup(boolean hit)
+    {
+        if(hit)
+        {
+            hits++;
+        }
+        else
+        {
+            misses++;
+        }
+    }
+
+    private String getKey(String indexName, String prefix)
+    {
+        return indexName + "/" + prefix;
+    }
+
+    private static List<AutoSuggestionEntry> copy(List<AutoSuggestionEntry> suggestions)
+    {
+        List<AutoSuggestionEntry> copy = new ArrayList<AutoSuggestionEntry>(suggestions.size());
+        for (AutoSuggestionEntry suggestion : suggestions)
+        {
+            copy.add(new AutoSuggestionEntry(suggestion.getTerm(), suggestion.getCount()));
+        }
+        return copy;
+    }
+
+    private static class PrefixSuggestions
+    {
+        private final List<AutoSuggestionEntry> suggestions;
+
+        private final boolean complete;
+
+        PrefixSuggestions(List<AutoSuggestionEntry> suggestions, boolean complete)
+        {
+            this.suggestions = suggestions;
+            this.complete = complete;
+        }
+
+        PrefixSuggestions filter(String prefix)
+        {
+            List<AutoSuggestionEntry> filtered = new ArrayList<AutoSuggestionEntry>();
+            for (AutoSuggestionEntry suggestion : suggestions)
+            {
+                //same match as the include pattern of the terms aggregation
+                if(suggestion.getTerm().startsWith(prefix))
+                {
+                    filtered.add(suggestion);
+                }
+            }
+            return new PrefixSuggestions(filtered, true);
+        }
+    }
+}
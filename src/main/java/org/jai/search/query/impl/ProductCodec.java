@@ -0,0 +1,150 @@
+package org.jai.search.query.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.jai.search.model.Category;
+import org.jai.search.model.Product;
+
+/**
+ * Compact binary form of the product fields read by a product lookup. Product properties and specifications are not
+ * part of a looked up product and are not written.
+ */
+final class ProductCodec
+{
+    private ProductCodec()
+    {
+    }
+
+    static byte[] encode(Product product)
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(product.getId());
+            writeString(out, product.getTitle());
+            writeString(out, product.getDescription());
+            writeString(out, product.getPrice() == null ? null : product.getPrice().toString());
+            out.writeBoolean(product.isSoldOut());
+            out.writeLong(product.getAvailableOn() == null ? Long.MIN_VALUE : product.getAvailableOn().getTime());
+            out.writeFloat(product.getBoostFactor());
+
+            List<String> keywords = product.getKeywords();
+            out.writeInt(keywords == null ? -1 : keywords.size());
+            if(keywords != null)
+            {
+                for (String keyword : keywords)
+                {
+                    writeString(out, keyword);
+                }
+            }
+
+            out.writeInt(product.getCategories().size());
+            for (Category category : product.getCategories())
+            {
+                writeCategory(out, category);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException ex)
+        {
+            throw new RuntimeException("Error occurred while encoding product: " + product.getId(), ex);
+        }
+    }
+
+    static Product decode(byte[] bytes)
+    {
+        try
+        {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            Product product = new Product();
+            product.setId(in.readLong());
+            product.setTitle(readString(in));
+            product.setDescription(readString(in));
+            String price = readString(in);
+            product.setPrice(price == null ? null : new BigDecimal(price));
+            product.setSoldOut(in.readBoolean());
+            long availableOn = in.readLong();
+            product.setAvailableOn(availableOn == Long.MIN_VALUE ? null : new Date(availableOn));
+            product.setBoostFactor(in.readFloat());
+
+            int keywordCount = in.readInt();
+            if(keywordCount < 0)
+            {
+                product.setKeywords(null);
+            }
+            else
+            {
+                List<String> keywords = new ArrayList<String>(keywordCount);
+                for (int i = 0; i < keywordCount; i++)
+                {
+                    keywords.add(readString(in));
+                }
+                product.setKeywords(keywords);
+            }
+
+            int categoryCount = in.readInt();
+            for (int i = 0; i < categoryCount; i++)
+            {
+                product.addCategory(readCategory(in));
+            }
+            return product;
+        } catch (IOException ex)
+        {
+            throw new RuntimeException("Error occurred while decoding product", ex);
+        }
+    }
+
+    private static void writeCategory(DataOutputStream out, Category category) throws IOException
+    {
+        writeString(out, category.getName());
+        writeString(out, category.getType());
+        out.writeBoolean(category.getParentCategory() != null);
+        if(category.getParentCategory() != null)
+        {
+            writeCategory(out, category.getParentCategory());
+        }
+    }
+
+    private static Category readCategory(DataInputStream in) throws IOException
+    {
+        String name = readString(in);
+        String type = readString(in);
+        Category parentCategory = in.readBoolean() ? readCategory(in) : null;
+        return new Category(name, parentCategory, type);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        if(value == null)
+        {
+            out.writeInt(-1);
+            return;
+        }
+        //not writeUTF, descriptions may be longer than it allows
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if(length < 0)
+        {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
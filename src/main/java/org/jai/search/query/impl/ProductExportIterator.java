@@ -0,0 +1,77 @@
+package org.jai.search.query.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.elasticsearch.search.SearchHit;
+import org.jai.search.model.Product;
+import org.jai.search.model.SearchCriteria;
+
+/**
+ * Walks all products of a search with search after, holding one batch at a time. No search context is kept open on
+ * the cluster, an abandoned export costs nothing.
+ */
+class ProductExportIterator implements Iterator<Product>
+{
+    private final ProductQueryServiceImpl productQueryService;
+
+    private final SearchCriteria searchCriteria;
+
+    private final int batchSize;
+
+    private Iterator<Product> batch = Collections.<Product> emptyIterator();
+
+    private Object[] searchAfter;
+
+    private boolean lastBatch;
+
+    ProductExportIterator(ProductQueryServiceImpl productQueryService, SearchCriteria searchCriteria, int batchSize)
+    {
+        if(batchSize <= 0)
+        {
+            throw new IllegalArgumentException("Export batch size must be positive: " + batchSize);
+        }
+        this.productQueryService = productQueryService;
+        this.searchCriteria = searchCriteria;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        while (!batch.hasNext() && !lastBatch)
+        {
+            fetchNextBatch();
+        }
+        return batch.hasNext();
+    }
+
+    @Override
+    public Product next()
+    {
+        if(!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        return batch.next();
+    }
+
+    private void fetchNextBatch()
+    {
+        SearchHit[] hits = productQueryService.prepareExport(searchCriteria, batchSize, searchAfter).get().getHits().getHits();
+        List<Product> products = new ArrayList<Product>(hits.length);
+        for (SearchHit searchHit : hits)
+        {
+            products.add(productQueryService.getSearchHitProduct(searchHit));
+        }
+        lastBatch = hits.length < batchSize;
+        if(hits.length > 0)
+        {
+            searchAfter = hits[hits.length - 1].getSortValues();
+        }
+        batch = products.iterator();
+    }
+}
@@ -0,0 +1,234 @@
+package org.jai.search.query.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jai.search.model.CacheStatistics;
+import org.jai.search.model.Product;
+
+/**
+ * Bounded in-process cache of looked up products, stored in serialized form. Every read decodes a fresh product, so
+ * callers may modify what they get, and the cache holds one array per product instead of an object graph. Entries
+ * can be kept off heap in direct buffers.
+ *
+ * Eviction is a segmented LRU: new entries start in a probation segment and move to a protected segment when read
+ * again. Entries read once are evicted first, so a scan over many products does not push out the hot ones.
+ *
+ * A load racing with a write must not put the old product back. Loads take the invalidation count before they read
+ * from the cluster, their result is dropped if any invalidation happened in the meantime.
+ */
+class ProductNearCache
+{
+    //share of the entries reserved for products read more than once
+    private static final double PROTECTED_SHARE = 0.8;
+
+    //estimated heap use per entry besides the product bytes, map entry, key and holder
+    private static final int ENTRY_OVERHEAD_IN_BYTES = 128;
+
+    private final int maxEntries;
+
+    private final long maxBytes;
+
+    private final boolean offHeap;
+
+    private final LinkedHashMap<String, CacheEntry> probation = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+
+    private final LinkedHashMap<String, CacheEntry> protectedEntries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+
+    private long totalBytes;
+
+    private long invalidationCount;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    private long invalidations;
+
+    ProductNearCache(int maxEntries, long maxBytes, boolean offHeap)
+    {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.offHeap = offHeap;
+    }
+
+    synchronized Product get(String indexName, Long productId)
+    {
+        String key = getKey(indexName, productId);
+        CacheEntry entry = protectedEntries.get(key);
+        if(entry == null)
+        {
+            entry = probation.remove(key);
+            if(entry == null)
+            {
+                misses++;
+                return null;
+            }
+            promote(key, entry);
+        }
+        hits++;
+        return ProductCodec.decode(entry.getBytes());
+    }
+
+    /**
+     * To be taken before loading a product which is put afterwards.
+     */
+    synchronized long getInvalidationCount()
+    {
+        return invalidationCount;
+    }
+
+    synchronized void put(String indexName, Product product, long loadedAtInvalidationCount)
+    {
+        if(loadedAtInvalidationCount != invalidationCount)
+        {
+            //written or deleted while loading, the product may be outdated already
+            return;
+        }
+        String key = getKey(indexName, product.getId());
+        remove(key);
+        CacheEntry entry = new CacheEntry(indexName, ProductCodec.encode(product), offHeap);
+        probation.put(key, entry);
+        totalBytes += entry.size;
+        evict();
+    }
+
+    synchronized void invalidate(String indexName, Long productId)
+    {
+        invalidationCount++;
+        if(remove(getKey(indexName, productId)))
+        {
+            invalidations++;
+        }
+    }
+
+    /**
+     * Drops all products of the index.
+     */
+    synchronized void invalidate(String indexName)
+    {
+        invalidationCount++;
+        invalidate(probation, indexName);
+        invalidate(protectedEntries, indexName);
+    }
+
+    synchronized CacheStatistics getStatistics()
+    {
+        return new CacheStatistics().hits(hits)
+                                    .misses(misses)
+                                    .evictions(evictions)
+                                    .invalidations(invalidations)
+                                    .entries(probation.size() + protectedEntries.size())
+                                    .weight(totalBytes);
+    }
+
+    private void promote(String key, CacheEntry entry)
+    {
+        protectedEntries.put(key, entry);
+        int maxProtectedEntries = (int) (maxEntries * PROTECTED_SHARE);
+        Iterator<Map.Entry<String, CacheEntry>> eldest = protectedEntries.entrySet().iterator();
+        while (protectedEntries.size() > maxProtectedEntries && eldest.hasNext())
+        {
+            //demoted, it gets another chance in probation
+            Map.Entry<String, CacheEntry> demoted = eldest.next();
+            eldest.remove();
+            probation.put(demoted.getKey(), demoted.getValue());
+        }
+    }
+
+    private void evict()
+    {
+        while (probation.size() + protectedEntries.size() > maxEntries || totalBytes > maxBytes)
+        {
+            LinkedHashMap<String, CacheEntry> segment = probation.isEmpty() ? protectedEntries : probation;
+            if(segment.isEmpty())
+            {
+                return;
+            }
+            Iterator<CacheEntry> eldest = segment.values().iterator();
+            totalBytes -= eldest.next().size;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private void invalidate(LinkedHashMap<String, CacheEntry> segment, String indexName)
+    {
+        Iterator<CacheEntry> iterator = segment.values().iterator();
+        while (iterator.hasNext())
+        {
+            CacheEntry entry = iterator.next();
+            if(entry.indexName.equals(indexName))
+            {
+                totalBytes -= entry.size;
+                iterator.remove();
+                invalidations++;
+            }
+        }
+    }
+
+    private boolean remove(String key)
+    {
+        CacheEntry removed = probation.remove(key);
+        if(removed == null)
+        {
+            removed = protectedEntries.remove(key);
+        }
+        if(removed != null)
+        {
+            totalBytes -= removed.size;
+        }
+        return removed != null;
+    }
+
+    private String getKey(String indexName, Long productId)
+    {
+        return indexName + "/" + productId;
+    }
+
+    private static class CacheEntry
+    {
+        private final String indexName;
+
+        private final byte[] heapBytes;
+
+        private final ByteBuffer offHeapBytes;
+
+        private final long size;
+
+        CacheEntry(String indexName, byte[] bytes, boolean offHeap)
+        {
+            this.indexName = indexName;
+            if(offHeap)
+            {
+                heapBytes = null;
+                offHeapBytes = ByteBuffer.allocateDirect(bytes.length);
+                offHeapBytes.put(bytes);
+            }
+            else
+            {
+                heapBytes = bytes;
+                offHeapBytes = null;
+            }
+            this.size = bytes.length + ENTRY_OVERHEAD_IN_BYTES;
+        }
+
+        byte[] getBytes()
+        {
+            if(heapBytes != null)
+            {
+                return heapBytes;
+            }
+            byte[] bytes = new byte[offHeapBytes.capacity()];
+            //read through a duplicate, the position of the stored buffer is never moved
+            ByteBuffer reader = offHeapBytes.duplicate();
+            reader.position(0);
+            reader.get(bytes);
+            return bytes;
+        }
+    }
+}
@@ -2,25 +2,40 @@ package org.jai.search.query.impl;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.lucene.search.join.ScoreMode;
+import org.elasticsearch.action.get.GetRequestBuilder;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.cache.request.RequestCacheStats;
 import org.elasticsearch.index.get.GetField;
+import org.elasticsearch.index.mapper.UidFieldMapper;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.MoreLikeThisQueryBuilder;
-import org.elasticsearch.index.query.MultiMatchQueryBuilder;
 import org.elasticsearch.index.query.NestedQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.index.query.QueryStringQueryBuilder;
 import org.elasticsearch.index.query.SpanTermQueryBuilder;
 import org.elasticsearch.index.query.TermQueryBuilder;
 import org.elasticsearch.index.query.functionscore.FunctionScoreQueryBuilder;
@@ -33,29 +48,39 @@ import org.elasticsearch.search.aggregations.Aggregation;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
 import org.elasticsearch.search.aggregations.bucket.filters.Filters;
 import org.elasticsearch.search.aggregations.bucket.filters.Filters.Bucket;
+import org.elasticsearch.search.aggregations.bucket.nested.Nested;
 import org.elasticsearch.search.aggregations.bucket.range.RangeAggregationBuilder;
-import org.elasticsearch.search.aggregations.bucket.terms.StringTerms;
 import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.terms.support.IncludeExclude;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
 import org.elasticsearch.search.rescore.QueryRescorerBuilder;
 import org.elasticsearch.search.rescore.RescoreBuilder;
 import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
 import org.elasticsearch.search.suggest.Suggest.Suggestion.Entry.Option;
 import org.elasticsearch.search.suggest.SuggestBuilder;
 import org.elasticsearch.search.suggest.completion.CompletionSuggestionBuilder;
+import org.jai.search.client.MultiGetBatcher;
 import org.jai.search.client.SearchClientService;
+import org.jai.search.index.IndexChangeListener;
 import org.jai.search.model.AutoSuggestionEntry;
+import org.jai.search.model.CacheStatistics;
 import org.jai.search.model.Category;
 import org.jai.search.model.ElasticSearchIndexConfig;
 import org.jai.search.model.FacetResult;
 import org.jai.search.model.FacetResultEntry;
 import org.jai.search.model.Product;
+import org.jai.search.model.ProductLookupResult;
 import org.jai.search.model.ProductProperty;
 import org.jai.search.model.ProductSearchResult;
 import org.jai.search.model.SearchCriteria;
 import org.jai.search.model.SearchDocumentFieldName;
 import org.jai.search.model.SearchFacetName;
 import org.jai.search.model.Specification;
+import org.jai.search.query.AsyncProductQueryService;
+import org.jai.search.query.ProductQueryBatch;
 import org.jai.search.query.ProductQueryService;
 import org.jai.search.util.SearchDateUtils;
 import org.slf4j.Logger;
@@ -64,15 +89,426 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 @Service
-public class ProductQueryServiceImpl implements ProductQueryService
+public class ProductQueryServiceImpl implements ProductQueryService, AsyncProductQueryService, IndexChangeListener
 {
     @Autowired
     private SearchClientService searchClientService;
     
+    @Autowired
+    private MultiGetBatcher multiGetBatcher;
+    
     private static final Logger logger = LoggerFactory.getLogger(ProductQueryServiceImpl.class);
 
+    private static final int SEARCH_RESULT_CACHE_MAX_ENTRIES = 1000;
+    
+    //weight is the number of products and facet entries held by the cached results
+    private static final long SEARCH_RESULT_CACHE_MAX_WEIGHT = 100000;
+    
+    private static final long SEARCH_RESULT_CACHE_TIME_TO_LIVE_IN_MILLIS = 60000;
+    
+    private static final int PRODUCT_CACHE_MAX_ENTRIES = 10000;
+    
+    private static final long PRODUCT_CACHE_MAX_BYTES = 16 * 1024 * 1024;
+    
+    //serialized products are kept in direct buffers when set
+    private static final String PRODUCT_CACHE_OFF_HEAP_PROPERTY = "org.jai.search.productCache.offHeap";
+    
+    private static final int AUTO_SUGGESTION_SIZE = 20;
+    
+    //default size of the live more like this search
+    private static final int SIMILAR_PRODUCTS_SIZE = 10;
+    
+    //newest products looked at first by searches without exact total count, grown until the page is filled
+    private static final long AVAILABLE_DATE_WINDOW_IN_MILLIS = 30l * 24 * 60 * 60 * 1000;
+    
+    private static final int AVAILABLE_DATE_WINDOW_GROWTH_FACTOR = 4;
+    
+    //windows tried before the search runs over all products
+    private static final int AVAILABLE_DATE_WINDOWS = 4;
+    
+    private static final int PREFIX_SUGGESTION_CACHE_MAX_ENTRIES = 10000;
+    
+    //weight is the number of suggestion terms held by the cached prefixes
+    private static final long PREFIX_SUGGESTION_CACHE_MAX_WEIGHT = 200000;
+    
+    private static final long PREFIX_SUGGESTION_CACHE_TIME_TO_LIVE_IN_MILLIS = 60000;
+    
+    private static final long SUGGESTION_INDEX_REBUILD_INTERVAL_IN_MILLIS = 5 * 60 * 1000;
+    
+    //longer than the refresh interval, the rebuild has to see the change
+    private static final long SUGGESTION_INDEX_REBUILD_DELAY_IN_MILLIS = 2000;
+    
+    private final LocalSuggestionEngine suggestionEngine = new LocalSuggestionEngine(this, SUGGESTION_INDEX_REBUILD_INTERVAL_IN_MILLIS, 
+                                                                                     SUGGESTION_INDEX_REBUILD_DELAY_IN_MILLIS);
+    
+    private final ProductNearCache productCache = new ProductNearCache(PRODUCT_CACHE_MAX_ENTRIES, PRODUCT_CACHE_MAX_BYTES, 
+                                                                       Boolean.getBoolean(PRODUCT_CACHE_OFF_HEAP_PROPERTY));
+    
+    private final SearchResultCache<ProductSearchResult> searchResultCache = new SearchResultCache<ProductSearchResult>(SEARCH_RESULT_CACHE_MAX_ENTRIES, 
+                                                                                                                            SEARCH_RESULT_CACHE_MAX_WEIGHT, 
+                                                                                                                            SEARCH_RESULT_CACHE_TIME_TO_LIVE_IN_MILLIS, 
+                                                                                                                            new ToLongFunction<ProductSearchResult>()
+    {
+        @Override
+        public long applyAsLong(ProductSearchResult productSearchResult)
+        {
+            long weight = 1 + productSearchResult.getProducts().size();
+            for (FacetResult facetResult : productSearchResult.getFacets())
+            {
+                weight += facetResult.getFacetResultEntries().size();
+            }
+            return weight;
+        }
+    });
+    
+    private final PrefixSuggestionCache prefixSuggestionCache = new PrefixSuggestionCache(PREFIX_SUGGESTION_CACHE_MAX_ENTRIES, 
+                                                                                          PREFIX_SUGGESTION_CACHE_MAX_WEIGHT, 
+                                                                                          PREFIX_SUGGESTION_CACHE_TIME_TO_LIVE_IN_MILLIS);
+    
+    private final SimilarProductsStore similarProductsStore = new SimilarProductsStore();
+    
+    //identical searches running at the same time share one request to the cluster
+    private final SearchRequestCoalescer<ProductSearchResult> searchRequestCoalescer = new SearchRequestCoalescer<ProductSearchResult>();
+    
+    private final AsyncRequestExecutor asyncRequestExecutor = new AsyncRequestExecutor();
+    
+    @Override
+    public ProductSearchResult searchProducts(final SearchCriteria searchCriteria)
+    {
+        String fingerprint = SearchCriteriaFingerprint.of(searchCriteria);
+        if(!searchCriteria.isCacheable())
+        {
+            return executeCoalescedSearch(fingerprint, searchCriteria);
+        }
+        
+        ProductSearchResult productSearchResult = getCachedSearchResult(fingerprint);
+        if(productSearchResult == null)
+        {
+            productSearchResult = executeCoalescedSearch(fingerprint, searchCriteria);
+        }
+        return productSearchResult;
+    }
+    
+    @Override
+    public CompletableFuture<ProductSearchResult> searchProductsAsync(SearchCriteria searchCriteria, long timeoutInMillis)
+    {
+        ProductSearchResult cachedSearchResult = getCachedSearchResult(searchCriteria);
+        if(cachedSearchResult != null)
+        {
+            return CompletableFuture.completedFuture(cachedSearchResult);
+        }
+        
+        SearchRequestBuilder requestBuilder = prepareSearch(searchCriteria);
+        if(timeoutInMillis > 0)
+        {
+            //shards stop collecting once the caller gave up waiting
+            requestBuilder.setTimeout(TimeValue.timeValueMillis(timeoutInMillis));
+        }
+        return asyncRequestExecutor.execute(requestBuilder, getSearchResultConversion(searchCriteria), timeoutInMillis);
+    }
+    
+    /**
+     * Cached result of the criteria, null if it is not cacheable or not cached.
+     */
+    ProductSearchResult getCachedSearchResult(SearchCriteria searchCriteria)
+    {
+        return searchCriteria.isCacheable() ? getCachedSearchResult(SearchCriteriaFingerprint.of(searchCriteria)) : null;
+    }
+    
+    /**
+     * Copy of the cached result, every caller may modify the result it got.
+     */
+    private ProductSearchResult getCachedSearchResult(String fingerprint)
+    {
+        ProductSearchResult cachedSearchResult = searchResultCache.get(fingerprint);
+        return cachedSearchResult == null ? null : copy(cachedSearchResult);
+    }
+    
+    /**
+     * Caches a copy, the result itself is handed out to the caller which searched it.
+     */
+    private void cacheSearchResult(String fingerprint, String[] indices, ProductSearchResult productSearchResult, long searchedAtInvalidationCount)
+    {
+        searchResultCache.put(fingerprint, indices, copy(productSearchResult), searchedAtInvalidationCount);
+    }
+    
+    private static ProductSearchResult copy(ProductSearchResult productSearchResult)
+    {
+        ProductSearchResult copy = new ProductSearchResult();
+        copy.setTotalCount(productSearchResult.getTotalCount());
+        for (Product product : productSearchResult.getProducts())
+        {
+            //same fresh copy as handed out by the product near cache
+            copy.addProduct(ProductCodec.decode(ProductCodec.encode(product)));
+        }
+        for (FacetResult facetResult : productSearchResult.getFacets())
+        {
+            FacetResult facetResultCopy = new FacetResult();
+            facetResultCopy.setCode(facetResult.getCode());
+            for (FacetResultEntry facetResultEntry : facetResult.getFacetResultEntries())
+            {
+                FacetResultEntry facetResultEntryCopy = new FacetResultEntry();
+                facetResultEntryCopy.setTerm(facetResultEntry.getTerm());
+                facetResultEntryCopy.setCount(facetResultEntry.getCount());
+                facetResultCopy.addFacetResultEntry(facetResultEntryCopy);
+            }
+            copy.addFacet(facetResultCopy);
+        }
+        Object[] nextSearchAfter = productSearchResult.getNextSearchAfter();
+        copy.setNextSearchAfter(nextSearchAfter == null ? null : nextSearchAfter.clone());
+        return copy;
+    }
+    
+    /**
+     * Converts a response sent for the criteria, cacheable results are put into the cache. To be taken before the
+     * request is sent, results of searches racing with a write are not cached.
+     */
+    Function<SearchResponse, ProductSearchResult> getSearchResultConversion(SearchCriteria searchCriteria)
+    {
+        final String fingerprint = searchCriteria.isCacheable() ? SearchCriteriaFingerprint.of(searchCriteria) : null;
+        final String[] indices = searchCriteria.getIndexes();
+        final long invalidationCount = searchResultCache.getInvalidationCount();
+        return new Function<SearchResponse, ProductSearchResult>()
+        {
+            @Override
+            public ProductSearchResult apply(SearchResponse searchResponse)
+            {
+                printSearchResponseForDebug(searchResponse);
+                ProductSearchResult productSearchResult = getProductSearchResults(searchResponse);
+                if(fingerprint != null)
+                {
+                    cacheSearchResult(fingerprint, indices, productSearchResult, invalidationCount);
+                }
+                return productSearchResult;
+            }
+        };
+    }
+    
+    @Override
+    public ProductQueryBatch newQueryBatch()
+    {
+        return new MultiSearchBatch(searchClientService.getClient(), this, asyncRequestExecutor, 0, Integer.MAX_VALUE);
+    }
+    
+    @Override
+    public ProductQueryBatch newMicroBatchingQueryBatch(long windowInMillis, int maxBatchSize)
+    {
+        if(windowInMillis <= 0 || maxBatchSize <= 0)
+        {
+            throw new IllegalArgumentException("Micro batching window and batch size must be positive");
+        }
+        return new MultiSearchBatch(searchClientService.getClient(), this, asyncRequestExecutor, windowInMillis, maxBatchSize);
+    }
+    
+    @Override
+    public CompletableFuture<Product> getProductAsync(final ElasticSearchIndexConfig config, Long productId, long timeoutInMillis)
+    {
+        Product cachedProduct = productCache.get(config.getIndexAliasName(), productId);
+        if(cachedProduct != null)
+        {
+            return CompletableFuture.completedFuture(cachedProduct);
+        }
+        
+        final long invalidationCount = productCache.getInvalidationCount();
+        return asyncRequestExecutor.execute(prepareGetProduct(config, productId), new Function<GetResponse, Product>()
+        {
+            @Override
+            public Product apply(GetResponse getResponse)
+            {
+                return cacheProduct(config, getProduct(getResponse), invalidationCount);
+            }
+        }, timeoutInMillis);
+    }
+    
+    @Override
+    public CompletableFuture<List<AutoSuggestionEntry>> getAutoSuggestionsAsync(ElasticSearchIndexConfig config, String queryString, long timeoutInMillis)
+    {
+        List<AutoSuggestionEntry> localSuggestions = getLocalAutoSuggestions(config, queryString);
+        if(localSuggestions != null)
+        {
+            return CompletableFuture.completedFuture(localSuggestions);
+        }
+        return asyncRequestExecutor.execute(prepareAutoSuggestions(config, queryString), new Function<SearchResponse, List<AutoSuggestionEntry>>()
+        {
+            @Override
+            public List<AutoSuggestionEntry> apply(SearchResponse suggestResponse)
+            {
+                return getAutoSuggestions(suggestResponse);
+            }
+        }, timeoutInMillis);
+    }
+    
+    @Override
+    public CompletableFuture<List<Product>> findSimilarProductsAsync(ElasticSearchIndexConfig config, String[] fields, Long productId, long timeoutInMillis)
+    {
+        List<Product> precomputedSimilarProducts = getPrecomputedSimilarProducts(config, fields, productId);
+        if(precomputedSimilarProducts != null)
+        {
+            return CompletableFuture.completedFuture(precomputedSimilarProducts);
+        }
+        return asyncRequestExecutor.execute(prepareSimilarProducts(config, fields, productId), new Function<SearchResponse, List<Product>>()
+        {
+            @Override
+            public List<Product> apply(SearchResponse searchResponse)
+            {
+                return getSimilarProducts(searchResponse);
+            }
+        }, timeoutInMillis);
+    }
+    
+    @Override
+    public long getCoalescedSearchCount()
+    {
+        return searchRequestCoalescer.getCoalescedRequests();
+    }
+    
+    /**
+     * Only the caller running the search puts its result into the cache, the search of a joining caller may have
+     * started before a write the caller already saw.
+     */
+    private ProductSearchResult executeCoalescedSearch(final String fingerprint, final SearchCriteria searchCriteria)
+    {
+        return searchRequestCoalescer.execute(fingerprint, new Supplier<ProductSearchResult>()
+        {
+            @Override
+            public ProductSearchResult get()
+            {
+                long invalidationCount = searchResultCache.getInvalidationCount();
+                ProductSearchResult productSearchResult = executeSearch(searchCriteria);
+                if(searchCriteria.isCacheable())
+                {
+                    cacheSearchResult(fingerprint, searchCriteria.getIndexes(), productSearchResult, invalidationCount);
+                }
+                return productSearchResult;
+            }
+        });
+    }
+    
     @Override
-    public ProductSearchResult searchProducts(SearchCriteria searchCriteria)
+    public CacheStatistics getSearchResultCacheStatistics()
+    {
+        return searchResultCache.getStatistics();
+    }
+    
+    @Override
+    public void onIndexChanged(String indexName)
+    {
+        searchResultCache.invalidate(indexName);
+        prefixSuggestionCache.invalidate(indexName);
+        productCache.invalidate(indexName);
+        similarProductsStore.invalidate(indexName);
+        suggestionEngine.onIndexChanged(indexName);
+    }
+    
+    @Override
+    public void onDocumentChanged(String indexName, String documentId)
+    {
+        searchResultCache.invalidate(indexName);
+        prefixSuggestionCache.invalidate(indexName);
+        productCache.invalidate(indexName, Long.valueOf(documentId));
+        similarProductsStore.onDocumentChanged(indexName, Long.valueOf(documentId));
+        suggestionEngine.onIndexChanged(indexName);
+    }
+    
+    @Override
+    public void rebuildSuggestionIndex(ElasticSearchIndexConfig config)
+    {
+        suggestionEngine.rebuild(config);
+    }
+    
+    /**
+     * Suggestions of the local suggestion index, null if it can not answer.
+     */
+    List<AutoSuggestionEntry> getLocalAutoSuggestions(ElasticSearchIndexConfig config, String queryString)
+    {
+        return suggestionEngine.lookup(config, queryString, AUTO_SUGGESTION_SIZE);
+    }
+    
+    @Override
+    public CacheStatistics getShardRequestCacheStatistics(ElasticSearchIndexConfig config)
+    {
+        RequestCacheStats requestCacheStats = searchClientService.getClient().admin().indices().prepareStats(config.getIndexAliasName())
+                                                                 .clear()
+                                                                 .setRequestCache(true)
+                                                                 .get().getTotal().getRequestCache();
+        return new CacheStatistics().hits(requestCacheStats.getHitCount())
+                                    .misses(requestCacheStats.getMissCount())
+                                    .evictions(requestCacheStats.getEvictions())
+                                    .weight(requestCacheStats.getMemorySizeInBytes());
+    }
+    
+    @Override
+    public CacheStatistics getProductCacheStatistics()
+    {
+        return productCache.getStatistics();
+    }
+    
+    @Override
+    public CacheStatistics getPrefixSuggestionCacheStatistics()
+    {
+        return prefixSuggestionCache.getStatistics();
+    }
+    
+    private ProductSearchResult executeSearch(SearchCriteria searchCriteria)
+    {
+        if(isAvailableDateWindowed(searchCriteria))
+        {
+            ProductSearchResult windowedSearchResult = executeAvailableDateWindowedSearch(searchCriteria);
+            if(windowedSearchResult != null)
+            {
+                return windowedSearchResult;
+            }
+        }
+        
+        SearchResponse searchResponse = prepareSearch(searchCriteria).execute().actionGet();
+        
+        printSearchResponseForDebug(searchResponse);
+        
+        return getProductSearchResults(searchResponse);
+    }
+    
+    /**
+     * Newest first searches which need neither an exact total count nor facets can stop at the newest products
+     * filling the page. Search after pages are left out, the window total says nothing about the hits after the cursor.
+     */
+    private boolean isAvailableDateWindowed(SearchCriteria searchCriteria)
+    {
+        return !searchCriteria.isExactTotalCount() && searchCriteria.getSortOrder() == SortOrder.DESC && !searchCriteria.isFacetsOnly()
+                && !searchCriteria.isSearchAfterPaging()
+                && (searchCriteria.isNoFacets() || searchCriteria.getFacets().isEmpty());
+    }
+    
+    /**
+     * Runs the search on products available from a growing window before now, matching products outside of it are
+     * never collected. The total count is the number of products found in the window. Returns null if even the
+     * largest window does not fill the page, products without available date are sorted last and only found by the
+     * search over all products.
+     */
+    private ProductSearchResult executeAvailableDateWindowedSearch(SearchCriteria searchCriteria)
+    {
+        long now = System.currentTimeMillis();
+        long windowInMillis = AVAILABLE_DATE_WINDOW_IN_MILLIS;
+        for (int i = 0; i < AVAILABLE_DATE_WINDOWS; i++)
+        {
+            SearchRequestBuilder requestBuilder = prepareSearch(searchCriteria);
+            SearchSourceBuilder searchSource = requestBuilder.request().source();
+            searchSource.query(QueryBuilders.boolQuery().must(searchSource.query())
+                                            .filter(QueryBuilders.rangeQuery(SearchDocumentFieldName.AVAILABLE_DATE.getFieldName())
+                                                                 .gte(now - windowInMillis)
+                                                                 .format("epoch_millis")));
+            SearchResponse searchResponse = requestBuilder.execute().actionGet();
+            if(searchResponse.getHits().getTotalHits() >= searchCriteria.getFrom() + searchCriteria.getSize())
+            {
+                printSearchResponseForDebug(searchResponse);
+                return getProductSearchResults(searchResponse);
+            }
+            logger.debug("Available date window of {} ms found {} products, growing it", windowInMillis, searchResponse.getHits().getTotalHits());
+            windowInMillis *= AVAILABLE_DATE_WINDOW_GROWTH_FACTOR;
+        }
+        return null;
+    }
+    
+    SearchRequestBuilder prepareSearch(SearchCriteria searchCriteria)
     {
         QueryBuilder queryBuilder = getQueryBuilder(searchCriteria);
 
@@ -80,14 +516,14 @@ public class ProductQueryServiceImpl implements ProductQueryService
                                                                         searchCriteria.getDocumentTypes(), 
                                                                         searchCriteria.getFrom(), 
                                                                         searchCriteria.getSize());
-        for (String field : SearchDocumentFieldName.productQueryFields) {
-        	requestBuilder.addDocValueField(field);	
-		}
+        if(searchCriteria.getRouting() != null)
+        {
+            requestBuilder.setRouting(searchCriteria.getRouting());
+        }
+        addProductQueryFields(requestBuilder);
         logger.debug("Search request, with fields: {}" + requestBuilder.toString());
         
-        //requestBuilder.addFields(SearchDocumentFieldName.productQueryFields);
-        
-        if(searchCriteria.isRescoreOnSoldOut())
+        if(searchCriteria.isRescoreOnSoldOut() && !searchCriteria.isFacetsOnly())
         {
             QueryRescorerBuilder rescorer = RescoreBuilder.queryRescorer(QueryBuilders.termQuery(SearchDocumentFieldName.SOLD_OUT.getFieldName(), false))
                                                .setQueryWeight(1.0f) //default
@@ -99,14 +535,7 @@ public class ProductQueryServiceImpl implements ProductQueryService
         logger.debug("Search request, with score: {}" + requestBuilder.toString());
         
         
-        if (searchCriteria.hasFilters())
-        {
-        			QueryBuilder andFilterBuilder = getFilterBuilderForSearchCriteria(searchCriteria);
-            requestBuilder.setQuery(QueryBuilders.boolQuery().filter(queryBuilder));
-        } else
-        {
-            requestBuilder.setQuery(queryBuilder);
-        }
+        requestBuilder.setQuery(getFilteredQueryBuilder(searchCriteria, queryBuilder));
         
         logger.debug("Search request, with filters: {}" + requestBuilder.toString());
 
@@ -117,6 +546,17 @@ public class ProductQueryServiceImpl implements ProductQueryService
         
         logger.debug("Search request, with facets: {}" + requestBuilder.toString());
 
+        if(searchCriteria.isFacetsOnly())
+        {
+            //size 0 responses are what the shard request cache holds, the preference keeps them on the same copies
+            requestBuilder.setFrom(0)
+                          .setSize(0)
+                          .setRequestCache(true)
+                          .setPreference(getFacetsOnlyPreference(searchCriteria));
+            logger.debug("Executing following facets only search request:" + requestBuilder.toString());
+            return requestBuilder;
+        }
+        
       //Add sorting
         if(searchCriteria.getSortOrder() !=null)
         {
@@ -125,27 +565,195 @@ public class ProductQueryServiceImpl implements ProductQueryService
             //then on score based
             requestBuilder.addSort(SortBuilders.scoreSort());
         }
+        
+        if(searchCriteria.isSearchAfterPaging())
+        {
+            if(searchCriteria.getSortOrder() == null)
+            {
+                requestBuilder.addSort(SortBuilders.scoreSort());
+            }
+            //unique tiebreak, products with equal sort values are neither skipped nor repeated between pages
+            requestBuilder.addSort(SortBuilders.fieldSort(UidFieldMapper.NAME).order(SortOrder.ASC));
+            requestBuilder.setFrom(0);
+            if(searchCriteria.getSearchAfter() != null)
+            {
+                requestBuilder.searchAfter(searchCriteria.getSearchAfter());
+            }
+        }
 
 //        requestBuilder.setFetchSource(new String[]{"title"}, null);
         
         logger.debug("Executing following search request:" + requestBuilder.toString());
         
+        return requestBuilder;
+    }
+    
+    /**
+     * Same for all criteria with the same fingerprint, custom preferences must not start with an underscore.
+     */
+    private String getFacetsOnlyPreference(SearchCriteria searchCriteria)
+    {
+        return "facets-" + Integer.toHexString(SearchCriteriaFingerprint.of(searchCriteria).hashCode());
+    }
+    
+    /**
+     * Only the fields read by {@link #getSearchHitProduct(SearchHit)}, hits come without source.
+     */
+    private void addProductQueryFields(SearchRequestBuilder requestBuilder)
+    {
+        requestBuilder.setFetchSource(false)
+                      .storedFields(SearchDocumentFieldName.productQueryStoredFields);
+        for (String field : SearchDocumentFieldName.productQueryDocValueFields)
+        {
+            requestBuilder.addDocValueField(field);
+        }
+    }
+    
+    private QueryBuilder getFilteredQueryBuilder(SearchCriteria searchCriteria, QueryBuilder queryBuilder)
+    {
+        if (searchCriteria.hasFilters())
+        {
+            //filters only narrow the matches, the scores come from the query
+            return QueryBuilders.boolQuery().must(queryBuilder).filter(getFilterBuilderForSearchCriteria(searchCriteria));
+        } else
+        {
+            return queryBuilder;
+        }
+    }
+    
+    @Override
+    public Stream<Product> exportProducts(SearchCriteria searchCriteria, int batchSize)
+    {
+        Iterator<Product> products = new ProductExportIterator(this, searchCriteria, batchSize);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(products, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+    
+    /**
+     * Request of one export batch. Only the query and filters of the criteria are used, products are sorted by the
+     * unique id alone, which is cheaper than scoring and makes every batch continue exactly after the previous one.
+     */
+    SearchRequestBuilder prepareExport(SearchCriteria searchCriteria, int batchSize, Object[] searchAfter)
+    {
+        SearchRequestBuilder requestBuilder = getSearchRequestBuilder(searchCriteria.getIndexes(), searchCriteria.getDocumentTypes(), 0, batchSize);
+        if(searchCriteria.getRouting() != null)
+        {
+            requestBuilder.setRouting(searchCriteria.getRouting());
+        }
+        addProductQueryFields(requestBuilder);
+        requestBuilder.setQuery(getFilteredQueryBuilder(searchCriteria, getQueryBuilder(searchCriteria)))
+                      .addSort(SortBuilders.fieldSort(UidFieldMapper.NAME).order(SortOrder.ASC));
+        if(searchAfter != null)
+        {
+            requestBuilder.searchAfter(searchAfter);
+        }
+        return requestBuilder;
+    }
+    
+    @Override
+    public Product getProduct(ElasticSearchIndexConfig config, Long productId)
+    {
+        Product product = productCache.get(config.getIndexAliasName(), productId);
+        if(product != null)
+        {
+            return product;
+        }
         
+        long invalidationCount = productCache.getInvalidationCount();
+        product = getProduct(getLookupResponse(multiGetBatcher.get(getProductLookupItem(config, productId))));
+        return cacheProduct(config, product, invalidationCount);
+    }
+    
+    private Product cacheProduct(ElasticSearchIndexConfig config, Product product, long invalidationCount)
+    {
+        if(product != null)
+        {
+            productCache.put(config.getIndexAliasName(), product, invalidationCount);
+        }
+        return product;
+    }
+    
+    @Override
+    public ProductLookupResult getProducts(ElasticSearchIndexConfig config, Collection<Long> productIds)
+    {
+        //cached products first, only the others are looked up
+        Map<Long, Product> products = new HashMap<Long, Product>();
+        List<Long> uncachedIds = new ArrayList<Long>();
+        for (Long productId : productIds)
+        {
+            Product product = productCache.get(config.getIndexAliasName(), productId);
+            if(product == null)
+            {
+                uncachedIds.add(productId);
+            }
+            else
+            {
+                products.put(productId, product);
+            }
+        }
         
-        SearchResponse searchResponse = requestBuilder.execute().actionGet();
-        
-        printSearchResponseForDebug(searchResponse);
+        if(!uncachedIds.isEmpty())
+        {
+            long invalidationCount = productCache.getInvalidationCount();
+            MultiGetRequest multiGetRequest = new MultiGetRequest();
+            for (Long productId : uncachedIds)
+            {
+                multiGetRequest.add(getProductLookupItem(config, productId));
+            }
+            
+            //responses are in the order of the ids
+            Iterator<Long> ids = uncachedIds.iterator();
+            for (MultiGetItemResponse itemResponse : searchClientService.getClient().multiGet(multiGetRequest).actionGet())
+            {
+                Long productId = ids.next();
+                Product product = cacheProduct(config, getProduct(getLookupResponse(itemResponse)), invalidationCount);
+                if(product != null)
+                {
+                    products.put(productId, product);
+                }
+            }
+        }
         
-        return getProductSearchResults(searchResponse);
+        ProductLookupResult productLookupResult = new ProductLookupResult();
+        for (Long productId : productIds)
+        {
+            Product product = products.get(productId);
+            if(product == null)
+            {
+                productLookupResult.addMissingId(productId);
+            }
+            else
+            {
+                productLookupResult.addProduct(product);
+            }
+        }
+        return productLookupResult;
+    }
+    
+    private MultiGetRequest.Item getProductLookupItem(ElasticSearchIndexConfig config, Long productId)
+    {
+        return new MultiGetRequest.Item(config.getIndexAliasName(), config.getDocumentType(), String.valueOf(productId))
+                                  .storedFields(SearchDocumentFieldName.productDocumentFields)
+                                  .fetchSourceContext(FetchSourceContext.DO_NOT_FETCH_SOURCE);
+    }
+    
+    private GetResponse getLookupResponse(MultiGetItemResponse itemResponse)
+    {
+        if(itemResponse.isFailed())
+        {
+            throw new RuntimeException("Error occurred while getting product: " + itemResponse.getId(), itemResponse.getFailure().getFailure());
+        }
+        return itemResponse.getResponse();
+    }
+    
+    private GetRequestBuilder prepareGetProduct(ElasticSearchIndexConfig config, Long productId)
+    {
+        return searchClientService.getClient().prepareGet(config.getIndexAliasName(), config.getDocumentType(), String.valueOf(productId))
+                                              .setStoredFields(SearchDocumentFieldName.productDocumentFields);
     }
     
     @SuppressWarnings("unchecked")
-    @Override
-    public Product getProduct(ElasticSearchIndexConfig config, Long productId)
+    private Product getProduct(GetResponse getResponse)
     {
-        GetResponse getResponse = searchClientService.getClient().prepareGet(config.getIndexAliasName(), config.getDocumentType(), String.valueOf(productId))
-                                                                 .setStoredFields(SearchDocumentFieldName.productDocumentFields)
-                                                                 .get();
         if(getResponse.isExists())
         {
             Product product = new Product();
@@ -181,12 +789,22 @@ public class ProductQueryServiceImpl implements ProductQueryService
 
     @Override
     public List<AutoSuggestionEntry> getAutoSuggestions(ElasticSearchIndexConfig config, String queryString)
+    {
+        List<AutoSuggestionEntry> localSuggestions = getLocalAutoSuggestions(config, queryString);
+        if(localSuggestions != null)
+        {
+            return localSuggestions;
+        }
+        return getAutoSuggestions(prepareAutoSuggestions(config, queryString).get());
+    }
+    
+    SearchRequestBuilder prepareAutoSuggestions(ElasticSearchIndexConfig config, String queryString)
     {
         							SuggestBuilder suggestBuilder = new SuggestBuilder()
                                                     .addSuggestion(SearchFacetName.AUTO_SUGGESTION.getCode(), 
                                                      new CompletionSuggestionBuilder(SearchDocumentFieldName.KEYWORDS.getFieldName())
                                                              .analyzer(config.getAutoSuggestionAnalyzerName())
-                                                             .size(20)
+                                                             .size(AUTO_SUGGESTION_SIZE)
                                                              .text(queryString))
 //                                                             .suggestMode("always")
 //                                                             .stringDistance("ngram")
@@ -218,9 +836,11 @@ public class ProductQueryServiceImpl implements ProductQueryService
             //Do nothing  
             logger.error("Error in to string", e);
         }
-
-        SearchResponse suggestResponse = searchRequestBuilder.get();
-        
+        return searchRequestBuilder;
+    }
+    
+    List<AutoSuggestionEntry> getAutoSuggestions(SearchResponse suggestResponse)
+    {
         logger.debug("Auto Suggestion response is {}", suggestResponse);
         
         List<AutoSuggestionEntry> suggestions = new ArrayList<AutoSuggestionEntry>();
@@ -245,6 +865,13 @@ public class ProductQueryServiceImpl implements ProductQueryService
     @Override
     public List<AutoSuggestionEntry> getAutoSuggestionsUsingTermsFacet(ElasticSearchIndexConfig config, String queryString)
     {
+        String lowerCaseQueryString = queryString.toLowerCase();
+        long invalidationCount = prefixSuggestionCache.getInvalidationCount();
+        List<AutoSuggestionEntry> cachedAutoSuggestEntries = prefixSuggestionCache.get(config.getIndexAliasName(), lowerCaseQueryString);
+        if(cachedAutoSuggestEntries != null)
+        {
+            return cachedAutoSuggestEntries;
+        }
      
         List<AutoSuggestionEntry> autoSuggestEntries = new ArrayList<AutoSuggestionEntry>();
         
@@ -259,7 +886,6 @@ public class ProductQueryServiceImpl implements ProductQueryService
         SearchFacetName.autoSuggestionFields.toArray(fieldsArray);
         fieldsArray[fieldsArray.length -1] = SearchDocumentFieldName.KEYWORDS.getFieldName();
 
-        MultiMatchQueryBuilder multiMatchQuery = QueryBuilders.multiMatchQuery(queryString);
         //TODO: fix this, make it multiple field
 //        for (String string : fieldsArray) {
 //        	TermsAggregationBuilder termsFacetBuilder = AggregationBuilders.terms(SearchFacetName.AUTO_SUGGESTION.getCode());
@@ -268,13 +894,17 @@ public class ProductQueryServiceImpl implements ProductQueryService
 //		}
         TermsAggregationBuilder termsFacetBuilder = AggregationBuilders.terms(SearchFacetName.AUTO_SUGGESTION.getCode());
     	termsFacetBuilder.field(SearchFacetName.autoSuggestionFields.get(0));
-    	searchRequestBuilder.addAggregation(termsFacetBuilder);
-        searchRequestBuilder.setQuery(multiMatchQuery);
+    	//categories are nested documents, their fields are only seen from within a nested aggregation
+    	searchRequestBuilder.addAggregation(AggregationBuilders.nested(SearchFacetName.AUTO_SUGGESTION.getCode(), SearchDocumentFieldName.CATEGORIES_ARRAY.getFieldName())
+    	                                                       .subAggregation(termsFacetBuilder));
         
-        String lowerCaseQueryString = queryString.toLowerCase();
         String filteredSpecialCharsQueryString = escapeQueryChars(lowerCaseQueryString);
         String matchingRegExString = filteredSpecialCharsQueryString + ".*";
         
+        //terms starting with the query string in all documents, the terms of a longer query string are a subset of them
+        termsFacetBuilder.includeExclude(new IncludeExclude(matchingRegExString, null))
+                         .size(AUTO_SUGGESTION_SIZE);
+        
 //        termsFacetBuilder.regex(matchingRegExString)
 //                    .size(20)
 //                    .order(ComparatorType.TERM);
@@ -294,23 +924,84 @@ public class ProductQueryServiceImpl implements ProductQueryService
             logger.error("Search response tostring error:",e);
         }
         
+        boolean complete = false;
         for (Entry<String, Aggregation> facet : searchResponse.getAggregations().getAsMap().entrySet())
         {
             if(facet.getKey().equals(SearchFacetName.AUTO_SUGGESTION.getCode()))
             {
-            	StringTerms aggs = searchResponse.getAggregations().get(facet.getKey());
+            	Nested nested = searchResponse.getAggregations().get(facet.getKey());
+            	Terms aggs = nested.getAggregations().get(facet.getKey());
                 for (org.elasticsearch.search.aggregations.bucket.terms.Terms.Bucket entry : aggs.getBuckets())
                 {
                     AutoSuggestionEntry term = new AutoSuggestionEntry(entry.getKeyAsString(), Long.valueOf(entry.getDocCount()).intValue());
                     autoSuggestEntries.add(term);
                 }
+                //no terms left out, longer query strings can be answered from these
+                complete = aggs.getSumOfOtherDocCounts() == 0;
             }
         }
+        prefixSuggestionCache.put(config.getIndexAliasName(), lowerCaseQueryString, autoSuggestEntries, complete, invalidationCount);
         return autoSuggestEntries;
     }
     
     @Override
     public List<Product> findSimilarProducts(ElasticSearchIndexConfig config, String[] fields, Long productId)
+    {
+        List<Product> precomputedSimilarProducts = getPrecomputedSimilarProducts(config, fields, productId);
+        if(precomputedSimilarProducts != null)
+        {
+            return precomputedSimilarProducts;
+        }
+        return getSimilarProducts(prepareSimilarProducts(config, fields, productId).get());
+    }
+    
+    /**
+     * Full products of the precomputed similar products list, null if there is none and the more like this query has to
+     * run. Deleted products are left out.
+     */
+    List<Product> getPrecomputedSimilarProducts(ElasticSearchIndexConfig config, String[] fields, Long productId)
+    {
+        long[] similarProductIds = similarProductsStore.get(config.getIndexAliasName(), fields, productId);
+        if(similarProductIds == null)
+        {
+            return null;
+        }
+        List<Long> productIds = new ArrayList<Long>(similarProductIds.length);
+        for (long similarProductId : similarProductIds)
+        {
+            productIds.add(similarProductId);
+        }
+        return getProducts(config, productIds).getProducts();
+    }
+    
+    @Override
+    public int precomputeSimilarProducts(ElasticSearchIndexConfig config, String[] fields)
+    {
+        long start = System.currentTimeMillis();
+        similarProductsStore.computeStarted(config.getIndexAliasName(), fields);
+        SimilarProductsPrecomputer precomputer = new SimilarProductsPrecomputer(searchClientService.getClient(), this, SIMILAR_PRODUCTS_SIZE);
+        Map<Long, long[]> similarProducts = precomputer.compute(config, fields, precomputer.getProductIds(config));
+        similarProductsStore.replace(config.getIndexAliasName(), fields, similarProducts);
+        logger.debug("Similar products of {} products in {} computed in {} ms", new Object[]{similarProducts.size(), config.getIndexAliasName(), 
+                                                                                           System.currentTimeMillis() - start});
+        return similarProducts.size();
+    }
+    
+    @Override
+    public int refreshSimilarProducts(ElasticSearchIndexConfig config, String[] fields)
+    {
+        Set<Long> changedProductIds = similarProductsStore.takeChangedProducts(config.getIndexAliasName(), fields);
+        if(changedProductIds.isEmpty())
+        {
+            return 0;
+        }
+        SimilarProductsPrecomputer precomputer = new SimilarProductsPrecomputer(searchClientService.getClient(), this, SIMILAR_PRODUCTS_SIZE);
+        Map<Long, long[]> similarProducts = precomputer.compute(config, fields, changedProductIds);
+        similarProductsStore.putAll(config.getIndexAliasName(), fields, similarProducts);
+        return similarProducts.size();
+    }
+    
+    SearchRequestBuilder prepareSimilarProducts(ElasticSearchIndexConfig config, String[] fields, Long productId)
     {
 //    	Morelikethis
     	QueryBuilder queryBuilder = QueryBuilders.moreLikeThisQuery(fields, null, new MoreLikeThisQueryBuilder.Item[]
@@ -320,8 +1011,11 @@ public class ProductQueryServiceImpl implements ProductQueryService
         
         logger.debug("Executing following search request, fields {}", new Object[]{moreLikeThisRequestBuilder.request()});
         
-        SearchResponse searchResponse = moreLikeThisRequestBuilder.get();
-
+        return moreLikeThisRequestBuilder;
+    }
+    
+    List<Product> getSimilarProducts(SearchResponse searchResponse)
+    {
         printSearchResponseForDebug(searchResponse);
         
         List<Product> products = new ArrayList<Product>();
@@ -343,11 +1037,12 @@ public class ProductQueryServiceImpl implements ProductQueryService
     {
     	BoolQueryBuilder andFilterBuilder = QueryBuilders.boolQuery();
 //        AndFilterBuilder andFilterBuilder = FilterBuilders.andFilter();
+    	ProductQueryTemplate template = ProductQueryTemplate.forIndices(searchCriteria.getIndexes());
 
         //process single select filters
         for (java.util.Map.Entry<String, String> entry : searchCriteria.getSingleSelectFilters().entrySet())
         {
-            andFilterBuilder.filter(getBaseFilterBuilder(entry.getKey(), entry.getValue()));
+            andFilterBuilder.filter(getBaseFilterBuilder(template, entry.getKey(), entry.getValue()));
         }
 
         //process field value filters
@@ -372,9 +1067,9 @@ public class ProductQueryServiceImpl implements ProductQueryService
                     //add to and condition
                     andFilterBuilderForFieldValueMapInList.filter(filterBuilder);
                 }
-                orFilterForFieldValueList.filter(andFilterBuilderForFieldValueMapInList);
+                orFilterForFieldValueList.should(andFilterBuilderForFieldValueMapInList);
             }
-            andFilterBuilder.filter(orFilterForFieldValueList);
+            andFilterBuilder.filter(orFilterForFieldValueList.minimumNumberShouldMatch(1));
         }
 
         //process multi select filters
@@ -394,20 +1089,24 @@ public class ProductQueryServiceImpl implements ProductQueryService
                 final BoolQueryBuilder orFilter = QueryBuilders.boolQuery();
                 for (final String filterName : entry.getValue())
                 {
-                    orFilter.filter(getBaseFilterBuilder(entry.getKey(), filterName));
+                    orFilter.should(getBaseFilterBuilder(template, entry.getKey(), filterName));
                 }
-                andFilterBuilder.filter(orFilter);
+                andFilterBuilder.filter(orFilter.minimumNumberShouldMatch(1));
             }
             else
             {
                 //process single entry directly in and filter
-                andFilterBuilder.filter(getBaseFilterBuilder(entry.getKey(), entry.getValue().get(0)));
+                andFilterBuilder.filter(getBaseFilterBuilder(template, entry.getKey(), entry.getValue().get(0)));
             }
         }
         
-        ScoreMode mode = ScoreMode.Total;
 		//process resolution/memory facets
-        andFilterBuilder.filter(QueryBuilders.nestedQuery(SearchDocumentFieldName.SPECIFICATIONS.getFieldName(), getSpecificationsFacetFilterBuilder(searchCriteria), mode));
+        QueryBuilder specificationsFacetFilterBuilder = getSpecificationsFacetFilterBuilder(searchCriteria);
+        if(specificationsFacetFilterBuilder != null)
+        {
+            //products without any specification are only left out once one is selected
+            andFilterBuilder.filter(template.bindSpecifications(specificationsFacetFilterBuilder));
+        }
         
         
         //process child product properties
@@ -425,9 +1124,9 @@ public class ProductQueryServiceImpl implements ProductQueryService
                 			.filter(
                             QueryBuilders.termQuery(SearchDocumentFieldName.COLOR.getFieldName(), productProperty.getColor().toLowerCase()))
                 			;
-                    OrPropertyFilterBuilder1.filter(andPropertyTermFilter);
+                    OrPropertyFilterBuilder1.should(andPropertyTermFilter);
                 }
-                propertyFilterBuilder = OrPropertyFilterBuilder1;
+                propertyFilterBuilder = OrPropertyFilterBuilder1.minimumNumberShouldMatch(1);
             }
             else
             {
@@ -442,8 +1141,7 @@ public class ProductQueryServiceImpl implements ProductQueryService
             }
 //            FilteredQueryBuilder filteredQueryBuilder = QueryBuilders.nes(QueryBuilders.matchAllQuery(), propertyFilterBuilder);
             
-            //TODO: config replace
-            andFilterBuilder.filter(QueryBuilders.hasChildQuery(ElasticSearchIndexConfig.COM_WEBSITE.getPropertiesDocumentType(), propertyFilterBuilder, ScoreMode.Total));
+            andFilterBuilder.filter(template.bindProductProperties(propertyFilterBuilder));
         }
         
         //Another approach for specifications, in case faceting not used.
@@ -452,8 +1150,7 @@ public class ProductQueryServiceImpl implements ProductQueryService
             QueryBuilder specificationFilterBuilder = null;
             specificationFilterBuilder = getSpecificationsFilterBuilder(searchCriteria);
             
-            andFilterBuilder.filter(QueryBuilders.nestedQuery(
-            		SearchDocumentFieldName.SPECIFICATIONS.getFieldName(), specificationFilterBuilder, ScoreMode.Total));
+            andFilterBuilder.filter(template.bindSpecifications(specificationFilterBuilder));
         }
 
         return andFilterBuilder;
@@ -473,9 +1170,9 @@ public class ProductQueryServiceImpl implements ProductQueryService
             	QueryBuilder filterBuilder = QueryBuilders.spanOrQuery(new SpanTermQueryBuilder(SearchDocumentFieldName.RESOLUTION.getFieldName(), specification.getResolution()))
             	.addClause(new SpanTermQueryBuilder(SearchDocumentFieldName.MEMORY.getFieldName(), specification.getMemory()));
             	
-                OrSpecificationFilterBuilder.filter(filterBuilder);
+                OrSpecificationFilterBuilder.should(filterBuilder);
             }
-            specificationFilterBuilder = OrSpecificationFilterBuilder;
+            specificationFilterBuilder = OrSpecificationFilterBuilder.minimumNumberShouldMatch(1);
         }
         else
         {
@@ -509,7 +1206,8 @@ public class ProductQueryServiceImpl implements ProductQueryService
         }
         if(resolutionFilters.size() == 0 && memoryFilters.size() == 0 )
         {
-            return QueryBuilders.matchAllQuery();
+            //no specification selected
+            return null;
         }
         
         BoolQueryBuilder andResolutionAndMemoryFilterBuilder = QueryBuilders.boolQuery();
@@ -518,18 +1216,18 @@ public class ProductQueryServiceImpl implements ProductQueryService
         	BoolQueryBuilder OrResolutionFilterBuilder = QueryBuilders.boolQuery();
             for (String resolution : resolutionFilters)
             {
-                OrResolutionFilterBuilder.filter(QueryBuilders.termQuery(SearchDocumentFieldName.RESOLUTION.getFieldName(), resolution));
+                OrResolutionFilterBuilder.should(QueryBuilders.termQuery(SearchDocumentFieldName.RESOLUTION.getFieldName(), resolution));
             }
-            andResolutionAndMemoryFilterBuilder.filter(OrResolutionFilterBuilder);
+            andResolutionAndMemoryFilterBuilder.filter(OrResolutionFilterBuilder.minimumNumberShouldMatch(1));
         }
         if(memoryFilters.size() > 0)
         {
         	BoolQueryBuilder OrMemoryFilterBuilder = QueryBuilders.boolQuery();
             for (String memory : memoryFilters)
             {
-                OrMemoryFilterBuilder.filter(QueryBuilders.termQuery(SearchDocumentFieldName.MEMORY.getFieldName(), memory));
+                OrMemoryFilterBuilder.should(QueryBuilders.termQuery(SearchDocumentFieldName.MEMORY.getFieldName(), memory));
             }
-            andResolutionAndMemoryFilterBuilder.filter(OrMemoryFilterBuilder);
+            andResolutionAndMemoryFilterBuilder.filter(OrMemoryFilterBuilder.minimumNumberShouldMatch(1));
         }
 //        else if(specifications.size() == 1)
 //        {
@@ -548,12 +1246,13 @@ public class ProductQueryServiceImpl implements ProductQueryService
         return andResolutionAndMemoryFilterBuilder;
     }
     
-    private QueryBuilder getBaseFilterBuilder(String facetName, String fieldValue)
+    private QueryBuilder getBaseFilterBuilder(ProductQueryTemplate template, String facetName, String fieldValue)
     {
     	
         if(facetName.startsWith(SearchFacetName.SEARCH_FACET_TYPE_FACET_PREFIX))
         {
-            return getTermFilter(SearchFacetName.CATEGORIES_FIELD_PREFIX + facetName + "." + SearchDocumentFieldName.FACETFILTER.getFieldName(), fieldValue.toLowerCase());
+            //categories are nested documents
+            return template.bindCategories(getTermFilter(template.getCategoryFilterField(facetName), fieldValue.toLowerCase()));
         }
         else if(facetName.startsWith(SearchFacetName.PRODUCT_PRICE_RANGE.getCode()))
         {
@@ -574,11 +1273,13 @@ public class ProductQueryServiceImpl implements ProductQueryService
 
     private void addFacets(SearchCriteria searchCriteria, SearchRequestBuilder requestBuilder)
     {
+        ProductQueryTemplate template = ProductQueryTemplate.forIndices(searchCriteria.getIndexes());
         for(String facetCode : searchCriteria.getFacets())
         {
-            if(SearchFacetName.categoryFacetFields.contains(facetCode))
+            String categoryFacetField = template.getCategoryFacetField(facetCode);
+            if(categoryFacetField != null)
             {
-                requestBuilder.addAggregation(getNewTermsFacet(facetCode, facetCode + "." + SearchDocumentFieldName.FACET.getFieldName()));
+                requestBuilder.addAggregation(getNewTermsFacet(facetCode, categoryFacetField));
             }
             else if(SearchFacetName.PRODUCT_PRICE_RANGE.getCode().equals(facetCode))
             {
@@ -648,15 +1349,13 @@ public class ProductQueryServiceImpl implements ProductQueryService
         productSearchResult.setTotalCount(response.getHits().totalHits());
         for (SearchHit searchHit : response.getHits())
         {
-            Product product = new  Product();
-            
-            product.setId(Long.valueOf(searchHit.getId()));
-            product.setTitle(String.valueOf(searchHit.getSource().get(SearchDocumentFieldName.TITLE.getFieldName())));
-            if(getDoubleFieldValueOrNull(searchHit, SearchDocumentFieldName.PRICE.getFieldName()) != null)
-            product.setPrice(BigDecimal.valueOf(getDoubleFieldValueOrNull(searchHit, SearchDocumentFieldName.PRICE.getFieldName())));
-            product.setSoldOut(Boolean.valueOf(getFieldValueOrNull(searchHit, SearchDocumentFieldName.SOLD_OUT.getFieldName())));
-            
-            productSearchResult.addProduct(product);
+            productSearchResult.addProduct(getSearchHitProduct(searchHit));
+        }
+        
+        SearchHit[] hits = response.getHits().getHits();
+        if(hits.length > 0 && hits[hits.length - 1].getSortValues().length > 0)
+        {
+            productSearchResult.setNextSearchAfter(hits[hits.length - 1].getSortValues());
         }
         
         if(response.getAggregations() !=null)
@@ -721,6 +1420,33 @@ public class ProductQueryServiceImpl implements ProductQueryService
         return productSearchResult;
     }
     
+    Product getSearchHitProduct(SearchHit searchHit)
+    {
+        Product product = new  Product();
+        
+        product.setId(Long.valueOf(searchHit.getId()));
+        //values are used as returned by the hit fields, without going through strings
+        Object title = getFieldValue(searchHit, SearchDocumentFieldName.TITLE.getFieldName());
+        if(title != null)
+        {
+            product.setTitle(title.toString());
+        }
+        Object price = getFieldValue(searchHit, SearchDocumentFieldName.PRICE.getFieldName());
+        if(price instanceof Number)
+        {
+            product.setPrice(BigDecimal.valueOf(((Number) price).doubleValue()));
+        }
+        Object soldOut = getFieldValue(searchHit, SearchDocumentFieldName.SOLD_OUT.getFieldName());
+        product.setSoldOut(soldOut instanceof Boolean ? (Boolean) soldOut : Boolean.parseBoolean(String.valueOf(soldOut)));
+        return product;
+    }
+    
+    private Object getFieldValue(SearchHit searchHit, String fieldName)
+    {
+        final SearchHitField searchHitField = searchHit.field(fieldName);
+        return searchHitField == null ? null : searchHitField.value();
+    }
+    
     protected String getFieldValueOrNull(SearchHit searchHit, String fieldName)
     {
         final SearchHitField searchHitField = searchHit.field(fieldName);
@@ -768,20 +1494,8 @@ public class ProductQueryServiceImpl implements ProductQueryService
         else
         {
             final String filterSpecialCharsQueryString = escapeQueryChars(queryString);
-            final QueryStringQueryBuilder queryStringQueryBuilder = QueryBuilders.queryStringQuery(filterSpecialCharsQueryString);
-
-            // Add fields
-            queryStringQueryBuilder.field(SearchDocumentFieldName.TITLE.getFieldName(), (float) 0.5)
-                                    .field(SearchDocumentFieldName.DESCRIPTION.getFieldName(), (float) 0.15)
-                                    ;
-            
-            for (final String contentCategoryFieldName : SearchFacetName.categoryFacetFields)
-            {
-                queryStringQueryBuilder.field(SearchDocumentFieldName.CATEGORIES_ARRAY.getFieldName() + "."
-                        + contentCategoryFieldName, 1);
-            }
-            
-            matchQueryBuilder = queryStringQueryBuilder;
+            //fields and boosts come from the template
+            matchQueryBuilder = ProductQueryTemplate.forIndices(searchCriteria.getIndexes()).bindQueryString(filterSpecialCharsQueryString);
         }
         
         if(searchCriteria.isUseBoostingFactor())
@@ -0,0 +1,125 @@
+package org.jai.search.query.impl;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.lucene.search.join.ScoreMode;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.QueryStringQueryBuilder;
+import org.jai.search.model.ElasticSearchIndexConfig;
+import org.jai.search.model.SearchDocumentFieldName;
+import org.jai.search.model.SearchFacetName;
+
+/**
+ * Parts of the product search query which only depend on the index config, built once per config: the query string
+ * fields with their boosts and the category facet and filter field names. Searches only bind their own values to them.
+ *
+ * Shared query builders are never modified after they are built.
+ */
+final class ProductQueryTemplate
+{
+    private static final Map<ElasticSearchIndexConfig, ProductQueryTemplate> templates = new EnumMap<ElasticSearchIndexConfig, ProductQueryTemplate>(
+            ElasticSearchIndexConfig.class);
+
+    static
+    {
+        for (ElasticSearchIndexConfig config : ElasticSearchIndexConfig.values())
+        {
+            templates.put(config, new ProductQueryTemplate(config));
+        }
+    }
+
+    private final Map<String, Float> queryStringFields;
+
+    private final Map<String, String> categoryFacetFields;
+
+    private final Map<String, String> categoryFilterFields;
+
+    private final String propertiesDocumentType;
+
+    private ProductQueryTemplate(ElasticSearchIndexConfig config)
+    {
+        Map<String, Float> fields = new LinkedHashMap<String, Float>();
+        fields.put(SearchDocumentFieldName.TITLE.getFieldName(), 0.5f);
+        fields.put(SearchDocumentFieldName.DESCRIPTION.getFieldName(), 0.15f);
+        Map<String, String> facetFields = new HashMap<String, String>();
+        Map<String, String> filterFields = new HashMap<String, String>();
+        for (String categoryFacetField : SearchFacetName.categoryFacetFields)
+        {
+            fields.put(SearchDocumentFieldName.CATEGORIES_ARRAY.getFieldName() + "." + categoryFacetField, 1f);
+            facetFields.put(categoryFacetField, categoryFacetField + "." + SearchDocumentFieldName.FACET.getFieldName());
+            filterFields.put(categoryFacetField, SearchFacetName.CATEGORIES_FIELD_PREFIX + categoryFacetField + "."
+                    + SearchDocumentFieldName.FACETFILTER.getFieldName());
+        }
+        this.queryStringFields = Collections.unmodifiableMap(fields);
+        this.categoryFacetFields = Collections.unmodifiableMap(facetFields);
+        this.categoryFilterFields = Collections.unmodifiableMap(filterFields);
+        this.propertiesDocumentType = config.getPropertiesDocumentType();
+    }
+
+    static ProductQueryTemplate of(ElasticSearchIndexConfig config)
+    {
+        return templates.get(config);
+    }
+
+    /**
+     * Template of the config whose alias is the first of the given indices, the one of the com website if there is
+     * none. All configs share the same document structure.
+     */
+    static ProductQueryTemplate forIndices(String[] indices)
+    {
+        if(indices != null && indices.length > 0)
+        {
+            for (ElasticSearchIndexConfig config : ElasticSearchIndexConfig.values())
+            {
+                if(config.getIndexAliasName().equals(indices[0]))
+                {
+                    return templates.get(config);
+                }
+            }
+        }
+        return templates.get(ElasticSearchIndexConfig.COM_WEBSITE);
+    }
+
+    QueryStringQueryBuilder bindQueryString(String escapedQueryString)
+    {
+        return QueryBuilders.queryStringQuery(escapedQueryString).fields(queryStringFields);
+    }
+
+    /**
+     * Field the category facet is aggregated on, null if the code is not a category facet.
+     */
+    String getCategoryFacetField(String facetCode)
+    {
+        return categoryFacetFields.get(facetCode);
+    }
+
+    String getCategoryFilterField(String facetCode)
+    {
+        String categoryFilterField = categoryFilterFields.get(facetCode);
+        if(categoryFilterField == null)
+        {
+            return SearchFacetName.CATEGORIES_FIELD_PREFIX + facetCode + "." + SearchDocumentFieldName.FACETFILTER.getFieldName();
+        }
+        return categoryFilterField;
+    }
+
+    QueryBuilder bindCategories(QueryBuilder categoriesFilter)
+    {
+        return QueryBuilders.nestedQuery(SearchDocumentFieldName.CATEGORIES_ARRAY.getFieldName(), categoriesFilter, ScoreMode.None);
+    }
+
+    QueryBuilder bindSpecifications(QueryBuilder specificationsFilter)
+    {
+        return QueryBuilders.nestedQuery(SearchDocumentFieldName.SPECIFICATIONS.getFieldName(), specificationsFilter, ScoreMode.Total);
+    }
+
+    QueryBuilder bindProductProperties(QueryBuilder productPropertiesFilter)
+    {
+        return QueryBuilders.hasChildQuery(propertiesDocumentType, productPropertiesFilter, ScoreMode.Total);
+    }
+}
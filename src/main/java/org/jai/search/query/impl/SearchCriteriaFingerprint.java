@@ -0,0 +1,127 @@
+package org.jai.search.query.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.jai.search.model.ProductProperty;
+import org.jai.search.model.SearchCriteria;
+import org.jai.search.model.Specification;
+
+/**
+ * Canonical key of a search criteria. Two criteria describing the same search get the same fingerprint, no matter
+ * in which order indices, facets, filters or properties were added.
+ *
+ * Every value is written with its length in front, so values containing separators can not produce the same key.
+ */
+final class SearchCriteriaFingerprint
+{
+    private SearchCriteriaFingerprint()
+    {
+    }
+
+    static String of(SearchCriteria searchCriteria)
+    {
+        StringBuilder fingerprint = new StringBuilder(128);
+        append(fingerprint, "q", searchCriteria.getQuery());
+        append(fingerprint, "i", sorted(searchCriteria.getIndexes() == null ? null : Arrays.asList(searchCriteria.getIndexes())));
+        append(fingerprint, "r", sorted(searchCriteria.getRouting() == null ? null : Arrays.asList(searchCriteria.getRouting())));
+        append(fingerprint, "t", sorted(searchCriteria.getDocumentTypes() == null ? null : Arrays.asList(searchCriteria.getDocumentTypes())));
+        //paging and sorting do not change facet only results
+        boolean facetsOnly = searchCriteria.isFacetsOnly();
+        append(fingerprint, "fo", String.valueOf(facetsOnly));
+        append(fingerprint, "f", facetsOnly ? null : String.valueOf(searchCriteria.getFrom()));
+        append(fingerprint, "s", facetsOnly ? null : String.valueOf(searchCriteria.getSize()));
+        append(fingerprint, "et", String.valueOf(searchCriteria.isExactTotalCount()));
+        append(fingerprint, "o", facetsOnly || searchCriteria.getSortOrder() == null ? null : searchCriteria.getSortOrder().name());
+        append(fingerprint, "nf", String.valueOf(searchCriteria.isNoFacets()));
+        append(fingerprint, "fc", sorted(searchCriteria.getFacets()));
+
+        List<String> singleSelectFilters = new ArrayList<String>();
+        for (Entry<String, String> entry : searchCriteria.getSingleSelectFilters().entrySet())
+        {
+            singleSelectFilters.add(value(entry.getKey()) + value(entry.getValue()));
+        }
+        append(fingerprint, "ss", sorted(singleSelectFilters));
+
+        List<String> multiSelectFilters = new ArrayList<String>();
+        for (Entry<String, List<String>> entry : searchCriteria.getMultiSelectFilters().entrySet())
+        {
+            multiSelectFilters.add(value(entry.getKey()) + value(sorted(entry.getValue())));
+        }
+        append(fingerprint, "ms", sorted(multiSelectFilters));
+
+        //the list is or-ed, the entries of each map and-ed, neither order matters
+        List<String> fieldValueFilters = new ArrayList<String>();
+        for (Map<String, Object> filterItems : searchCriteria.getFieldValueFilters())
+        {
+            List<String> items = new ArrayList<String>();
+            for (Entry<String, Object> entry : filterItems.entrySet())
+            {
+                items.add(value(entry.getKey()) + value(String.valueOf(entry.getValue())));
+            }
+            fieldValueFilters.add(sorted(items));
+        }
+        append(fingerprint, "fv", sorted(fieldValueFilters));
+
+        List<String> productProperties = new ArrayList<String>();
+        for (ProductProperty productProperty : searchCriteria.getProductProperties())
+        {
+            productProperties.add(value(String.valueOf(productProperty.getId())) + value(productProperty.getSize()) + value(productProperty.getColor()));
+        }
+        append(fingerprint, "pp", sorted(productProperties));
+
+        List<String> specifications = new ArrayList<String>();
+        for (Specification specification : searchCriteria.getSpecifications())
+        {
+            specifications.add(value(specification.getResolution()) + value(specification.getMemory()));
+        }
+        append(fingerprint, "sp", sorted(specifications));
+
+        append(fingerprint, "rs", facetsOnly ? null : String.valueOf(searchCriteria.isRescoreOnSoldOut()));
+        append(fingerprint, "bf", String.valueOf(searchCriteria.isUseBoostingFactor()));
+        append(fingerprint, "sap", facetsOnly ? null : String.valueOf(searchCriteria.isSearchAfterPaging()));
+
+        //sort values are positional, their order is kept
+        StringBuilder searchAfter = new StringBuilder();
+        if(searchCriteria.getSearchAfter() != null)
+        {
+            for (Object sortValue : searchCriteria.getSearchAfter())
+            {
+                searchAfter.append(value(String.valueOf(sortValue)));
+            }
+        }
+        append(fingerprint, "sa", facetsOnly || searchCriteria.getSearchAfter() == null ? null : searchAfter.toString());
+        return fingerprint.toString();
+    }
+
+    private static void append(StringBuilder fingerprint, String name, String value)
+    {
+        fingerprint.append(name).append(value(value));
+    }
+
+    private static String sorted(Collection<String> values)
+    {
+        if(values == null)
+        {
+            return null;
+        }
+        List<String> sortedValues = new ArrayList<String>(values);
+        Collections.sort(sortedValues);
+        StringBuilder joined = new StringBuilder();
+        for (String value : sortedValues)
+        {
+            joined.append(value(value));
+        }
+        return joined.toString();
+    }
+
+    private static String value(String value)
+    {
+        return value == null ? "-" : value.length() + ":" + value;
+    }
+}
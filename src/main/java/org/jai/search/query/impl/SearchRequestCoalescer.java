@@ -0,0 +1,115 @@
+package org.jai.search.query.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Lets concurrent identical requests share one execution. The first caller for a key runs the request, callers
+ * arriving while it is in flight wait for and receive the same result, or the same exception.
+ *
+ * In flight requests are kept in lock stripes chosen by the key hash, callers with different keys rarely touch the
+ * same lock and never wait for each other's request.
+ */
+class SearchRequestCoalescer<V>
+{
+    private static final int STRIPES = 64;
+
+    private final Stripe<V>[] stripes;
+
+    private final AtomicLong coalescedRequests = new AtomicLong();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    SearchRequestCoalescer()
+    {
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+        {
+            stripes[i] = new Stripe<V>();
+        }
+    }
+
+    V execute(String key, Supplier<V> request)
+    {
+        Stripe<V> stripe = getStripe(key);
+        CompletableFuture<V> inFlight;
+        boolean leader = false;
+        synchronized (stripe)
+        {
+            inFlight = stripe.requests.get(key);
+            if(inFlight == null)
+            {
+                inFlight = new CompletableFuture<V>();
+                stripe.requests.put(key, inFlight);
+                leader = true;
+            }
+        }
+
+        if(!leader)
+        {
+            coalescedRequests.incrementAndGet();
+            return await(inFlight);
+        }
+
+        try
+        {
+            V result = request.get();
+            inFlight.complete(result);
+            return result;
+        } catch (RuntimeException ex)
+        {
+            inFlight.completeExceptionally(ex);
+            throw ex;
+        }
+        finally
+        {
+            synchronized (stripe)
+            {
+                stripe.requests.remove(key);
+            }
+            if(!inFlight.isDone())
+            {
+                //failed with an error, waiting callers must not hang
+                inFlight.completeExceptionally(new IllegalStateException("Coalesced search request failed for: " + key));
+            }
+        }
+    }
+
+    /**
+     * Number of requests which were answered by another caller's execution.
+     */
+    long getCoalescedRequests()
+    {
+        return coalescedRequests.get();
+    }
+
+    private V await(CompletableFuture<V> inFlight)
+    {
+        try
+        {
+            return inFlight.join();
+        } catch (CompletionException ex)
+        {
+            if(ex.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    private Stripe<V> getStripe(String key)
+    {
+        int hash = key.hashCode();
+        //spread the high bits, the stripe count is a power of two
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    private static class Stripe<V>
+    {
+        private final Map<String, CompletableFuture<V>> requests = new HashMap<String, CompletableFuture<V>>();
+    }
+}
@@ -0,0 +1,192 @@
+package org.jai.search.query.impl;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+import org.jai.search.model.CacheStatistics;
+
+/**
+ * Bounded in-process cache for query results.
+ *
+ * Entries are evicted least recently used first once either the entry count or the total weight is over its limit,
+ * and are not returned anymore after the time to live. Each entry remembers the indices its result came from, so it
+ * can be dropped when one of them changes. Entries for a search over all indices are dropped on any change.
+ *
+ * Values are stored and handed out as they are. Callers passing them on to code which may modify them copy them on put
+ * and on get.
+ *
+ * A search racing with a write must not put the old result back. Searches take the invalidation count before they
+ * are sent, their result is dropped if any invalidation happened in the meantime.
+ */
+class SearchResultCache<V>
+{
+    private final int maxEntries;
+
+    private final long maxWeight;
+
+    private final long timeToLiveInNanos;
+
+    private final ToLongFunction<V> weigher;
+
+    //access ordered, the eldest entry is the least recently used one
+    private final LinkedHashMap<String, CacheEntry<V>> entries = new LinkedHashMap<String, CacheEntry<V>>(16, 0.75f, true);
+
+    private long totalWeight;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    private long invalidations;
+
+    private long invalidationCount;
+
+    SearchResultCache(int maxEntries, long maxWeight, long timeToLiveInMillis, ToLongFunction<V> weigher)
+    {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.timeToLiveInNanos = TimeUnit.MILLISECONDS.toNanos(timeToLiveInMillis);
+        this.weigher = weigher;
+    }
+
+    synchronized V get(String key)
+    {
+        V value = peek(key);
+        if(value == null)
+        {
+            misses++;
+        }
+        else
+        {
+            hits++;
+        }
+        return value;
+    }
+
+    /**
+     * Like {@link #get(String)}, without counting a hit or miss.
+     */
+    synchronized V peek(String key)
+    {
+        CacheEntry<V> entry = entries.get(key);
+        if(entry == null)
+        {
+            return null;
+        }
+        if(entry.isExpired(System.nanoTime()))
+        {
+            remove(key);
+            evictions++;
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * To be taken before running a search whose result is put afterwards.
+     */
+    synchronized long getInvalidationCount()
+    {
+        return invalidationCount;
+    }
+
+    synchronized void put(String key, String[] indices, V value, long searchedAtInvalidationCount)
+    {
+        if(searchedAtInvalidationCount != invalidationCount)
+        {
+            //written while searching, the result may be outdated already
+            return;
+        }
+        long weight = weigher.applyAsLong(value);
+        if(weight > maxWeight)
+        {
+            return;
+        }
+        remove(key);
+        entries.put(key, new CacheEntry<V>(value, indices, weight, System.nanoTime() + timeToLiveInNanos));
+        totalWeight += weight;
+
+        Iterator<CacheEntry<V>> eldest = entries.values().iterator();
+        while (eldest.hasNext() && (entries.size() > maxEntries || totalWeight > maxWeight))
+        {
+            totalWeight -= eldest.next().weight;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops all entries whose result may contain documents of the given index.
+     */
+    synchronized void invalidate(String indexName)
+    {
+        invalidationCount++;
+        Iterator<CacheEntry<V>> iterator = entries.values().iterator();
+        while (iterator.hasNext())
+        {
+            CacheEntry<V> entry = iterator.next();
+            if(entry.indices == null || entry.indices.length == 0 || Arrays.asList(entry.indices).contains(indexName))
+            {
+                totalWeight -= entry.weight;
+                iterator.remove();
+                invalidations++;
+            }
+        }
+    }
+
+    synchronized void invalidateAll()
+    {
+        invalidationCount++;
+        invalidations += entries.size();
+        entries.clear();
+        totalWeight = 0;
+    }
+
+    synchronized CacheStatistics getStatistics()
+    {
+        return new CacheStatistics().hits(hits)
+                                    .misses(misses)
+                                    .evictions(evictions)
+                                    .invalidations(invalidations)
+                                    .entries(entries.size())
+                                    .weight(totalWeight);
+    }
+
+    private void remove(String key)
+    {
+        CacheEntry<V> removed = entries.remove(key);
+        if(removed != null)
+        {
+            totalWeight -= removed.weight;
+        }
+    }
+
+    private static class CacheEntry<V>
+    {
+        private final V value;
+
+        private final String[] indices;
+
+        private final long weight;
+
+        private final long expiresAt;
+
+        CacheEntry(V value, String[] indices, long weight, long expiresAt)
+        {
+            this.value = value;
+            this.indices = indices;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now)
+        {
+            return now - expiresAt > 0;
+        }
+    }
+}
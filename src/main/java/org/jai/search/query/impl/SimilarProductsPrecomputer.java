@@ -0,0 +1,161 @@
+package org.jai.search.query.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.jai.search.model.ElasticSearchIndexConfig;
+import org.jai.search.model.SearchCriteria;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the more like this query of the query service for many products, a batch of products per multi search
+ * request and several requests at the same time, keeping only the ids of the similar products.
+ */
+class SimilarProductsPrecomputer
+{
+    private static final Logger logger = LoggerFactory.getLogger(SimilarProductsPrecomputer.class);
+
+    private static final int PRODUCT_ID_BATCH_SIZE = 500;
+
+    private static final int PRODUCTS_PER_REQUEST = 50;
+
+    private static final int MAX_REQUESTS_IN_FLIGHT = 4;
+
+    private final Client client;
+
+    private final ProductQueryServiceImpl productQueryService;
+
+    private final int size;
+
+    SimilarProductsPrecomputer(Client client, ProductQueryServiceImpl productQueryService, int size)
+    {
+        this.client = client;
+        this.productQueryService = productQueryService;
+        this.size = size;
+    }
+
+    List<Long> getProductIds(ElasticSearchIndexConfig config)
+    {
+        List<Long> productIds = new ArrayList<Long>();
+        SearchCriteria searchCriteria = new SearchCriteria().indices(config.getIndexAliasName()).documentTypes(config.getDocumentType());
+        Object[] searchAfter = null;
+        SearchHit[] hits;
+        do
+        {
+            hits = productQueryService.prepareExport(searchCriteria, PRODUCT_ID_BATCH_SIZE, searchAfter)
+                                      .setFetchSource(false)
+                                      .get().getHits().getHits();
+            for (SearchHit searchHit : hits)
+            {
+                productIds.add(Long.valueOf(searchHit.getId()));
+            }
+            if(hits.length > 0)
+            {
+                searchAfter = hits[hits.length - 1].getSortValues();
+            }
+        } while (hits.length == PRODUCT_ID_BATCH_SIZE);
+        return productIds;
+    }
+
+    /**
+     * Similar product ids of each given product, most similar first. Products whose query failed are left out.
+     */
+    Map<Long, long[]> compute(ElasticSearchIndexConfig config, String[] fields, Collection<Long> productIds)
+    {
+        final Map<Long, long[]> similarProducts = new ConcurrentHashMap<Long, long[]>();
+        final Semaphore requestsInFlight = new Semaphore(MAX_REQUESTS_IN_FLIGHT);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+        Iterator<Long> productIdIterator = productIds.iterator();
+        while (productIdIterator.hasNext() && failure.get() == null)
+        {
+            final List<Long> batch = new ArrayList<Long>(PRODUCTS_PER_REQUEST);
+            MultiSearchRequestBuilder multiSearchRequestBuilder = client.prepareMultiSearch();
+            while (productIdIterator.hasNext() && batch.size() < PRODUCTS_PER_REQUEST)
+            {
+                Long productId = productIdIterator.next();
+                batch.add(productId);
+                multiSearchRequestBuilder.add(productQueryService.prepareSimilarProducts(config, fields, productId)
+                                                                 .setTypes(config.getDocumentType())
+                                                                 .setFetchSource(false)
+                                                                 .setSize(size));
+            }
+
+            requestsInFlight.acquireUninterruptibly();
+            try
+            {
+                multiSearchRequestBuilder.execute(new ActionListener<MultiSearchResponse>()
+                {
+                    @Override
+                    public void onResponse(MultiSearchResponse multiSearchResponse)
+                    {
+                        try
+                        {
+                            MultiSearchResponse.Item[] responses = multiSearchResponse.getResponses();
+                            for (int i = 0; i < batch.size(); i++)
+                            {
+                                if(responses[i].isFailure())
+                                {
+                                    logger.warn("Similar products of product {} could not be computed: {}", batch.get(i), responses[i].getFailureMessage());
+                                    continue;
+                                }
+                                similarProducts.put(batch.get(i), getProductIds(responses[i].getResponse().getHits()));
+                            }
+                        } catch (RuntimeException ex)
+                        {
+                            //must not reach the catch around execute, the permit would be released twice
+                            failure.compareAndSet(null, ex);
+                        } finally
+                        {
+                            requestsInFlight.release();
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Exception ex)
+                    {
+                        failure.compareAndSet(null, ex);
+                        requestsInFlight.release();
+                    }
+                });
+            } catch (RuntimeException ex)
+            {
+                //no node available or client closed, the listener is never called
+                failure.compareAndSet(null, ex);
+                requestsInFlight.release();
+            }
+        }
+
+        //all requests are done once every permit is back
+        requestsInFlight.acquireUninterruptibly(MAX_REQUESTS_IN_FLIGHT);
+        if(failure.get() != null)
+        {
+            throw new RuntimeException("Error occurred while computing similar products for: " + config.getIndexAliasName(), failure.get());
+        }
+        return similarProducts;
+    }
+
+    private long[] getProductIds(SearchHits searchHits)
+    {
+        SearchHit[] hits = searchHits.getHits();
+        long[] productIds = new long[hits.length];
+        for (int i = 0; i < hits.length; i++)
+        {
+            productIds[i] = Long.parseLong(hits[i].getId());
+        }
+        return productIds;
+    }
+}
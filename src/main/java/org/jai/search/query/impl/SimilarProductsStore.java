@@ -0,0 +1,135 @@
+package org.jai.search.query.impl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Precomputed similar product ids per index alias, similarity fields and product, held as primitive arrays.
+ *
+ * Writing a product drops its own similar products and records it as changed, so it is served by the live query
+ * until it is recomputed. Lists of other products may still contain it, deleted products are skipped when the ids are
+ * looked up. Any other change of an index drops all its lists.
+ */
+class SimilarProductsStore
+{
+    private final Map<String, Map<Long, long[]>> similarProducts = new ConcurrentHashMap<String, Map<Long, long[]>>();
+
+    //products written since their lists were computed, per key, guarded by this
+    private final Map<String, Set<Long>> changedProducts = new HashMap<String, Set<Long>>();
+
+    long[] get(String indexName, String[] fields, Long productId)
+    {
+        Map<Long, long[]> products = similarProducts.get(getKey(indexName, fields));
+        return products == null ? null : products.get(productId);
+    }
+
+    /**
+     * To be called before computing all lists, products changed from here on are dropped again by
+     * {@link #replace(String, String[], Map)}.
+     */
+    synchronized void computeStarted(String indexName, String[] fields)
+    {
+        changedProducts.put(getKey(indexName, fields), new HashSet<Long>());
+    }
+
+    /**
+     * Replaces all lists of the alias and fields in one step.
+     */
+    synchronized void replace(String indexName, String[] fields, Map<Long, long[]> products)
+    {
+        String key = getKey(indexName, fields);
+        Set<Long> changedProductIds = changedProducts.get(key);
+        if(changedProductIds == null)
+        {
+            //dropped by an index change while computing
+            return;
+        }
+        Map<Long, long[]> storedProducts = new ConcurrentHashMap<Long, long[]>(products);
+        for (Long productId : changedProductIds)
+        {
+            storedProducts.remove(productId);
+        }
+        similarProducts.put(key, storedProducts);
+    }
+
+    /**
+     * Products written since their lists were computed, they are not changed anymore once taken.
+     */
+    synchronized Set<Long> takeChangedProducts(String indexName, String[] fields)
+    {
+        Set<Long> changedProductIds = changedProducts.get(getKey(indexName, fields));
+        if(changedProductIds == null)
+        {
+            return new HashSet<Long>();
+        }
+        changedProducts.put(getKey(indexName, fields), new HashSet<Long>());
+        return changedProductIds;
+    }
+
+    /**
+     * Stores recomputed lists, products changed again in the meantime stay changed.
+     */
+    synchronized void putAll(String indexName, String[] fields, Map<Long, long[]> products)
+    {
+        String key = getKey(indexName, fields);
+        Map<Long, long[]> storedProducts = similarProducts.get(key);
+        Set<Long> changedProductIds = changedProducts.get(key);
+        if(storedProducts == null || changedProductIds == null)
+        {
+            return;
+        }
+        for (Map.Entry<Long, long[]> product : products.entrySet())
+        {
+            if(!changedProductIds.contains(product.getKey()))
+            {
+                storedProducts.put(product.getKey(), product.getValue());
+            }
+        }
+    }
+
+    synchronized void onDocumentChanged(String indexName, Long productId)
+    {
+        for (Map.Entry<String, Set<Long>> changedProductIds : changedProducts.entrySet())
+        {
+            if(changedProductIds.getKey().startsWith(indexName + "/"))
+            {
+                changedProductIds.getValue().add(productId);
+                Map<Long, long[]> storedProducts = similarProducts.get(changedProductIds.getKey());
+                if(storedProducts != null)
+                {
+                    storedProducts.remove(productId);
+                }
+            }
+        }
+    }
+
+    synchronized void invalidate(String indexName)
+    {
+        removeKeys(similarProducts, indexName);
+        removeKeys(changedProducts, indexName);
+    }
+
+    private void removeKeys(Map<String, ?> map, String indexName)
+    {
+        Iterator<String> keys = map.keySet().iterator();
+        while (keys.hasNext())
+        {
+            if(keys.next().startsWith(indexName + "/"))
+            {
+                keys.remove();
+            }
+        }
+    }
+
+    private String getKey(String indexName, String[] fields)
+    {
+        String[] sortedFields = fields.clone();
+        Arrays.sort(sortedFields);
+        return indexName + "/" + String.join(",", sortedFields);
+    }
+}
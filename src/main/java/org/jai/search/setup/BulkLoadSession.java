@@ -0,0 +1,28 @@
+package org.jai.search.setup;
+
+import java.io.Closeable;
+
+/**
+ * Index settings tuned for a bulk load: no refreshes, no replicas and asynchronous translog syncs. The settings the
+ * index had before are put back when the session is closed, also when the load failed, so use it in a
+ * try-with-resources block.
+ */
+public interface BulkLoadSession extends Closeable
+{
+    String getIndexName();
+
+    /**
+     * Merges the index down to at most the given number of segments per shard when the session is closed after
+     * {@link #loadCompleted()}. Nothing is merged by default.
+     */
+    BulkLoadSession forceMergeOnClose(int maxNumSegments);
+
+    /**
+     * Marks the load as done, to be called as the last statement of the try block. A session closed without it is
+     * taken as a failed load and its index is not merged.
+     */
+    void loadCompleted();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,37 @@
+package org.jai.search.setup;
+
+import java.util.Set;
+
+/**
+ * Index and alias metadata read from the cluster state. Only the metadata of the indices and aliases starting with the
+ * requested name is fetched, it is cached and answers all later lookups of names starting with it.
+ *
+ * Changes made through {@link SetupIndexService} invalidate the cache, changes made elsewhere are seen once the
+ * cached metadata expires.
+ */
+public interface IndexMetadataService
+{
+    /**
+     * True for an index or alias with the given name.
+     */
+    boolean isIndexExists(String indexName);
+
+    boolean isAliasExists(String aliasName);
+
+    Set<String> getIndicesForAlias(String aliasName);
+
+    Set<String> getIndicesStartingWith(String prefix);
+
+    /**
+     * Setting of the index, or of the single index behind the alias, null if it is not set. Fails for an alias of
+     * several indices, their settings may differ.
+     */
+    String getIndexSetting(String indexName, String settingName);
+
+    void invalidate();
+
+    /**
+     * Number of times metadata was fetched from the cluster.
+     */
+    long getFetchCount();
+}
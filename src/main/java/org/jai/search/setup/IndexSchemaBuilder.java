@@ -3,11 +3,18 @@ package org.jai.search.setup;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.jai.search.model.ElasticSearchIndexConfig;
 import org.jai.search.model.ElasticSearchReservedWords;
+import org.jai.search.model.IndexSizing;
 import org.jai.search.model.SearchDocumentFieldName;
 import org.jai.search.model.SearchFacetName;
 import org.jai.search.util.SearchDateUtils;
@@ -18,6 +25,43 @@ public class IndexSchemaBuilder
 {
     private static final Logger logger = LoggerFactory.getLogger(IndexSchemaBuilder.class);
     
+    /**
+     * Full paths of the fields terms facets are aggregated on, the category facet fields of every level and the
+     * specification fields.
+     */
+    public static final List<String> facetFields;
+    
+    static
+    {
+        List<String> fields = new ArrayList<String>();
+        for (String categoryFacetField : SearchFacetName.categoryFacetFields)
+        {
+            fields.add(SearchFacetName.CATEGORIES_FIELD_PREFIX + categoryFacetField + "." + SearchDocumentFieldName.FACET.getFieldName());
+        }
+        fields.add(SearchDocumentFieldName.SPECIFICATIONS.getFieldName() + "." + SearchDocumentFieldName.RESOLUTION.getFieldName());
+        fields.add(SearchDocumentFieldName.SPECIFICATIONS.getFieldName() + "." + SearchDocumentFieldName.MEMORY.getFieldName());
+        facetFields = Collections.unmodifiableList(fields);
+    }
+    
+    private final Set<String> eagerGlobalOrdinalsFields;
+    
+    /**
+     * Global ordinals of all facet fields are built on refresh.
+     */
+    public IndexSchemaBuilder()
+    {
+        this(facetFields);
+    }
+    
+    /**
+     * Global ordinals of the given fields, full paths, are built on refresh instead of by the first aggregation after
+     * it. Other fields build them lazily.
+     */
+    public IndexSchemaBuilder(Collection<String> eagerGlobalOrdinalsFields)
+    {
+        this.eagerGlobalOrdinalsFields = new HashSet<String>(eagerGlobalOrdinalsFields);
+    }
+    
     public Settings getSettingForIndex(ElasticSearchIndexConfig config) throws IOException
     {
         logger.debug("Generating settings for index: {}", config.getIndexAliasName());
@@ -108,6 +152,17 @@ public class IndexSchemaBuilder
         return settings;
     }
 
+    /**
+     * Settings of the index with the given number of shards and replicas.
+     */
+    public Settings getSettingForIndex(ElasticSearchIndexConfig config, IndexSizing indexSizing) throws IOException
+    {
+        return Settings.builder().put(getSettingForIndex(config))
+                                 .put(ElasticSearchReservedWords.NUMBER_OF_SHARDS.getText(), indexSizing.getNumberOfShards())
+                                 .put(ElasticSearchReservedWords.NUMBER_OF_REPLICAS.getText(), indexSizing.getNumberOfReplicas())
+                                 .build();
+    }
+
     public XContentBuilder getDocumentTypeMapping(ElasticSearchIndexConfig elasticSearchIndexConfig, String documentType, boolean parentRelationship) throws IOException
     {
         XContentBuilder builder =  jsonBuilder().prettyPrint().startObject().startObject(documentType);
@@ -195,17 +250,26 @@ public class IndexSchemaBuilder
                            .field(ElasticSearchReservedWords.TYPE.getText(), ElasticSearchReservedWords.KEYWORD.getText())
                            .field(ElasticSearchReservedWords.INDEX.getText(), ElasticSearchReservedWords.TRUE.getText())
                            .field(ElasticSearchReservedWords.STORE.getText(), ElasticSearchReservedWords.TRUE.getText())
+                           .field(ElasticSearchReservedWords.EAGER_GLOBAL_ORDINALS.getText(), isEagerGlobalOrdinals(SearchDocumentFieldName.SPECIFICATIONS.getFieldName() + "." 
+                                   + SearchDocumentFieldName.RESOLUTION.getFieldName()))
                         .endObject()
                         .startObject(SearchDocumentFieldName.MEMORY.getFieldName())
                            .field(ElasticSearchReservedWords.TYPE.getText(), ElasticSearchReservedWords.KEYWORD.getText())
                            .field(ElasticSearchReservedWords.INDEX.getText(), ElasticSearchReservedWords.TRUE.getText())
                            .field(ElasticSearchReservedWords.STORE.getText(), ElasticSearchReservedWords.TRUE.getText())
+                           .field(ElasticSearchReservedWords.EAGER_GLOBAL_ORDINALS.getText(), isEagerGlobalOrdinals(SearchDocumentFieldName.SPECIFICATIONS.getFieldName() + "." 
+                                   + SearchDocumentFieldName.MEMORY.getFieldName()))
                         .endObject()
                     .endObject()
                     .field(ElasticSearchReservedWords.TYPE.getText(), ElasticSearchReservedWords.NESTED.getText())
                 .endObject();
     }
 
+    private boolean isEagerGlobalOrdinals(String fieldPath)
+    {
+        return eagerGlobalOrdinalsFields.contains(fieldPath);
+    }
+
     private void addProductBooleanFieldMappingForNEW(XContentBuilder builder) throws IOException
     {
         //standard fields
@@ -282,6 +346,8 @@ public class IndexSchemaBuilder
                                                     .field(ElasticSearchReservedWords.TYPE.getText(), ElasticSearchReservedWords.KEYWORD.getText())
                                                     .field(ElasticSearchReservedWords.STORE.getText(), ElasticSearchReservedWords.TRUE.getText())
                                                     .field(ElasticSearchReservedWords.INDEX.getText(), ElasticSearchReservedWords.TRUE.getText())
+                                                    .field(ElasticSearchReservedWords.EAGER_GLOBAL_ORDINALS.getText(), isEagerGlobalOrdinals(SearchFacetName.CATEGORIES_FIELD_PREFIX 
+                                                            + facetName.getFacetFieldNameAtLevel(i) + "." + SearchDocumentFieldName.FACET.getFieldName()))
                                                 .endObject()
                                                 .startObject(facetName.getFacetFieldNameAtLevel(i) + "." + SearchDocumentFieldName.FACETFILTER.getFieldName())
                                                     .field(ElasticSearchReservedWords.TYPE.getText(), ElasticSearchReservedWords.KEYWORD.getText())
@@ -0,0 +1,43 @@
+package org.jai.search.setup;
+
+import org.jai.search.model.IndexSizing;
+
+/**
+ * Shard and replica counts for an index from the expected catalog size and the number of data nodes.
+ *
+ * Shards are added once the primary data would grow beyond the target shard size or document count, more than one
+ * shard is rounded up to a multiple of the node count so every node holds the same number. There is at least one
+ * replica, it is allocated once a second node joins. With more nodes than shard copies further replicas spread the
+ * searches over all of them.
+ */
+public class IndexSizingAdvisor
+{
+    public static final long TARGET_SHARD_SIZE_IN_BYTES = 30l * 1024 * 1024 * 1024;
+
+    //well below the Lucene limit of a little over 2 billion documents per shard
+    public static final long MAX_DOCUMENTS_PER_SHARD = 200000000l;
+
+    public IndexSizing advise(long expectedDocumentCount, long averageDocumentSizeInBytes, int nodeCount)
+    {
+        if(expectedDocumentCount < 0 || averageDocumentSizeInBytes < 0 || nodeCount <= 0)
+        {
+            throw new IllegalArgumentException("Document count and size must not be negative and node count must be positive");
+        }
+
+        long expectedSizeInBytes = expectedDocumentCount * averageDocumentSizeInBytes;
+        int numberOfShards = (int) Math.max(1, Math.max(divideRoundingUp(expectedSizeInBytes, TARGET_SHARD_SIZE_IN_BYTES),
+                                                        divideRoundingUp(expectedDocumentCount, MAX_DOCUMENTS_PER_SHARD)));
+        if(numberOfShards > 1)
+        {
+            numberOfShards = (int) divideRoundingUp(numberOfShards, nodeCount) * nodeCount;
+        }
+
+        int numberOfReplicas = Math.max(1, Math.min(nodeCount - 1, nodeCount / numberOfShards - 1));
+        return new IndexSizing(numberOfShards, numberOfReplicas);
+    }
+
+    private static long divideRoundingUp(long dividend, long divisor)
+    {
+        return (dividend + divisor - 1) / divisor;
+    }
+}
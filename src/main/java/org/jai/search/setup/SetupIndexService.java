@@ -1,5 +1,6 @@
 package org.jai.search.setup;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -11,11 +12,48 @@ public interface SetupIndexService
     void createIndex(ElasticSearchIndexConfig searchIndexConfig);
     
     void updateIndexSettings(ElasticSearchIndexConfig config, Map<String, Object> settings);
+
+    /**
+     * Applies bulk load settings to the index, or all indices behind an alias, without closing it. Closing the
+     * returned session restores the previous settings.
+     */
+    BulkLoadSession startBulkLoad(String indexName);
     
     void updateDocumentTypeMapping(ElasticSearchIndexConfig config, String documentType, boolean parentRelationship);
 
+    /**
+     * Facet fields, by full path, whose global ordinals are built on refresh in the mappings put from now on. All
+     * facet fields by default, others build them on the first aggregation after a refresh.
+     */
+    void setEagerGlobalOrdinalsFields(Collection<String> fieldPaths);
+
+    /**
+     * Runs a terms aggregation on every facet field of the index, a rebuilt index is warmed up this way before the
+     * alias is moved to it. Returns the time taken in milliseconds.
+     */
+    long warmUpFacets(String indexName);
+
+    /**
+     * Recreates the index of every config and indexes the sample data, configs are set up in parallel.
+     */
     void setupAllIndices(boolean parentRelationship);
 
+    /**
+     * Time in milliseconds each config took in the last setupAllIndices call.
+     */
+    Map<ElasticSearchIndexConfig, Long> getIndexSetupTimings();
+
+    /**
+     * Loads a new suffixed index next to the live one and moves the alias over to it in one step, the old index is
+     * removed afterwards. Searches are served by the old index until the alias is switched. Shard and replica counts of
+     * the new index follow the size of the product groups and the number of data nodes.
+     *
+     * @return name of the new index
+     */
+    String rebuildIndex(ElasticSearchIndexConfig config, List<ProductGroup> productGroups, boolean parentRelationship);
+
+    void rebuildAllIndices(boolean parentRelationship);
+
     void indexProductGroupData(List<ProductGroup> productGroups);
 
     boolean isIndexExists(String indexName);
@@ -0,0 +1,166 @@
+package org.jai.search.setup.impl;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.jai.search.model.ElasticSearchReservedWords;
+import org.jai.search.setup.BulkLoadSession;
+import org.jai.search.setup.IndexMetadataService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.carrotsearch.hppc.cursors.ObjectObjectCursor;
+
+/**
+ * All settings changed here are dynamic, they are applied to the open index and searches keep working.
+ */
+class BulkLoadSessionImpl implements BulkLoadSession
+{
+    private static final Logger logger = LoggerFactory.getLogger(BulkLoadSessionImpl.class);
+
+    private static final String[] TUNED_SETTINGS = new String[]{ElasticSearchReservedWords.REFRESH_INTERVAL.getText(),
+                                                                ElasticSearchReservedWords.NUMBER_OF_REPLICAS.getText(),
+                                                                ElasticSearchReservedWords.TRANSLOG_DURABILITY.getText()};
+
+    private final Client client;
+
+    private final IndexMetadataService indexMetadataService;
+
+    private final String indexName;
+
+    //settings before the session per concrete index, the index name may be an alias
+    private final Map<String, Settings> previousSettings = new HashMap<String, Settings>();
+
+    private int maxNumSegments;
+
+    private boolean loadCompleted;
+
+    private boolean flushed;
+
+    private boolean closed;
+
+    BulkLoadSessionImpl(Client client, IndexMetadataService indexMetadataService, String indexName)
+    {
+        this.client = client;
+        this.indexMetadataService = indexMetadataService;
+        this.indexName = indexName;
+
+        for (ObjectObjectCursor<String, Settings> entry : client.admin().indices().prepareGetSettings(indexName).get().getIndexToSettings())
+        {
+            previousSettings.put(entry.key, entry.value);
+        }
+
+        client.admin().indices().prepareUpdateSettings(indexName)
+                                .setSettings(Settings.builder()
+                                        .put(ElasticSearchReservedWords.REFRESH_INTERVAL.getText(), -1)
+                                        .put(ElasticSearchReservedWords.NUMBER_OF_REPLICAS.getText(), 0)
+                                        .put(ElasticSearchReservedWords.TRANSLOG_DURABILITY.getText(), "async"))
+                                .get();
+        indexMetadataService.invalidate();
+        logger.debug("Bulk load settings applied to index {}", indexName);
+    }
+
+    @Override
+    public String getIndexName()
+    {
+        return indexName;
+    }
+
+    @Override
+    public BulkLoadSession forceMergeOnClose(int maxNumSegments)
+    {
+        this.maxNumSegments = maxNumSegments;
+        return this;
+    }
+
+    @Override
+    public void loadCompleted()
+    {
+        loadCompleted = true;
+    }
+
+    /**
+     * The index is flushed and merged while it still has no replicas, the replicas restored afterwards copy the merged
+     * segments. Every index is restored even if flushing or restoring another one fails, indices which could not be
+     * restored are tried again by the next call.
+     */
+    @Override
+    public void close()
+    {
+        if(closed)
+        {
+            return;
+        }
+
+        RuntimeException failure = null;
+        if(!flushed)
+        {
+            try
+            {
+                flushAndMerge();
+                flushed = true;
+            } catch (RuntimeException ex)
+            {
+                logger.error("Error occurred while flushing index after bulk load: " + indexName, ex);
+                failure = ex;
+            }
+        }
+
+        Iterator<Map.Entry<String, Settings>> iterator = previousSettings.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            Map.Entry<String, Settings> entry = iterator.next();
+            Settings.Builder restoredSettings = Settings.builder();
+            for (String setting : TUNED_SETTINGS)
+            {
+                String previousValue = entry.getValue().get(setting);
+                if(previousValue == null)
+                {
+                    //was not set on the index, back to the default
+                    restoredSettings.putNull(setting);
+                }
+                else
+                {
+                    restoredSettings.put(setting, previousValue);
+                }
+            }
+            try
+            {
+                client.admin().indices().prepareUpdateSettings(entry.getKey()).setSettings(restoredSettings).get();
+                iterator.remove();
+                logger.debug("Settings restored after bulk load for index {}", entry.getKey());
+            } catch (RuntimeException ex)
+            {
+                logger.error("Error occurred while restoring settings after bulk load for index: " + entry.getKey(), ex);
+                if(failure == null)
+                {
+                    failure = new RuntimeException("Error occurred while restoring settings after bulk load for index: " + indexName);
+                }
+                failure.addSuppressed(ex);
+            }
+        }
+        indexMetadataService.invalidate();
+        if(failure != null)
+        {
+            throw failure;
+        }
+
+        client.admin().indices().prepareRefresh(indexName).get();
+        closed = true;
+    }
+
+    private void flushAndMerge()
+    {
+        //operations written with async durability are synced now
+        client.admin().indices().prepareFlush(indexName).get();
+        if(loadCompleted && maxNumSegments > 0)
+        {
+            long start = System.currentTimeMillis();
+            client.admin().indices().prepareForceMerge(indexName).setMaxNumSegments(maxNumSegments).get();
+            logger.debug("Index {} merged to {} segments in {} ms", new Object[]{indexName, maxNumSegments, System.currentTimeMillis() - start});
+        }
+    }
+}
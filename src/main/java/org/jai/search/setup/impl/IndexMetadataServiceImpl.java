@@ -0,0 +1,177 @@
+package org.jai.search.setup.impl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.jai.search.client.SearchClientService;
+import org.jai.search.setup.IndexMetadataService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Metadata of the indices whose name or alias starts with a name is fetched with the wildcard pattern of the name,
+ * without routing table, nodes and blocks. It holds every index or alias of any longer name too, so lookups of such
+ * names are answered from it.
+ */
+@Service
+public class IndexMetadataServiceImpl implements IndexMetadataService
+{
+    private static final Logger logger = LoggerFactory.getLogger(IndexMetadataServiceImpl.class);
+
+    private static final long METADATA_TIME_TO_LIVE_IN_MILLIS = 60000;
+
+    //closed indices exist as well, patterns matching nothing are no error
+    private static final IndicesOptions METADATA_INDICES_OPTIONS = IndicesOptions.fromOptions(true, true, true, true);
+
+    @Autowired
+    private SearchClientService searchClientService;
+
+    //metadata per fetched name
+    private final Map<String, IndexMetadataSnapshot> snapshots = new ConcurrentHashMap<String, IndexMetadataSnapshot>();
+
+    //metadata fetched before the last invalidation is not cached anymore
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    private final AtomicLong fetchCount = new AtomicLong();
+
+    @Override
+    public boolean isIndexExists(String indexName)
+    {
+        for (IndexMetaData indexMetaData : getIndexMetaData(indexName))
+        {
+            if(indexMetaData.getIndex().getName().equals(indexName) || indexMetaData.getAliases().containsKey(indexName))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isAliasExists(String aliasName)
+    {
+        return !getIndicesForAlias(aliasName).isEmpty();
+    }
+
+    @Override
+    public Set<String> getIndicesForAlias(String aliasName)
+    {
+        Set<String> indices = new HashSet<String>();
+        for (IndexMetaData indexMetaData : getIndexMetaData(aliasName))
+        {
+            if(indexMetaData.getAliases().containsKey(aliasName))
+            {
+                indices.add(indexMetaData.getIndex().getName());
+            }
+        }
+        return indices;
+    }
+
+    @Override
+    public Set<String> getIndicesStartingWith(String prefix)
+    {
+        Set<String> indices = new HashSet<String>();
+        for (IndexMetaData indexMetaData : getIndexMetaData(prefix))
+        {
+            if(indexMetaData.getIndex().getName().startsWith(prefix))
+            {
+                indices.add(indexMetaData.getIndex().getName());
+            }
+        }
+        return indices;
+    }
+
+    @Override
+    public String getIndexSetting(String indexName, String settingName)
+    {
+        IndexMetaData matchingIndexMetaData = null;
+        for (IndexMetaData indexMetaData : getIndexMetaData(indexName))
+        {
+            if(indexMetaData.getIndex().getName().equals(indexName) || indexMetaData.getAliases().containsKey(indexName))
+            {
+                if(matchingIndexMetaData != null)
+                {
+                    throw new RuntimeException("Error occurred while reading setting " + settingName + ", alias " + indexName
+                            + " points to several indices: " + getIndicesForAlias(indexName));
+                }
+                matchingIndexMetaData = indexMetaData;
+            }
+        }
+        return matchingIndexMetaData == null ? null : matchingIndexMetaData.getSettings().get(settingName);
+    }
+
+    @Override
+    public void invalidate()
+    {
+        invalidationCount.incrementAndGet();
+        snapshots.clear();
+    }
+
+    @Override
+    public long getFetchCount()
+    {
+        return fetchCount.get();
+    }
+
+    private List<IndexMetaData> getIndexMetaData(String name)
+    {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, IndexMetadataSnapshot> snapshot : snapshots.entrySet())
+        {
+            if(name.startsWith(snapshot.getKey()) && !snapshot.getValue().isExpired(now))
+            {
+                return snapshot.getValue().indexMetaData;
+            }
+        }
+
+        long invalidationsBefore = invalidationCount.get();
+        List<IndexMetaData> indexMetaData = new ArrayList<IndexMetaData>();
+        for (IndexMetaData entry : searchClientService.getClient().admin().cluster().prepareState().clear()
+                                                      .setMetaData(true)
+                                                      .setIndices(name + "*")
+                                                      .setIndicesOptions(METADATA_INDICES_OPTIONS)
+                                                      .get().getState().getMetaData())
+        {
+            indexMetaData.add(entry);
+        }
+        fetchCount.incrementAndGet();
+        logger.debug("Fetched metadata of {} indices for {}", indexMetaData.size(), name);
+
+        IndexMetadataSnapshot snapshot = new IndexMetadataSnapshot(indexMetaData, now + METADATA_TIME_TO_LIVE_IN_MILLIS);
+        snapshots.put(name, snapshot);
+        if(invalidationCount.get() != invalidationsBefore)
+        {
+            //invalidated while fetching, the metadata may be outdated already. A snapshot fetched after the
+            //invalidation by another thread is kept
+            snapshots.remove(name, snapshot);
+        }
+        return indexMetaData;
+    }
+
+    private static class IndexMetadataSnapshot
+    {
+        private final List<IndexMetaData> indexMetaData;
+
+        private final long expiresAt;
+
+        IndexMetadataSnapshot(List<IndexMetaData> indexMetaData, long expiresAt)
+        {
+            this.indexMetaData = indexMetaData;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now)
+        {
+            return now >= expiresAt;
+        }
+    }
+}
@@ -4,36 +4,52 @@ import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.elasticsearch.action.admin.cluster.state.ClusterStateResponse;
 import org.elasticsearch.action.admin.indices.analyze.AnalyzeRequestBuilder;
 import org.elasticsearch.action.admin.indices.analyze.AnalyzeResponse;
 import org.elasticsearch.action.admin.indices.analyze.AnalyzeResponse.AnalyzeToken;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
+import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.client.Client;
-import org.elasticsearch.cluster.metadata.IndexMetaData;
-import org.elasticsearch.cluster.routing.IndexRoutingTable;
 import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
 import org.jai.search.client.SearchClientService;
 import org.jai.search.data.SampleDataGenerator;
+import org.jai.search.index.IndexChangeListener;
+import org.jai.search.index.IndexDocument;
 import org.jai.search.index.IndexProductData;
+import org.jai.search.index.ProductDocumentBuilder;
+import org.jai.search.model.BulkIndexingSettings;
 import org.jai.search.model.ElasticSearchIndexConfig;
+import org.jai.search.model.IndexSizing;
+import org.jai.search.model.Product;
 import org.jai.search.model.ProductGroup;
+import org.jai.search.setup.BulkLoadSession;
+import org.jai.search.setup.IndexMetadataService;
 import org.jai.search.setup.IndexSchemaBuilder;
+import org.jai.search.setup.IndexSizingAdvisor;
 import org.jai.search.setup.SetupIndexService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import com.carrotsearch.hppc.cursors.ObjectObjectCursor;
-
 @Service
 public class SetupIndexServiceImpl implements SetupIndexService
 {
@@ -48,23 +64,246 @@ public class SetupIndexServiceImpl implements SetupIndexService
     @Autowired
     private SampleDataGenerator sampleDataGenerator;
     
+    @Autowired
+    private IndexMetadataService indexMetadataService;
+    
+    @Autowired(required = false)
+    private List<IndexChangeListener> indexChangeListeners = Collections.emptyList();
+    
+    //configs set up at the same time, each one creates an index and sends its own bulk requests
+    private static final int MAX_PARALLEL_INDEX_SETUPS = 4;
+    
+    //product groups serialized to estimate the average document size of a rebuilt index
+    private static final int DOCUMENT_SIZE_SAMPLE_GROUPS = 10;
+    
+    private volatile Map<ElasticSearchIndexConfig, Long> indexSetupTimings = Collections.emptyMap();
+    
+    private volatile Set<String> eagerGlobalOrdinalsFields = new HashSet<String>(IndexSchemaBuilder.facetFields);
+    
     @Override
-    public void setupAllIndices(boolean parentRelationship)
+    public void setupAllIndices(final boolean parentRelationship)
+    {
+        //documents do not depend on the config, they are serialized once and sent to every index
+        ProductDocumentBuilder documentBuilder = new ProductDocumentBuilder();
+        final List<IndexDocument> documents = new ArrayList<IndexDocument>();
+        for (ProductGroup productGroup : sampleDataGenerator.generateNestedDocumentsSampleData())
+        {
+            documents.addAll(documentBuilder.buildProductGroupDocuments(productGroup, parentRelationship));
+        }
+        
+        final Map<ElasticSearchIndexConfig, Long> timings = new ConcurrentHashMap<ElasticSearchIndexConfig, Long>();
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.min(MAX_PARALLEL_INDEX_SETUPS, ElasticSearchIndexConfig.values().length));
+        try
+        {
+            List<Future<?>> setups = new ArrayList<Future<?>>();
+            for (final ElasticSearchIndexConfig config : ElasticSearchIndexConfig.values())
+            {
+                setups.add(executorService.submit(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        long start = System.currentTimeMillis();
+                        setupIndex(config, documents, parentRelationship);
+                        timings.put(config, System.currentTimeMillis() - start);
+                    }
+                }));
+            }
+            for (Future<?> setup : setups)
+            {
+                setup.get();
+            }
+        } catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while setting up indices!", ex);
+        } catch (ExecutionException ex)
+        {
+            throw new RuntimeException("Error occurred while setting up indices!", ex.getCause());
+        }
+        finally
+        {
+            executorService.shutdownNow();
+        }
+        
+        indexSetupTimings = new EnumMap<ElasticSearchIndexConfig, Long>(timings);
+        logger.debug("Index setup time per config in ms: {}", indexSetupTimings);
+    }
+    
+    private void setupIndex(ElasticSearchIndexConfig config, List<IndexDocument> documents, boolean parentRelationship)
+    {
+        recreateIndex(config);
+        
+        //add mappings
+        updateDocumentTypeMapping(config, config.getGroupDocumentType(), parentRelationship);
+        updateDocumentTypeMapping(config, config.getDocumentType(), parentRelationship);
+        updateDocumentTypeMapping(config, config.getPropertiesDocumentType(), parentRelationship);
+        
+        //index all data
+        indexProductData.indexDocuments(config, documents, new BulkIndexingSettings());
+    }
+    
+    @Override
+    public void setEagerGlobalOrdinalsFields(Collection<String> fieldPaths)
+    {
+        eagerGlobalOrdinalsFields = new HashSet<String>(fieldPaths);
+    }
+    
+    @Override
+    public Map<ElasticSearchIndexConfig, Long> getIndexSetupTimings()
+    {
+        return indexSetupTimings;
+    }
+
+    @Override
+    public void rebuildAllIndices(boolean parentRelationship)
     {
         for (ElasticSearchIndexConfig config : ElasticSearchIndexConfig.values())
         {
-            recreateIndex(config);
-            
-            //add mappings
-            updateDocumentTypeMapping(config, config.getGroupDocumentType(), parentRelationship);
-            updateDocumentTypeMapping(config, config.getDocumentType(), parentRelationship);
-            updateDocumentTypeMapping(config, config.getPropertiesDocumentType(), parentRelationship);
-            
-            //index all data
-            indexProductData.indexAllProductGroupData(config, sampleDataGenerator.generateNestedDocumentsSampleData(), parentRelationship);
+            rebuildIndex(config, sampleDataGenerator.generateNestedDocumentsSampleData(), parentRelationship);
         }
     }
 
+    @Override
+    public String rebuildIndex(ElasticSearchIndexConfig config, List<ProductGroup> productGroups, boolean parentRelationship)
+    {
+        String aliasName = config.getIndexAliasName();
+        String newIndexName = getNewSuffixedIndexName(aliasName);
+        //a parent type can not be added after its child types, so all mappings are created with the index
+        CreateIndexRequestBuilder createIndexRequestBuilder = searchClientService.getClient().admin().indices().prepareCreate(newIndexName);
+        try
+        {
+            IndexSchemaBuilder indexSchemaBuilder = new IndexSchemaBuilder(eagerGlobalOrdinalsFields);
+            createIndexRequestBuilder.setSettings(indexSchemaBuilder.getSettingForIndex(config, adviseIndexSizing(productGroups)));
+            for (String documentType : new String[]{config.getGroupDocumentType(), config.getDocumentType(), config.getPropertiesDocumentType()})
+            {
+                createIndexRequestBuilder.addMapping(documentType, indexSchemaBuilder.getDocumentTypeMapping(config, documentType, parentRelationship));
+            }
+        } catch (IOException e)
+        {
+            throw new RuntimeException("Error occurred while generating settings for index",e);
+        }
+
+        createIndexRequestBuilder.get();
+        indexMetadataService.invalidate();
+        logger.debug("Index {} created for rebuild of alias {}", newIndexName, aliasName);
+        try
+        {
+            //nobody searches the new index yet, merged to a single segment per shard once loaded
+            try (BulkLoadSession bulkLoadSession = startBulkLoad(newIndexName).forceMergeOnClose(1))
+            {
+                indexProductData.indexProductGroups(config, productGroups.stream(), parentRelationship, new BulkIndexingSettings().indexName(bulkLoadSession.getIndexName()));
+                bulkLoadSession.loadCompleted();
+            }
+            warmUpIndex(newIndexName);
+        } catch (RuntimeException ex)
+        {
+            logger.error("Rebuild of index " + newIndexName + " failed, alias " + aliasName + " stays on the current index", ex);
+            deleteIndex(newIndexName);
+            throw ex;
+        }
+
+        Set<String> oldIndices = indexMetadataService.getIndicesForAlias(aliasName);
+        swapAlias(aliasName, newIndexName, oldIndices);
+        notifyIndexChanged(aliasName);
+
+        for (String oldIndex : oldIndices)
+        {
+            try
+            {
+                deleteIndex(oldIndex);
+                logger.debug("Old index {} removed sucessfully!", oldIndex);
+            }
+            catch (Exception ex)
+            {
+                logger.error("Error occurred while removing old index: " + oldIndex, ex);
+            }
+        }
+        return newIndexName;
+    }
+
+    private IndexSizing adviseIndexSizing(List<ProductGroup> productGroups)
+    {
+        ProductDocumentBuilder documentBuilder = new ProductDocumentBuilder();
+        long documentCount = 0;
+        long sampledDocuments = 0;
+        long sampledBytes = 0;
+        for (int i = 0; i < productGroups.size(); i++)
+        {
+            ProductGroup productGroup = productGroups.get(i);
+            if(i < DOCUMENT_SIZE_SAMPLE_GROUPS)
+            {
+                for (IndexDocument document : documentBuilder.buildProductGroupDocuments(productGroup, false))
+                {
+                    sampledDocuments++;
+                    sampledBytes += document.getSource().length();
+                }
+            }
+            documentCount++;
+            for (Product product : productGroup.getProducts())
+            {
+                documentCount += 1 + product.getProductProperties().size();
+            }
+        }
+        int nodeCount = searchClientService.getClient().admin().cluster().prepareHealth().get().getNumberOfDataNodes();
+        IndexSizing indexSizing = new IndexSizingAdvisor().advise(documentCount, sampledDocuments == 0 ? 0 : sampledBytes / sampledDocuments, nodeCount);
+        logger.debug("Index sizing for {} documents on {} nodes: {}", new Object[]{documentCount, nodeCount, indexSizing});
+        return indexSizing;
+    }
+
+    //the new index gets the alias and the old ones lose it in the same request, searches always find one index
+    private void swapAlias(String aliasName, String newIndexName, Set<String> oldIndices)
+    {
+        IndicesAliasesRequestBuilder aliasesRequestBuilder = searchClientService.getClient().admin().indices().prepareAliases().addAlias(newIndexName, aliasName);
+        for (String oldIndex : oldIndices)
+        {
+            aliasesRequestBuilder.removeAlias(oldIndex, aliasName);
+        }
+        aliasesRequestBuilder.get();
+        indexMetadataService.invalidate();
+
+        logger.debug("Alias {} moved from {} to index {}", new Object[]{aliasName, oldIndices, newIndexName});
+    }
+
+    //waits for the shards to be allocated and makes segments searchable before the first real search comes in
+    private void warmUpIndex(String indexName)
+    {
+        searchClientService.getClient().admin().cluster().prepareHealth(indexName).setWaitForYellowStatus().get();
+        searchClientService.getClient().admin().indices().prepareRefresh(indexName).get();
+        searchClientService.getClient().prepareSearch(indexName).setQuery(QueryBuilders.matchAllQuery()).setSize(10).get();
+        warmUpFacets(indexName);
+    }
+    
+    @Override
+    public long warmUpFacets(String indexName)
+    {
+        long start = System.currentTimeMillis();
+        SearchRequestBuilder requestBuilder = searchClientService.getClient().prepareSearch(indexName).setQuery(QueryBuilders.matchAllQuery()).setSize(0);
+        for (String facetField : IndexSchemaBuilder.facetFields)
+        {
+            //facet fields are all inside a nested object
+            requestBuilder.addAggregation(AggregationBuilders.nested(facetField, facetField.substring(0, facetField.indexOf('.')))
+                                                             .subAggregation(AggregationBuilders.terms(facetField).field(facetField)));
+        }
+        requestBuilder.get();
+        long took = System.currentTimeMillis() - start;
+        logger.debug("Facets of index {} warmed up in {} ms", indexName, took);
+        return took;
+    }
+
+    private String getNewSuffixedIndexName(String aliasName)
+    {
+        Date date = new Date();
+        String indexName = getSuffixedIndexName(aliasName, date);
+        //suffix has second precision, a rebuild right after creation would clash with the live index
+        while (isIndexExists(indexName))
+        {
+            date = new Date(date.getTime() + 1000);
+            indexName = getSuffixedIndexName(aliasName, date);
+        }
+        return indexName;
+    }
+
     private void recreateIndex(ElasticSearchIndexConfig config)
     {
         Date date = new Date();
@@ -101,6 +340,7 @@ public class SetupIndexServiceImpl implements SetupIndexService
         }
         //update mapping on server
         createIndexRequestBuilder.execute().actionGet();
+        indexMetadataService.invalidate();
         
         createAlias(config.getIndexAliasName(), indexName);
         
@@ -111,6 +351,7 @@ public class SetupIndexServiceImpl implements SetupIndexService
     {
         //add new alias
         searchClientService.getClient().admin().indices().prepareAliases().addAlias(indexName, aliasName).get();
+        indexMetadataService.invalidate();
         
         //clean up old alias
         cleanupExistingOldIndex(indexName, aliasName);
@@ -118,21 +359,12 @@ public class SetupIndexServiceImpl implements SetupIndexService
     
     private void cleanupExistingOldIndex(String newIndex, String aliasName) 
     {
-        Set<String> indices = new HashSet<String>();
-        ClusterStateResponse stateResponse = searchClientService.getClient().admin().cluster().prepareState().execute().actionGet();
-        
-        if(stateResponse !=null && stateResponse.getState() !=null)
-        {
-            for (ObjectObjectCursor<String, IndexRoutingTable> entry : stateResponse.getState().getRoutingTable().getIndicesRouting()) 
-            {
-                indices.add(entry.key);
-            }
-        }
+        Set<String> indices = indexMetadataService.getIndicesStartingWith(aliasName);
         
         for (String indexName : indices) 
         {
             // Don't remove alias to newly created index
-            if (indexName.startsWith(aliasName) && !indexName.equals(newIndex)) 
+            if (!indexName.equals(newIndex)) 
             {
                 try 
                 {
@@ -154,6 +386,7 @@ public class SetupIndexServiceImpl implements SetupIndexService
                 {
                     logger.error("Error occurred while removing old index: " + indexName, ex);
                 }
+                indexMetadataService.invalidate();
             }
         }
     }
@@ -175,16 +408,28 @@ public class SetupIndexServiceImpl implements SetupIndexService
 
         // close index
         searchClientService.getClient().admin().indices().prepareOpen(config.getIndexAliasName()).get();
+        indexMetadataService.invalidate();
+    }
+    
+    @Override
+    public BulkLoadSession startBulkLoad(String indexName)
+    {
+        return new BulkLoadSessionImpl(searchClientService.getClient(), indexMetadataService, indexName);
     }
     
     @Override
     public void updateDocumentTypeMapping(ElasticSearchIndexConfig config, String documentType, boolean parentRelationship)
+    {
+        putDocumentTypeMapping(config, config.getIndexAliasName(), documentType, parentRelationship);
+    }
+
+    private void putDocumentTypeMapping(ElasticSearchIndexConfig config, String indexName, String documentType, boolean parentRelationship)
     {
         try
         {
-            searchClientService.getClient().admin().indices().preparePutMapping(config.getIndexAliasName())
+            searchClientService.getClient().admin().indices().preparePutMapping(indexName)
                                                                 .setType(documentType)
-                                                                .setSource(new IndexSchemaBuilder().getDocumentTypeMapping(config, documentType, parentRelationship))
+                                                                .setSource(new IndexSchemaBuilder(eagerGlobalOrdinalsFields).getDocumentTypeMapping(config, documentType, parentRelationship))
                                                                 .get();
         } catch (IOException e)
         {
@@ -206,34 +451,42 @@ public class SetupIndexServiceImpl implements SetupIndexService
     @Override
     public boolean isIndexExists(String indexName)
     {
-        return searchClientService.getClient().admin().indices().prepareExists(indexName).get().isExists();
+        return indexMetadataService.isIndexExists(indexName);
     }
     
     @Override
     public boolean deleteIndex(String indexName)
     {
-        return searchClientService.getClient().admin().indices().prepareDelete(indexName).execute().actionGet().isAcknowledged();
+        boolean acknowledged = searchClientService.getClient().admin().indices().prepareDelete(indexName).execute().actionGet().isAcknowledged();
+        indexMetadataService.invalidate();
+        notifyIndexChanged(indexName);
+        return acknowledged;
     }
     
-    @Override
-    public String getIndexSettings(ElasticSearchIndexConfig config, String settingName)
+    private void notifyIndexChanged(String indexName)
     {
-        String settingValue = null;
-
-        ClusterStateResponse clusterStateResponse = searchClientService.getClient().admin().cluster().prepareState().setRoutingTable(true)
-                .setNodes(true).setIndices(config.getIndexAliasName()).get();
-        
-        for (IndexMetaData indexMetaData : clusterStateResponse.getState().getMetaData())
+        for (IndexChangeListener indexChangeListener : indexChangeListeners)
         {
-            settingValue = indexMetaData.getSettings().get(settingName);
+            try
+            {
+                indexChangeListener.onIndexChanged(indexName);
+            } catch (Exception ex)
+            {
+                logger.error("Error occurred while notifying index change listener for index: " + indexName, ex);
+            }
         }
-        return settingValue;
+    }
+    
+    @Override
+    public String getIndexSettings(ElasticSearchIndexConfig config, String settingName)
+    {
+        return indexMetadataService.getIndexSetting(config.getIndexAliasName(), settingName);
     }
     
     @Override
     public boolean isAliasExists(String indexAliasName)
     {
-        return searchClientService.getClient().admin().indices().prepareAliasesExist(indexAliasName).get().isExists();
+        return indexMetadataService.isAliasExists(indexAliasName);
     }
     
     @Override
@@ -0,0 +1,46 @@
+package org.jai.search.index;
+
+import java.util.List;
+
+import org.jai.search.model.DocumentEncoding;
+import org.jai.search.model.Product;
+import org.jai.search.test.AbstractSearchJUnit4SpringContextTests;
+import org.junit.Test;
+
+/**
+ * Payload size and encoding time of the sample catalog per document encoding.
+ *
+ * Not part of the regular test run, run it with {@code mvn test -Dtest=DocumentEncodingBenchmark}.
+ */
+public class DocumentEncodingBenchmark extends AbstractSearchJUnit4SpringContextTests
+{
+    private static final int WARMUP_ROUNDS = 50;
+
+    private static final int ROUNDS = 200;
+
+    @Test
+    public void encodeCatalog()
+    {
+        List<Product> products = sampleDataGenerator.generateSampleData();
+        for (DocumentEncoding encoding : DocumentEncoding.values())
+        {
+            ProductDocumentBuilder documentBuilder = new ProductDocumentBuilder(encoding);
+            long bytes = 0;
+            long start = 0;
+            for (int i = 0; i < WARMUP_ROUNDS + ROUNDS; i++)
+            {
+                if(i == WARMUP_ROUNDS)
+                {
+                    bytes = 0;
+                    start = System.nanoTime();
+                }
+                for (Product product : products)
+                {
+                    bytes += documentBuilder.buildProductDocument(product).getSource().length();
+                }
+            }
+            long elapsedMicros = (System.nanoTime() - start) / 1000;
+            System.out.println("Encoding " + encoding + ": " + bytes / ROUNDS + " bytes per catalog, " + elapsedMicros / ROUNDS + " micros per catalog");
+        }
+    }
+}
@@ -7,16 +7,39 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.lucene.search.join.ScoreMode;
 import org.elasticsearch.action.admin.cluster.node.info.NodesInfoRequest;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.jai.search.data.SampleDataGenerator;
+import org.jai.search.index.ProductDocumentBuilder;
+import org.jai.search.model.BulkIndexingReport;
+import org.jai.search.model.BulkIndexingSettings;
+import org.jai.search.model.DocumentEncoding;
 import org.jai.search.model.ElasticSearchIndexConfig;
+import org.jai.search.model.IndexSizing;
 import org.jai.search.model.Product;
+import org.jai.search.model.SearchDocumentFieldName;
+import org.jai.search.setup.BulkLoadSession;
+import org.jai.search.setup.IndexSchemaBuilder;
+import org.jai.search.setup.IndexSizingAdvisor;
 import org.jai.search.test.AbstractSearchJUnit4SpringContextTests;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -38,6 +61,16 @@ public class ElasticSearchPart1Test extends AbstractSearchJUnit4SpringContextTes
         
         //no child stuff
 //        setupIndexService.setupAllIndices(true);
+        
+        refreshSearchServer();
+        
+        Map<ElasticSearchIndexConfig, Long> timings = setupIndexService.getIndexSetupTimings();
+        assertEquals(ElasticSearchIndexConfig.values().length, timings.size());
+        for (ElasticSearchIndexConfig config : ElasticSearchIndexConfig.values())
+        {
+            assertNotNull(timings.get(config));
+            assertEquals(50, getIndexTotalDocumentCount(config));
+        }
     }
     
     @Test
@@ -138,6 +171,365 @@ public class ElasticSearchPart1Test extends AbstractSearchJUnit4SpringContextTes
         assertFalse(indexProductData.isProductExists(config, productId));
     }
     
+    @Test
+    public void streamingBulkIndexing()
+    {
+        ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        setupIndexService.setupAllIndices(false);
+        
+        List<Product> products = sampleDataGenerator.generateSampleData();
+        for (Product product : products)
+        {
+            product.setId(product.getId() + 1000);
+        }
+        
+        //small bulks, two in flight at a time
+        BulkIndexingSettings settings = new BulkIndexingSettings().bulkActions(7).concurrentRequests(2);
+        BulkIndexingReport report = indexProductData.indexProducts(config, products.iterator(), settings);
+        
+        refreshSearchServer();
+        
+        assertEquals(100, getIndexTotalDocumentCount(config));
+        assertEquals(50, report.getSucceeded());
+        assertEquals(0, report.getDeadLettered());
+    }
+    
+    @Test
+    public void deltaIndexing() throws IOException
+    {
+        ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        File hashDirectory = Files.createTempDirectory("document-hashes").toFile();
+        BulkIndexingSettings settings = new BulkIndexingSettings().changeDetectionDirectory(hashDirectory);
+        
+        List<Product> products = sampleDataGenerator.generateSampleData();
+        for (Product product : products)
+        {
+            product.setId(product.getId() + 1000);
+        }
+        
+        BulkIndexingReport report = indexProductData.indexProducts(config, products.iterator(), settings);
+        assertEquals(50, report.getSucceeded());
+        assertEquals(0, report.getSkipped());
+        
+        //nothing changed, nothing sent
+        report = indexProductData.indexProducts(config, products.iterator(), settings);
+        assertEquals(0, report.getSucceeded());
+        assertEquals(50, report.getSkipped());
+        
+        products.get(0).setTitle("Changed title");
+        products.remove(1);
+        report = indexProductData.indexProducts(config, products.iterator(), settings);
+        refreshSearchServer();
+        
+        assertEquals(48, report.getSkipped());
+        assertEquals(1, report.getDeleted());
+        assertEquals(2, report.getSucceeded());
+        assertEquals(99, getIndexTotalDocumentCount(config));
+        assertEquals("Changed title", productQueryService.getProduct(config, products.get(0).getId()).getTitle());
+        
+        for (File file : hashDirectory.listFiles())
+        {
+            file.delete();
+        }
+        hashDirectory.delete();
+    }
+    
+    @Test
+    public void deltaIndexingKeepsProductsFailingToSerialize() throws IOException
+    {
+        ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        File hashDirectory = Files.createTempDirectory("document-hashes").toFile();
+        BulkIndexingSettings settings = new BulkIndexingSettings().changeDetectionDirectory(hashDirectory);
+        
+        List<Product> products = sampleDataGenerator.generateSampleData();
+        for (Product product : products)
+        {
+            product.setId(product.getId() + 1000);
+        }
+        indexProductData.indexProducts(config, products.iterator(), settings);
+        
+        Product failingProduct = new Product()
+        {
+            @Override
+            public String getTitle()
+            {
+                throw new IllegalStateException("Title not available");
+            }
+        };
+        Product product = products.get(0);
+        failingProduct.setId(product.getId());
+        products.set(0, failingProduct);
+        BulkIndexingReport report = indexProductData.indexProducts(config, products.iterator(), settings);
+        refreshSearchServer();
+        
+        assertEquals(0, report.getDeleted());
+        assertEquals(49, report.getSkipped());
+        assertEquals(100, getIndexTotalDocumentCount(config));
+        assertTrue(indexProductData.isProductExists(config, failingProduct.getId()));
+        
+        //still known by the next run, which does not send it again while unchanged
+        products.set(0, product);
+        report = indexProductData.indexProducts(config, products.iterator(), settings);
+        assertEquals(0, report.getDeleted());
+        assertEquals(50, report.getSkipped());
+        
+        for (File file : hashDirectory.listFiles())
+        {
+            file.delete();
+        }
+        hashDirectory.delete();
+    }
+    
+    @Test
+    public void deadLetterReplay() throws IOException
+    {
+        ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        
+        File deadLetterFile = File.createTempFile("dead-letters", ".json");
+        File replayFailuresFile = File.createTempFile("dead-letters-replay", ".json");
+        replayFailuresFile.delete();
+        
+        String validItem = "{\"op\":\"index\",\"index\":\"" + config.getIndexAliasName() + "\",\"type\":\"" + config.getDocumentType()
+                + "\",\"id\":\"2001\",\"source\":{\"title\":\"Replayed title\",\"price\":10.5}}";
+        //price can not be parsed, fails again and is written to the new dead letter file
+        String invalidItem = "{\"op\":\"index\",\"index\":\"" + config.getIndexAliasName() + "\",\"type\":\"" + config.getDocumentType()
+                + "\",\"id\":\"2002\",\"source\":{\"title\":\"Broken\",\"price\":\"not a price\"}}";
+        Files.write(deadLetterFile.toPath(), Arrays.asList(validItem, invalidItem), StandardCharsets.UTF_8);
+        
+        BulkIndexingReport report = indexProductData.replayDeadLetters(deadLetterFile, new BulkIndexingSettings().deadLetterFile(replayFailuresFile));
+        refreshSearchServer();
+        
+        assertEquals(1, report.getSucceeded());
+        assertEquals(0, report.getRetried());
+        assertEquals(1, report.getDeadLettered());
+        assertFalse(deadLetterFile.exists());
+        assertEquals(1, Files.readAllLines(replayFailuresFile.toPath(), StandardCharsets.UTF_8).size());
+        assertEquals(51, getIndexTotalDocumentCount(config));
+        assertTrue(indexProductData.isProductExists(config, 2001l));
+        
+        replayFailuresFile.delete();
+    }
+    
+    @Test
+    public void parallelDocumentSerialization()
+    {
+        ElasticSearchIndexConfig config = ElasticSearchIndexConfig.NL_WEBSITE;
+        setupIndexService.setupAllIndices(false);
+        
+        BulkIndexingSettings settings = new BulkIndexingSettings().serializationThreads(4);
+        indexProductData.indexProductGroups(config, sampleDataGenerator.generateNestedDocumentsSampleData().stream(), false, settings);
+        
+        refreshSearchServer();
+        
+        //same ids indexed again, documents are replaced
+        assertEquals(50, getIndexTotalDocumentCount(config));
+        
+        Map<String, Double> throughput = indexProductData.getSerializationThroughput();
+        assertFalse(throughput.isEmpty());
+        assertTrue(throughput.size() <= 4);
+        for (Double documentsPerSecond : throughput.values())
+        {
+            assertTrue(documentsPerSecond > 0);
+        }
+    }
+    
+    @Test
+    public void binaryDocumentEncoding()
+    {
+        List<Product> products = sampleDataGenerator.generateSampleData();
+        
+        Map<DocumentEncoding, Long> payloadBytes = new HashMap<DocumentEncoding, Long>();
+        for (DocumentEncoding encoding : DocumentEncoding.values())
+        {
+            ProductDocumentBuilder documentBuilder = new ProductDocumentBuilder(encoding);
+            long bytes = 0;
+            for (Product product : products)
+            {
+                bytes += documentBuilder.buildProductDocument(product).getSource().length();
+            }
+            payloadBytes.put(encoding, bytes);
+        }
+        assertTrue(payloadBytes.get(DocumentEncoding.SMILE) < payloadBytes.get(DocumentEncoding.JSON));
+        assertTrue(payloadBytes.get(DocumentEncoding.CBOR) < payloadBytes.get(DocumentEncoding.JSON));
+        
+        //binary documents are indexed and searchable the same way
+        ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        for (Product product : products)
+        {
+            product.setId(product.getId() + 1000);
+        }
+        indexProductData.indexProducts(config, products.iterator(), new BulkIndexingSettings().documentEncoding(DocumentEncoding.SMILE));
+        refreshSearchServer();
+        
+        assertEquals(100, getIndexTotalDocumentCount(config));
+        assertEquals("Title 10", productQueryService.getProduct(config, 1010l).getTitle());
+    }
+    
+    @Test
+    public void bulkLoadSession()
+    {
+        ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        List<Product> products = sampleDataGenerator.generateSampleData();
+        for (Product product : products)
+        {
+            product.setId(product.getId() + 1000);
+        }
+        
+        try (BulkLoadSession bulkLoadSession = setupIndexService.startBulkLoad(config.getIndexAliasName()).forceMergeOnClose(1))
+        {
+            assertEquals(config.getIndexAliasName(), bulkLoadSession.getIndexName());
+            assertEquals("-1", setupIndexService.getIndexSettings(config, "index.refresh_interval"));
+            assertEquals("0", setupIndexService.getIndexSettings(config, "index.number_of_replicas"));
+            assertEquals("async", setupIndexService.getIndexSettings(config, "index.translog.durability"));
+            
+            indexProductData.indexProducts(config, products.iterator(), new BulkIndexingSettings());
+            bulkLoadSession.loadCompleted();
+        }
+        
+        assertNull(setupIndexService.getIndexSettings(config, "index.refresh_interval"));
+        assertEquals("1", setupIndexService.getIndexSettings(config, "index.number_of_replicas"));
+        assertNull(setupIndexService.getIndexSettings(config, "index.translog.durability"));
+        assertEquals(100, getIndexTotalDocumentCount(config));
+        
+        //one segment per primary shard after the merge
+        long segments = searchClientService.getClient().admin().indices().prepareStats(config.getIndexAliasName()).setSegments(true).get().getPrimaries().getSegments().getCount();
+        assertTrue(segments <= 5);
+        
+        //settings are restored when the load fails
+        try (BulkLoadSession bulkLoadSession = setupIndexService.startBulkLoad(config.getIndexAliasName()))
+        {
+            throw new IllegalStateException("Load failed for index: " + bulkLoadSession.getIndexName());
+        } catch (IllegalStateException ex)
+        {
+            assertEquals("1", setupIndexService.getIndexSettings(config, "index.number_of_replicas"));
+        }
+    }
+    
+    @Test
+    public void rebuildIndexWithoutDowntime() throws InterruptedException
+    {
+        final ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        String oldIndex = searchClientService.getClient().admin().indices().prepareGetAliases(config.getIndexAliasName()).get().getAliases().keysIt().next();
+        
+        final AtomicBoolean rebuilding = new AtomicBoolean(true);
+        final AtomicInteger searches = new AtomicInteger();
+        final AtomicInteger emptyOrFailedSearches = new AtomicInteger();
+        Thread searcher = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                while (rebuilding.get())
+                {
+                    try
+                    {
+                        if(searchClientService.getClient().prepareSearch(config.getIndexAliasName()).setSize(0).get().getHits().getTotalHits() == 0)
+                        {
+                            emptyOrFailedSearches.incrementAndGet();
+                        }
+                    } catch (Exception ex)
+                    {
+                        emptyOrFailedSearches.incrementAndGet();
+                    }
+                    searches.incrementAndGet();
+                }
+            }
+        });
+        searcher.start();
+        
+        String newIndex = setupIndexService.rebuildIndex(config, sampleDataGenerator.generateNestedDocumentsSampleData(), false);
+        
+        rebuilding.set(false);
+        searcher.join();
+        
+        assertTrue(searches.get() > 0);
+        assertEquals(0, emptyOrFailedSearches.get());
+        assertFalse(oldIndex.equals(newIndex));
+        assertFalse(setupIndexService.isIndexExists(oldIndex));
+        assertTrue(setupIndexService.isIndexExists(newIndex));
+        assertEquals(50, getIndexTotalDocumentCount(config));
+        assertNull(setupIndexService.getIndexSettings(config, "index.refresh_interval"));
+        assertEquals("1", setupIndexService.getIndexSettings(config, "index.number_of_replicas"));
+    }
+
+    @Test
+    public void indexMetadataIsCached()
+    {
+        ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        String aliasName = config.getIndexAliasName();
+        indexMetadataService.invalidate();
+        long fetchesBefore = indexMetadataService.getFetchCount();
+        
+        //indices of the alias are answered from the metadata fetched for it
+        assertTrue(setupIndexService.isAliasExists(aliasName));
+        for (String indexName : indexMetadataService.getIndicesForAlias(aliasName))
+        {
+            assertTrue(setupIndexService.isIndexExists(indexName));
+        }
+        assertFalse(setupIndexService.isIndexExists(aliasName + "19700101000000"));
+        assertNotNull(setupIndexService.getIndexSettings(config, "index.number_of_shards"));
+        assertEquals(fetchesBefore + 1, indexMetadataService.getFetchCount());
+        
+        //changes made through the setup service are seen right away
+        String newIndex = setupIndexService.rebuildIndex(config, sampleDataGenerator.generateNestedDocumentsSampleData(), false);
+        assertEquals(Collections.singleton(newIndex), indexMetadataService.getIndicesForAlias(aliasName));
+        setupIndexService.deleteIndex(newIndex);
+        assertFalse(setupIndexService.isAliasExists(aliasName));
+        assertFalse(setupIndexService.isIndexExists(newIndex));
+    }
+    
+    @Test
+    public void indexSizingAndProductGroupRouting() throws IOException
+    {
+        IndexSizingAdvisor indexSizingAdvisor = new IndexSizingAdvisor();
+        //small catalogs stay on one shard, further replicas go to otherwise idle nodes
+        assertEquals(1, indexSizingAdvisor.advise(10000, 2048, 1).getNumberOfShards());
+        assertEquals(1, indexSizingAdvisor.advise(10000, 2048, 1).getNumberOfReplicas());
+        assertEquals(3, indexSizingAdvisor.advise(10000, 2048, 4).getNumberOfReplicas());
+        //100 GB on 3 nodes, 4 shards of at most 30 GB rounded up to 2 per node
+        assertEquals(6, indexSizingAdvisor.advise(10000000, 10 * 1024, 3).getNumberOfShards());
+        assertEquals(1, indexSizingAdvisor.advise(10000000, 10 * 1024, 3).getNumberOfReplicas());
+        assertEquals(3, indexSizingAdvisor.advise(500000000, 100, 1).getNumberOfShards());
+
+        ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        setupIndexService.rebuildIndex(config, sampleDataGenerator.generateNestedDocumentsSampleData(), true);
+        assertEquals("1", setupIndexService.getIndexSettings(config, "index.number_of_shards"));
+
+        //same documents spread over several shards of the embedded node
+        String indexName = "routingtest";
+        IndexSchemaBuilder indexSchemaBuilder = new IndexSchemaBuilder();
+        CreateIndexRequestBuilder createIndexRequestBuilder = getClient().admin().indices().prepareCreate(indexName)
+                                                                         .setSettings(indexSchemaBuilder.getSettingForIndex(config, new IndexSizing(5, 0)));
+        for (String documentType : new String[]{config.getGroupDocumentType(), config.getDocumentType(), config.getPropertiesDocumentType()})
+        {
+            createIndexRequestBuilder.addMapping(documentType, indexSchemaBuilder.getDocumentTypeMapping(config, documentType, true));
+        }
+        createIndexRequestBuilder.get();
+        try
+        {
+            indexProductData.indexProductGroups(config, sampleDataGenerator.generateNestedDocumentsSampleData().stream(), true,
+                                                new BulkIndexingSettings().indexName(indexName));
+            refreshSearchServer();
+
+            //properties are on the shard of their product, the 5 products of the first group have the 21 inch size
+            assertEquals(5, getClient().prepareSearch(indexName).setTypes(config.getDocumentType())
+                                       .setQuery(QueryBuilders.hasChildQuery(config.getPropertiesDocumentType(),
+                                                                             QueryBuilders.termQuery(SearchDocumentFieldName.SIZE.getFieldName(), SampleDataGenerator.PRODUCTPROPERTY_SIZE_21_INCH),
+                                                                             ScoreMode.None))
+                                       .get().getHits().getTotalHits());
+
+            //a group is searched on a single shard
+            SearchResponse searchResponse = getClient().prepareSearch(indexName).setTypes(config.getDocumentType()).setRouting("1")
+                                                       .setQuery(QueryBuilders.hasParentQuery(config.getGroupDocumentType(), QueryBuilders.idsQuery().addIds("1"), false))
+                                                       .get();
+            assertEquals(1, searchResponse.getTotalShards());
+            assertEquals(5, searchResponse.getHits().getTotalHits());
+        } finally
+        {
+            setupIndexService.deleteIndex(indexName);
+        }
+    }
+    
     @Test
     public void aliasHandling()
     {
@@ -1,17 +1,44 @@
 package org.jai.search.parts.two;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
+import org.elasticsearch.search.sort.SortOrder;
 import org.jai.search.data.SampleDataGenerator;
+import org.jai.search.model.AutoSuggestionEntry;
+import org.jai.search.model.CacheStatistics;
 import org.jai.search.model.ElasticSearchIndexConfig;
 import org.jai.search.model.Product;
+import org.jai.search.model.ProductLookupResult;
 import org.jai.search.model.ProductSearchResult;
 import org.jai.search.model.SearchCriteria;
+import org.jai.search.model.SearchDocumentFieldName;
 import org.jai.search.model.SearchFacetName;
+import org.jai.search.query.ProductQueryBatch;
 import org.jai.search.test.AbstractSearchJUnit4SpringContextTests;
+import org.joda.time.DateTime;
 import org.junit.Test;
 
 public class ElasticSearchTutPart2Test extends AbstractSearchJUnit4SpringContextTests
@@ -47,6 +74,478 @@ public class ElasticSearchTutPart2Test extends AbstractSearchJUnit4SpringContext
         assertEquals(0, searchProducts.getProducts().size());
     }
     
+    @Test
+    public void searchResultCache()
+    {
+        ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        CacheStatistics before = productQueryService.getSearchResultCacheStatistics();
+        
+        SearchCriteria searchCriteria = new SearchCriteria().indices(config.getIndexAliasName(), ElasticSearchIndexConfig.NL_WEBSITE.getIndexAliasName())
+                                                            .documentTypes(config.getDocumentType())
+                                                            .cacheable(true)
+                                                            .facets(SearchFacetName.PRODUCT_PRICE_RANGE.getCode());
+        ProductSearchResult searchProducts = productQueryService.searchProducts(searchCriteria);
+        assertEquals(100, searchProducts.getTotalCount());
+        
+        //same search with indices in a different order is served from the cache
+        SearchCriteria sameSearchCriteria = new SearchCriteria().indices(ElasticSearchIndexConfig.NL_WEBSITE.getIndexAliasName(), config.getIndexAliasName())
+                                                                .documentTypes(config.getDocumentType())
+                                                                .cacheable(true)
+                                                                .facets(SearchFacetName.PRODUCT_PRICE_RANGE.getCode());
+        ProductSearchResult cachedSearchProducts = productQueryService.searchProducts(sameSearchCriteria);
+        assertEquals(100, cachedSearchProducts.getTotalCount());
+        assertEquals(searchProducts.getProducts().get(0).getId(), cachedSearchProducts.getProducts().get(0).getId());
+        assertEquals(searchProducts.getProducts().get(0).getTitle(), cachedSearchProducts.getProducts().get(0).getTitle());
+        
+        //every caller gets its own copy, changing it does not change the cached result
+        String title = cachedSearchProducts.getProducts().get(0).getTitle();
+        searchProducts.getProducts().clear();
+        cachedSearchProducts.getProducts().get(0).setTitle("Changed");
+        cachedSearchProducts.getFacets().clear();
+        ProductSearchResult nextCachedSearchProducts = productQueryService.searchProducts(sameSearchCriteria);
+        assertEquals(10, nextCachedSearchProducts.getProducts().size());
+        assertEquals(title, nextCachedSearchProducts.getProducts().get(0).getTitle());
+        assertFalse(nextCachedSearchProducts.getFacets().isEmpty());
+        
+        CacheStatistics after = productQueryService.getSearchResultCacheStatistics();
+        assertEquals(before.getHits() + 2, after.getHits());
+        assertEquals(before.getMisses() + 1, after.getMisses());
+        
+        //writing to one of the indices drops the result
+        Product product = new Product();
+        product.setId(1001l);
+        product.setTitle("Title 1001");
+        product.setAvailableOn(new Date());
+        indexProductData.indexProduct(config, product);
+        refreshSearchServer();
+        
+        assertTrue(productQueryService.getSearchResultCacheStatistics().getInvalidations() > after.getInvalidations());
+        assertEquals(101, productQueryService.searchProducts(sameSearchCriteria).getTotalCount());
+    }
+    
+    @Test
+    public void concurrentIdenticalSearchesAreCoalesced() throws Exception
+    {
+        ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        final SearchCriteria searchCriteria = new SearchCriteria().indices(config.getIndexAliasName()).documentTypes(config.getDocumentType());
+        long coalescedBefore = productQueryService.getCoalescedSearchCount();
+        
+        int callers = 16;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newFixedThreadPool(callers);
+        List<Future<ProductSearchResult>> results = new ArrayList<Future<ProductSearchResult>>();
+        for (int i = 0; i < callers; i++)
+        {
+            results.add(executorService.submit(new Callable<ProductSearchResult>()
+            {
+                @Override
+                public ProductSearchResult call() throws Exception
+                {
+                    start.await();
+                    return productQueryService.searchProducts(searchCriteria);
+                }
+            }));
+        }
+        start.countDown();
+        
+        Set<ProductSearchResult> distinctResults = Collections.newSetFromMap(new IdentityHashMap<ProductSearchResult, Boolean>());
+        for (Future<ProductSearchResult> result : results)
+        {
+            assertEquals(50, result.get().getTotalCount());
+            distinctResults.add(result.get());
+        }
+        executorService.shutdown();
+        
+        //every caller not running its own request got the result of another one
+        long coalesced = productQueryService.getCoalescedSearchCount() - coalescedBefore;
+        assertEquals(callers - coalesced, distinctResults.size());
+    }
+    
+    @Test
+    public void asyncSearchAndProductLookup()
+    {
+        ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        SearchCriteria comSearchCriteria = new SearchCriteria().indices(config.getIndexAliasName()).documentTypes(config.getDocumentType());
+        SearchCriteria nlSearchCriteria = new SearchCriteria().indices(ElasticSearchIndexConfig.NL_WEBSITE.getIndexAliasName())
+                                                              .documentTypes(ElasticSearchIndexConfig.NL_WEBSITE.getDocumentType());
+        
+        //both searches are in flight at the same time, no thread waits for either of them
+        CompletableFuture<ProductSearchResult> comSearch = asyncProductQueryService.searchProductsAsync(comSearchCriteria, 10000);
+        CompletableFuture<ProductSearchResult> nlSearch = asyncProductQueryService.searchProductsAsync(nlSearchCriteria, 10000);
+        CompletableFuture.allOf(comSearch, nlSearch).join();
+        assertEquals(50, comSearch.join().getTotalCount());
+        assertEquals(50, nlSearch.join().getTotalCount());
+        
+        Product product = comSearch.join().getProducts().get(0);
+        Product asyncProduct = asyncProductQueryService.getProductAsync(config, product.getId(), 10000).join();
+        assertEquals(productQueryService.getProduct(config, product.getId()).getTitle(), asyncProduct.getTitle());
+        assertNull(asyncProductQueryService.getProductAsync(config, -1l, 10000).join());
+        
+        CompletableFuture<ProductSearchResult> cancelledSearch = asyncProductQueryService.searchProductsAsync(comSearchCriteria, 0);
+        //a search which already completed can not be cancelled anymore
+        boolean cancelled = cancelledSearch.cancel(true);
+        assertTrue(cancelledSearch.isDone());
+        assertEquals(cancelled, cancelledSearch.isCancelled());
+    }
+    
+    @Test
+    public void multiSearchQueryBatch()
+    {
+        ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        ProductQueryBatch queryBatch = productQueryService.newQueryBatch();
+        CompletableFuture<ProductSearchResult> search = queryBatch.searchProducts(new SearchCriteria().indices(config.getIndexAliasName())
+                                                                                                      .documentTypes(config.getDocumentType()));
+        CompletableFuture<List<AutoSuggestionEntry>> suggestions = queryBatch.getAutoSuggestions(config, "keyword");
+        CompletableFuture<List<Product>> similarProducts = queryBatch.findSimilarProducts(config, new String[]{SearchDocumentFieldName.TITLE.getFieldName()}, 1l);
+        CompletableFuture<ProductSearchResult> failingSearch = queryBatch.searchProducts(new SearchCriteria().indices("notexisting")
+                                                                                                             .documentTypes(config.getDocumentType()));
+        assertFalse(search.isDone());
+        
+        queryBatch.execute();
+        
+        assertEquals(50, search.join().getTotalCount());
+        assertNotNull(suggestions.join());
+        assertNotNull(similarProducts.join());
+        //only the failing search is affected
+        assertTrue(failingSearch.isCompletedExceptionally());
+    }
+    
+    @Test
+    public void microBatchedSearches()
+    {
+        ProductQueryBatch queryBatch = productQueryService.newMicroBatchingQueryBatch(50, 10);
+        List<CompletableFuture<ProductSearchResult>> searches = new ArrayList<CompletableFuture<ProductSearchResult>>();
+        for (ElasticSearchIndexConfig config : ElasticSearchIndexConfig.values())
+        {
+            searches.add(queryBatch.searchProducts(new SearchCriteria().indices(config.getIndexAliasName()).documentTypes(config.getDocumentType())));
+        }
+        
+        //sent on its own once the window elapsed
+        for (CompletableFuture<ProductSearchResult> search : searches)
+        {
+            assertEquals(50, search.join().getTotalCount());
+        }
+    }
+    
+    @Test
+    public void searchAfterPagingAndExport()
+    {
+        ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        Set<Long> productIds = new HashSet<Long>();
+        Object[] searchAfter = null;
+        int pages = 0;
+        while (true)
+        {
+            SearchCriteria searchCriteria = new SearchCriteria().indices(config.getIndexAliasName())
+                                                                .documentTypes(config.getDocumentType())
+                                                                .size(7)
+                                                                .searchAfterPaging(true)
+                                                                .searchAfter(searchAfter);
+            ProductSearchResult searchProducts = productQueryService.searchProducts(searchCriteria);
+            if(searchProducts.getProducts().isEmpty())
+            {
+                break;
+            }
+            for (Product product : searchProducts.getProducts())
+            {
+                //no product is repeated between pages
+                assertTrue(productIds.add(product.getId()));
+            }
+            searchAfter = searchProducts.getNextSearchAfter();
+            pages++;
+        }
+        assertEquals(50, productIds.size());
+        assertEquals(8, pages);
+        
+        SearchCriteria exportCriteria = new SearchCriteria().indices(config.getIndexAliasName()).documentTypes(config.getDocumentType());
+        Set<Long> exportedIds = new HashSet<Long>();
+        try (Stream<Product> products = productQueryService.exportProducts(exportCriteria, 7))
+        {
+            products.forEach(new Consumer<Product>()
+            {
+                @Override
+                public void accept(Product product)
+                {
+                    exportedIds.add(product.getId());
+                }
+            });
+        }
+        assertEquals(productIds, exportedIds);
+        
+        //lazy, only the first batch is fetched
+        assertEquals(3, productQueryService.exportProducts(exportCriteria, 7).limit(3).count());
+    }
+    
+    @Test
+    public void batchProductLookup() throws Exception
+    {
+        final ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        ProductLookupResult productLookupResult = productQueryService.getProducts(config, Arrays.asList(7l, 500l, 3l, 12l));
+        assertEquals(3, productLookupResult.getProducts().size());
+        assertEquals(Long.valueOf(7), productLookupResult.getProducts().get(0).getId());
+        assertEquals(Long.valueOf(3), productLookupResult.getProducts().get(1).getId());
+        assertEquals(Long.valueOf(12), productLookupResult.getProducts().get(2).getId());
+        assertEquals(Arrays.asList(500l), productLookupResult.getMissingIds());
+        
+        Map<Long, Boolean> existingProducts = indexProductData.existsProducts(config, Arrays.asList(500l, 1l));
+        assertEquals(Arrays.asList(500l, 1l), new ArrayList<Long>(existingProducts.keySet()));
+        assertFalse(existingProducts.get(500l));
+        assertTrue(existingProducts.get(1l));
+        assertTrue(indexProductData.isProductExists(config, 1l));
+        
+        //single lookups at the same time share multi get requests
+        ExecutorService executorService = Executors.newFixedThreadPool(16);
+        List<Future<Product>> products = new ArrayList<Future<Product>>();
+        for (int i = 0; i < 50; i++)
+        {
+            final long productId = i;
+            products.add(executorService.submit(new Callable<Product>()
+            {
+                @Override
+                public Product call() throws Exception
+                {
+                    return productQueryService.getProduct(config, productId);
+                }
+            }));
+        }
+        for (int i = 0; i < 50; i++)
+        {
+            assertEquals(Long.valueOf(i), products.get(i).get().getId());
+        }
+        executorService.shutdown();
+    }
+    
+    @Test
+    public void productNearCache()
+    {
+        ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        CacheStatistics before = productQueryService.getProductCacheStatistics();
+        
+        Product product = productQueryService.getProduct(config, 1l);
+        product.setTitle("changed by the caller");
+        Product cachedProduct = productQueryService.getProduct(config, 1l);
+        
+        CacheStatistics after = productQueryService.getProductCacheStatistics();
+        assertEquals(before.getHits() + 1, after.getHits());
+        assertTrue(after.getWeight() > 0);
+        //every read gets its own copy
+        assertFalse("changed by the caller".equals(cachedProduct.getTitle()));
+        assertEquals(cachedProduct.getKeywords(), product.getKeywords());
+        assertEquals(cachedProduct.getCategories().size(), product.getCategories().size());
+        
+        //writes drop the cached product before they return
+        Product updatedProduct = new Product();
+        updatedProduct.setId(1l);
+        updatedProduct.setTitle("Updated title");
+        updatedProduct.setDescription("Updated description");
+        updatedProduct.setAvailableOn(new Date());
+        indexProductData.indexProduct(config, updatedProduct);
+        assertEquals("Updated title", productQueryService.getProduct(config, 1l).getTitle());
+        
+        indexProductData.deleteProduct(config, 1l);
+        assertNull(productQueryService.getProduct(config, 1l));
+        assertTrue(productQueryService.getProductCacheStatistics().getInvalidations() >= after.getInvalidations() + 2);
+    }
+    
+    @Test
+    public void localSuggestionIndex()
+    {
+        ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        productQueryService.rebuildSuggestionIndex(config);
+        
+        //counts are the number of products having the keyword
+        List<AutoSuggestionEntry> autoSuggestions = productQueryService.getAutoSuggestions(config, "keyword 4");
+        assertEquals(11, autoSuggestions.size());
+        for (AutoSuggestionEntry autoSuggestionEntry : autoSuggestions)
+        {
+            assertTrue(autoSuggestionEntry.getTerm().startsWith("Keyword 4"));
+            assertEquals(1, autoSuggestionEntry.getCount());
+        }
+        assertEquals(20, productQueryService.getAutoSuggestions(config, "keyword").size());
+        
+        Product product = new Product();
+        product.setId(1l);
+        product.setTitle("Zanzibar");
+        product.setDescription("Zanzibar description");
+        product.setAvailableOn(new Date());
+        product.addKeyword("Zanzibar Pro");
+        indexProductData.indexProduct(config, product);
+        refreshSearchServer();
+        
+        //outdated local index, answered by the cluster
+        autoSuggestions = productQueryService.getAutoSuggestions(config, "zanzibar");
+        assertTrue(autoSuggestions.size() > 0);
+        for (AutoSuggestionEntry autoSuggestionEntry : autoSuggestions)
+        {
+            assertEquals(0, autoSuggestionEntry.getCount());
+        }
+        
+        productQueryService.rebuildSuggestionIndex(config);
+        autoSuggestions = productQueryService.getAutoSuggestions(config, "zanzibar");
+        assertEquals(1, autoSuggestions.size());
+        assertEquals("Zanzibar Pro", autoSuggestions.get(0).getTerm());
+        assertEquals(1, autoSuggestions.get(0).getCount());
+    }
+
+    @Test
+    public void prefixSuggestionCache()
+    {
+        ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        CacheStatistics before = productQueryService.getPrefixSuggestionCacheStatistics();
+        
+        List<AutoSuggestionEntry> autoSuggestions = productQueryService.getAutoSuggestionsUsingTermsFacet(config, "Co");
+        assertEquals(1, autoSuggestions.size());
+        assertEquals("computer", autoSuggestions.get(0).getTerm());
+        
+        //longer prefixes are answered from the terms of the shorter one
+        List<AutoSuggestionEntry> longerPrefixAutoSuggestions = productQueryService.getAutoSuggestionsUsingTermsFacet(config, "comp");
+        assertEquals(1, longerPrefixAutoSuggestions.size());
+        assertEquals(autoSuggestions.get(0).getCount(), longerPrefixAutoSuggestions.get(0).getCount());
+        assertEquals(0, productQueryService.getAutoSuggestionsUsingTermsFacet(config, "cox").size());
+        
+        CacheStatistics after = productQueryService.getPrefixSuggestionCacheStatistics();
+        assertEquals(before.getMisses() + 1, after.getMisses());
+        assertEquals(before.getHits() + 2, after.getHits());
+        
+        Product product = new Product();
+        product.setId(1001l);
+        product.setTitle("Title 1001");
+        product.setAvailableOn(new Date());
+        indexProductData.indexProduct(config, product);
+        
+        assertTrue(productQueryService.getPrefixSuggestionCacheStatistics().getInvalidations() > after.getInvalidations());
+        productQueryService.getAutoSuggestionsUsingTermsFacet(config, "comp");
+        assertEquals(after.getMisses() + 1, productQueryService.getPrefixSuggestionCacheStatistics().getMisses());
+    }
+    
+    @Test
+    public void precomputedSimilarProducts()
+    {
+        ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        String[] fields = new String[]{SearchDocumentFieldName.TITLE.getFieldName()};
+        
+        //live query results only have the fields of the search hits
+        List<Product> liveSimilarProducts = productQueryService.findSimilarProducts(config, fields, 0l);
+        assertEquals(10, liveSimilarProducts.size());
+        assertNull(liveSimilarProducts.get(0).getDescription());
+        
+        assertEquals(50, productQueryService.precomputeSimilarProducts(config, fields));
+        List<Product> similarProducts = productQueryService.findSimilarProducts(config, fields, 0l);
+        assertEquals(liveSimilarProducts.size(), similarProducts.size());
+        for (int i = 0; i < similarProducts.size(); i++)
+        {
+            assertEquals(liveSimilarProducts.get(i).getId(), similarProducts.get(i).getId());
+            assertNotNull(similarProducts.get(i).getDescription());
+        }
+        
+        //async and batched lookups are served from the precomputed list as well
+        assertNotNull(asyncProductQueryService.findSimilarProductsAsync(config, fields, 0l, 10000).join().get(0).getDescription());
+        ProductQueryBatch batch = productQueryService.newQueryBatch();
+        CompletableFuture<List<Product>> batchedSimilarProducts = batch.findSimilarProducts(config, fields, 0l);
+        batch.execute();
+        assertNotNull(batchedSimilarProducts.join().get(0).getDescription());
+        
+        Product product = new Product();
+        product.setId(5l);
+        product.setTitle("Title 5");
+        product.setDescription("Description5");
+        product.setPrice(BigDecimal.valueOf(5));
+        product.setAvailableOn(new Date());
+        indexProductData.indexProduct(config, product);
+        refreshSearchServer();
+        
+        //written product is served by the live query until it is recomputed
+        assertNull(productQueryService.findSimilarProducts(config, fields, 5l).get(0).getDescription());
+        assertEquals(1, productQueryService.refreshSimilarProducts(config, fields));
+        assertNotNull(productQueryService.findSimilarProducts(config, fields, 5l).get(0).getDescription());
+        assertEquals(0, productQueryService.refreshSimilarProducts(config, fields));
+    }
+
+    @Test
+    public void facetsOnlySearchUsesShardRequestCache()
+    {
+        ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        CacheStatistics before = productQueryService.getShardRequestCacheStatistics(config);
+
+        SearchCriteria searchCriteria = new SearchCriteria().indices(config.getIndexAliasName())
+                                                            .documentTypes(config.getDocumentType())
+                                                            .facets(SearchFacetName.PRODUCT_PRICE_RANGE.getCode())
+                                                            .facetsOnly(true);
+        ProductSearchResult searchProducts = productQueryService.searchProducts(searchCriteria);
+        assertEquals(50, searchProducts.getTotalCount());
+        assertTrue(searchProducts.getProducts().isEmpty());
+        assertEquals(1, searchProducts.getFacets().size());
+
+        //paging does not matter, the same shard copies answer from their request cache
+        productQueryService.searchProducts(searchCriteria.from(20).size(5));
+        assertTrue(productQueryService.getShardRequestCacheStatistics(config).getHits() > before.getHits());
+    }
+
+    @Test
+    public void filteredSearchNarrowsResults()
+    {
+        ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        SearchCriteria searchCriteria = new SearchCriteria().indices(config.getIndexAliasName())
+                                                            .documentTypes(config.getDocumentType())
+                                                            .size(50)
+                                                            .noFacets(true);
+        assertEquals(50, productQueryService.searchProducts(searchCriteria).getTotalCount());
+
+        searchCriteria.addFiledValueFilter(SearchDocumentFieldName.SOLD_OUT.getFieldName(), true);
+        ProductSearchResult searchProducts = productQueryService.searchProducts(searchCriteria);
+        assertEquals(25, searchProducts.getTotalCount());
+        for (Product product : searchProducts.getProducts())
+        {
+            assertTrue(product.isSoldOut());
+        }
+
+        //selected values of one facet match any of them
+        searchCriteria.getFieldValueFilters().clear();
+        searchCriteria.addMultiSelectFilter(SearchFacetName.SEARCH_FACET_TYPE_COLOR.getFacetFieldNameAtLevel(2), SampleDataGenerator.RED);
+        long redProducts = productQueryService.searchProducts(searchCriteria).getTotalCount();
+        searchCriteria.addMultiSelectFilter(SearchFacetName.SEARCH_FACET_TYPE_COLOR.getFacetFieldNameAtLevel(2), SampleDataGenerator.BLUE);
+        long redOrBlueProducts = productQueryService.searchProducts(searchCriteria).getTotalCount();
+        assertTrue(redProducts > 0);
+        assertTrue(redOrBlueProducts > redProducts);
+        assertTrue(redOrBlueProducts < 50);
+
+        //facets only searches are narrowed the same way
+        searchCriteria.getMultiSelectFilters().clear();
+        searchCriteria.addFiledValueFilter(SearchDocumentFieldName.SOLD_OUT.getFieldName(), true);
+        searchCriteria.noFacets(false).facets(SearchFacetName.PRODUCT_PRICE_RANGE.getCode()).facetsOnly(true);
+        assertEquals(25, productQueryService.searchProducts(searchCriteria).getTotalCount());
+    }
+
+    @Test
+    public void newestFirstSearchWithoutExactTotalCount()
+    {
+        ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        Product product = new Product();
+        product.setId(1001l);
+        product.setTitle("Title 1001");
+        product.setAvailableOn(new DateTime().minusYears(2).toDate());
+        indexProductData.indexProduct(config, product);
+        refreshSearchServer();
+
+        SearchCriteria searchCriteria = new SearchCriteria().indices(config.getIndexAliasName())
+                                                            .documentTypes(config.getDocumentType())
+                                                            .sortOrder(SortOrder.DESC)
+                                                            .noFacets(true);
+        ProductSearchResult exactSearchResult = productQueryService.searchProducts(searchCriteria);
+        assertEquals(51, exactSearchResult.getTotalCount());
+
+        //the old product is never looked at, the newest ones fill the page
+        ProductSearchResult searchResult = productQueryService.searchProducts(searchCriteria.exactTotalCount(false));
+        assertEquals(50, searchResult.getTotalCount());
+        for (int i = 0; i < exactSearchResult.getProducts().size(); i++)
+        {
+            assertEquals(exactSearchResult.getProducts().get(i).getId(), searchResult.getProducts().get(i).getId());
+        }
+
+        //pages the window can not fill come from all products
+        assertEquals(51, productQueryService.searchProducts(searchCriteria.from(45)).getTotalCount());
+    }
+
     @Test
     public void SearchDocumentReturnedFileds()
     {
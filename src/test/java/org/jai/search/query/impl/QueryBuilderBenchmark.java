@@ -0,0 +1,94 @@
+package org.jai.search.query.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.Supplier;
+
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.QueryStringQueryBuilder;
+import org.jai.search.model.ElasticSearchIndexConfig;
+import org.jai.search.model.SearchDocumentFieldName;
+import org.jai.search.model.SearchFacetName;
+import org.junit.Test;
+
+/**
+ * Time and allocation on the calling thread per product query string clause, once built as product searches built
+ * it before, once bound to the precompiled template. Both produce the same query.
+ *
+ * Not part of the regular test run, run it with {@code mvn test -Dtest=QueryBuilderBenchmark}.
+ */
+public class QueryBuilderBenchmark
+{
+    private static final int WARMUP_ITERATIONS = 200000;
+
+    private static final int ITERATIONS = 1000000;
+
+    @Test
+    public void queryStringClause()
+    {
+        final ProductQueryTemplate template = ProductQueryTemplate.of(ElasticSearchIndexConfig.COM_WEBSITE);
+        assertEquals(getInlineQueryString("macbook").toString(), template.bindQueryString("macbook").toString());
+
+        long[] inline = measure(new Supplier<QueryBuilder>()
+        {
+            @Override
+            public QueryBuilder get()
+            {
+                return getInlineQueryString("macbook");
+            }
+        });
+        long[] bound = measure(new Supplier<QueryBuilder>()
+        {
+            @Override
+            public QueryBuilder get()
+            {
+                return template.bindQueryString("macbook");
+            }
+        });
+
+        System.out.println("Query string clause, inline: " + inline[0] + " ns, " + inline[1] + " bytes, template: " + bound[0] + " ns, "
+                + bound[1] + " bytes, request size: " + template.bindQueryString("macbook").toString().length() + " chars");
+        assertTrue(bound[1] < inline[1]);
+    }
+
+    //nanos and allocated bytes per build
+    private long[] measure(Supplier<QueryBuilder> builder)
+    {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        int checksum = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++)
+        {
+            checksum += builder.get().hashCode();
+        }
+        long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+        {
+            checksum += builder.get().hashCode();
+        }
+        long nanos = System.nanoTime() - start;
+        long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        if(checksum == 42)
+        {
+            System.out.println(checksum);
+        }
+        return new long[] {nanos / ITERATIONS, allocatedBytes / ITERATIONS};
+    }
+
+    //query string clause of product searches before the template
+    private static QueryStringQueryBuilder getInlineQueryString(String escapedQueryString)
+    {
+        QueryStringQueryBuilder queryStringQueryBuilder = QueryBuilders.queryStringQuery(escapedQueryString);
+        queryStringQueryBuilder.field(SearchDocumentFieldName.TITLE.getFieldName(), (float) 0.5)
+                               .field(SearchDocumentFieldName.DESCRIPTION.getFieldName(), (float) 0.15);
+        for (final String contentCategoryFieldName : SearchFacetName.categoryFacetFields)
+        {
+            queryStringQueryBuilder.field(SearchDocumentFieldName.CATEGORIES_ARRAY.getFieldName() + "." + contentCategoryFieldName, 1);
+        }
+        return queryStringQueryBuilder;
+    }
+}
@@ -0,0 +1,114 @@
+package org.jai.search.query.impl;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.function.Function;
+
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.index.mapper.SourceFieldMapper;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.jai.search.model.ElasticSearchIndexConfig;
+import org.jai.search.model.Product;
+import org.jai.search.model.SearchCriteria;
+import org.jai.search.model.SearchDocumentFieldName;
+import org.jai.search.test.AbstractSearchJUnit4SpringContextTests;
+import org.junit.Test;
+
+/**
+ * Allocation per product search hit on the calling thread while mapping it to a product, once for hits with the
+ * source as product searches fetched them before, once for hits with only the stored and doc value fields they
+ * request now. The source is parsed lazily on first access, so its parsing is part of the mapping.
+ *
+ * Not part of the regular test run, run it with {@code mvn test -Dtest=SearchHitMappingBenchmark}.
+ */
+public class SearchHitMappingBenchmark extends AbstractSearchJUnit4SpringContextTests
+{
+    private static final int WARMUP_ITERATIONS = 50;
+
+    private static final int ITERATIONS = 200;
+
+    @Test
+    public void allocationPerHit()
+    {
+        ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        final ProductQueryServiceImpl productQueryServiceImpl = (ProductQueryServiceImpl) productQueryService;
+        SearchCriteria searchCriteria = new SearchCriteria().indices(config.getIndexAliasName()).documentTypes(config.getDocumentType()).size(50);
+
+        SearchRequestBuilder sourceRequestBuilder = productQueryServiceImpl.prepareSearch(searchCriteria)
+                                                                           .storedFields(SourceFieldMapper.NAME)
+                                                                           .setFetchSource(true)
+                                                                           .addDocValueField(SearchDocumentFieldName.TITLE.getFieldName());
+        long sourceBytesPerHit = getAllocatedBytesPerHit(sourceRequestBuilder, new Function<SearchHit, Product>()
+        {
+            @Override
+            public Product apply(SearchHit searchHit)
+            {
+                return getSourceHitProduct(searchHit);
+            }
+        });
+
+        long fieldsBytesPerHit = getAllocatedBytesPerHit(productQueryServiceImpl.prepareSearch(searchCriteria), new Function<SearchHit, Product>()
+        {
+            @Override
+            public Product apply(SearchHit searchHit)
+            {
+                return productQueryServiceImpl.getSearchHitProduct(searchHit);
+            }
+        });
+
+        System.out.println("Allocated bytes per hit, source: " + sourceBytesPerHit + ", stored and doc value fields: " + fieldsBytesPerHit);
+        assertTrue(fieldsBytesPerHit < sourceBytesPerHit);
+    }
+
+    private long getAllocatedBytesPerHit(SearchRequestBuilder requestBuilder, Function<SearchHit, Product> mapping)
+    {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBytes = 0;
+        long hits = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; i++)
+        {
+            SearchResponse searchResponse = requestBuilder.get();
+            long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+            for (SearchHit searchHit : searchResponse.getHits())
+            {
+                mapping.apply(searchHit);
+            }
+            if(i >= WARMUP_ITERATIONS)
+            {
+                allocatedBytes += threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+                hits += searchResponse.getHits().getHits().length;
+            }
+        }
+        return allocatedBytes / hits;
+    }
+
+    //mapping of product search hits before they were read from stored and doc value fields only
+    private static Product getSourceHitProduct(SearchHit searchHit)
+    {
+        Product product = new Product();
+        product.setId(Long.valueOf(searchHit.getId()));
+        product.setTitle(String.valueOf(searchHit.getSource().get(SearchDocumentFieldName.TITLE.getFieldName())));
+        if(getDoubleFieldValueOrNull(searchHit, SearchDocumentFieldName.PRICE.getFieldName()) != null)
+        {
+            product.setPrice(BigDecimal.valueOf(getDoubleFieldValueOrNull(searchHit, SearchDocumentFieldName.PRICE.getFieldName())));
+        }
+        SearchHitField soldOut = searchHit.field(SearchDocumentFieldName.SOLD_OUT.getFieldName());
+        product.setSoldOut(Boolean.valueOf(soldOut == null || soldOut.value() == null ? null : soldOut.value().toString()));
+        return product;
+    }
+
+    private static Double getDoubleFieldValueOrNull(SearchHit searchHit, String fieldName)
+    {
+        SearchHitField searchHitField = searchHit.field(fieldName);
+        if(searchHitField != null && searchHitField.value() != null)
+        {
+            return Double.valueOf(searchHitField.value().toString());
+        }
+        return null;
+    }
+}
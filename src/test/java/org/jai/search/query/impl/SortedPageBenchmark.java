@@ -0,0 +1,112 @@
+package org.jai.search.query.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.elasticsearch.search.sort.SortOrder;
+import org.jai.search.model.BulkIndexingSettings;
+import org.jai.search.model.ElasticSearchIndexConfig;
+import org.jai.search.model.Product;
+import org.jai.search.model.SearchCriteria;
+import org.jai.search.test.AbstractSearchJUnit4SpringContextTests;
+import org.junit.Test;
+
+/**
+ * Latency of the first newest first page on a synthetic catalog with products available over the last ten years,
+ * once with exact total count, once looking at the newest products first.
+ *
+ * Not part of the regular test run, run it with {@code mvn test -Dtest=SortedPageBenchmark}.
+ */
+public class SortedPageBenchmark extends AbstractSearchJUnit4SpringContextTests
+{
+    private static final int CATALOG_SIZE = 200000;
+
+    private static final long CATALOG_PERIOD_IN_MILLIS = 10l * 365 * 24 * 60 * 60 * 1000;
+
+    private static final int WARMUP_ITERATIONS = 50;
+
+    private static final int ITERATIONS = 200;
+
+    @Test
+    public void newestFirstPage()
+    {
+        final ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        indexProductData.indexProducts(config, getSyntheticCatalog(), new BulkIndexingSettings());
+        refreshSearchServer();
+
+        SearchCriteria exactSearchCriteria = new SearchCriteria().indices(config.getIndexAliasName())
+                                                                 .documentTypes(config.getDocumentType())
+                                                                 .sortOrder(SortOrder.DESC)
+                                                                 .noFacets(true);
+        SearchCriteria windowedSearchCriteria = new SearchCriteria().indices(config.getIndexAliasName())
+                                                                    .documentTypes(config.getDocumentType())
+                                                                    .sortOrder(SortOrder.DESC)
+                                                                    .noFacets(true)
+                                                                    .exactTotalCount(false);
+        assertEquals(getProductIds(exactSearchCriteria), getProductIds(windowedSearchCriteria));
+
+        long exactMicros = measure(exactSearchCriteria);
+        long windowedMicros = measure(windowedSearchCriteria);
+        System.out.println("Newest first page of " + CATALOG_SIZE + " products, exact total count: " + exactMicros + " us, newest products first: "
+                + windowedMicros + " us");
+    }
+
+    private long measure(SearchCriteria searchCriteria)
+    {
+        long nanos = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; i++)
+        {
+            long start = System.nanoTime();
+            productQueryService.searchProducts(searchCriteria);
+            if(i >= WARMUP_ITERATIONS)
+            {
+                nanos += System.nanoTime() - start;
+            }
+        }
+        return nanos / ITERATIONS / 1000;
+    }
+
+    private List<Long> getProductIds(SearchCriteria searchCriteria)
+    {
+        List<Long> productIds = new ArrayList<Long>();
+        for (Product product : productQueryService.searchProducts(searchCriteria).getProducts())
+        {
+            productIds.add(product.getId());
+        }
+        return productIds;
+    }
+
+    private Iterator<Product> getSyntheticCatalog()
+    {
+        final Random random = new Random(42);
+        final long now = System.currentTimeMillis();
+        return new Iterator<Product>()
+        {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext()
+            {
+                return next < CATALOG_SIZE;
+            }
+
+            @Override
+            public Product next()
+            {
+                Product product = new Product();
+                product.setId(10000l + next);
+                product.setTitle("Synthetic " + next);
+                product.setPrice(BigDecimal.valueOf(random.nextInt(1000)));
+                product.setAvailableOn(new Date(now - (long) (random.nextDouble() * CATALOG_PERIOD_IN_MILLIS)));
+                next++;
+                return product;
+            }
+        };
+    }
+}
@@ -0,0 +1,72 @@
+package org.jai.search.setup.impl;
+
+import java.util.Collections;
+import java.util.Date;
+
+import org.jai.search.model.ElasticSearchIndexConfig;
+import org.jai.search.model.Product;
+import org.jai.search.setup.IndexSchemaBuilder;
+import org.jai.search.test.AbstractSearchJUnit4SpringContextTests;
+import org.junit.Test;
+
+/**
+ * Time of the first facet search after a refresh which added a segment, once with global ordinals of the facet
+ * fields built lazily by that search, once built eagerly by the refresh.
+ *
+ * Not part of the regular test run, run it with {@code mvn test -Dtest=FacetWarmupBenchmark}.
+ */
+public class FacetWarmupBenchmark extends AbstractSearchJUnit4SpringContextTests
+{
+    private static final int WARMUP_ROUNDS = 10;
+
+    private static final int ROUNDS = 50;
+
+    @Test
+    public void timeToFirstFacet()
+    {
+        try
+        {
+            setupIndexService.setEagerGlobalOrdinalsFields(Collections.<String>emptySet());
+            long[] lazy = measure();
+
+            setupIndexService.setEagerGlobalOrdinalsFields(IndexSchemaBuilder.facetFields);
+            long[] eager = measure();
+
+            System.out.println("Per refresh, lazy global ordinals: refresh " + lazy[0] + " us, first facet search " + lazy[1]
+                    + " us, eager global ordinals: refresh " + eager[0] + " us, first facet search " + eager[1] + " us");
+        } finally
+        {
+            setupIndexService.setEagerGlobalOrdinalsFields(IndexSchemaBuilder.facetFields);
+        }
+    }
+
+    //micros per refresh and per first facet search after it
+    private long[] measure()
+    {
+        ElasticSearchIndexConfig config = ElasticSearchIndexConfig.COM_WEBSITE;
+        setupIndexService.setupAllIndices(false);
+        refreshSearchServer();
+
+        long refreshNanos = 0;
+        long facetNanos = 0;
+        for (int i = 0; i < WARMUP_ROUNDS + ROUNDS; i++)
+        {
+            Product product = new Product();
+            product.setId(1000l + i);
+            product.setTitle("Title " + (1000 + i));
+            product.setAvailableOn(new Date());
+            indexProductData.indexProduct(config, product);
+
+            long start = System.nanoTime();
+            getClient().admin().indices().prepareRefresh(config.getIndexAliasName()).get();
+            long refreshed = System.nanoTime();
+            setupIndexService.warmUpFacets(config.getIndexAliasName());
+            if(i >= WARMUP_ROUNDS)
+            {
+                refreshNanos += refreshed - start;
+                facetNanos += System.nanoTime() - refreshed;
+            }
+        }
+        return new long[] {refreshNanos / ROUNDS / 1000, facetNanos / ROUNDS / 1000};
+    }
+}
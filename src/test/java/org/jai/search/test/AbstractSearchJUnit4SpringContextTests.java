@@ -11,7 +11,9 @@ import org.jai.search.client.SearchClientService;
 import org.jai.search.data.SampleDataGenerator;
 import org.jai.search.index.IndexProductData;
 import org.jai.search.model.ElasticSearchIndexConfig;
+import org.jai.search.query.AsyncProductQueryService;
 import org.jai.search.query.ProductQueryService;
+import org.jai.search.setup.IndexMetadataService;
 import org.jai.search.setup.SetupIndexService;
 import org.junit.Before;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -32,7 +34,11 @@ public abstract class AbstractSearchJUnit4SpringContextTests extends AbstractJUn
     @Autowired 
     protected ProductQueryService productQueryService;
     @Autowired 
+    protected AsyncProductQueryService asyncProductQueryService;
+    @Autowired 
     protected IndexProductData indexProductData;
+    @Autowired 
+    protected IndexMetadataService indexMetadataService;
     
     protected Client getClient()
      {